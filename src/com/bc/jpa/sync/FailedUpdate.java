@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync;
+
+/**
+ * A pending update which failed for a reason which is not to be retried, 
+ * and was set aside instead of being discarded. 
+ * <p>
+ * {@link #getSequence()} is the position of the update among failed updates,
+ * while {@link #getTimeCreated()} is the time the update was originally added.
+ * </p>
+ */
+public interface FailedUpdate extends PendingUpdate {
+    
+    /**
+     * @return A description of the exception which caused the update to fail
+     */
+    String getFailure();
+    
+    /**
+     * @return The number of times the update was attempted before it was 
+     * set aside
+     */
+    int getAttempts();
+    
+    long getTimeFailed();
+}
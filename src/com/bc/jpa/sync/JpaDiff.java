@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the rows of entity types on the master with those on the slave, by
+ * hashing contiguous id ranges on both and narrowing down to the ranges which
+ * differ. Only the rows of those ranges are compared one by one, and when
+ * reconciling, written to the slave.
+ */
+public interface JpaDiff {
+
+    /**
+     * Compares without writing to the slave.
+     * @param entityType The master entity type
+     * @return The report of the comparison
+     */
+    DiffReport compare(Class entityType);
+
+    /**
+     * Compares, then writes the rows missing from or differing on the slave.
+     * Rows only on the slave are reported but left as they are.
+     * @param entityType The master entity type
+     * @return The report of the comparison
+     */
+    DiffReport reconcile(Class entityType);
+
+    Map<Class, DiffReport> reconcile(Set<Class> entityTypes);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync;
+
+/**
+ * Thrown by {@link Updater#apply(java.util.List)} when some updates of a 
+ * batch were applied, and remain applied, before one of them failed. 
+ * The cause is the failure of that update.
+ */
+public class PartiallyAppliedException extends RuntimeException {
+
+    private final int appliedCount;
+
+    /**
+     * @param appliedCount The number of updates, from the head of the batch, 
+     * which were applied. The update which failed is the one after them.
+     * @param cause The failure of the update which failed
+     */
+    public PartiallyAppliedException(int appliedCount, Exception cause) {
+        super("Applied " + appliedCount + " updates before failing", cause);
+        this.appliedCount = appliedCount;
+    }
+
+    public int getAppliedCount() {
+        return appliedCount;
+    }
+
+    @Override
+    public synchronized Exception getCause() {
+        return (Exception)super.getCause();
+    }
+}
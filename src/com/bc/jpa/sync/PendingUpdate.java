@@ -23,6 +23,14 @@ public interface PendingUpdate {
     
     enum UpdateType{PERSIST, MERGE, REMOVE}
     
+    /**
+     * @return The position of this update in the order updates were added,
+     * or -1 if not known, as by default
+     */
+    default long getSequence() {
+        return -1L;
+    }
+    
     UpdateType getUpdateType();
     
     long getTimeCreated();
@@ -18,6 +18,10 @@ package com.bc.jpa.sync;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Chinomso Bassey Ikwuagwu on Mar 7, 2017 7:18:33 PM
@@ -40,6 +44,12 @@ public interface PendingUpdatesManager {
         @Override
         public void rollbackToMarkedPosition() { }
         @Override
+        public Savepoint savepoint() { return () -> { }; }
+        @Override
+        public void rollback(Savepoint savepoint) { }
+        @Override
+        public void release(Savepoint savepoint) { }
+        @Override
         public void requestStop() { }
         @Override
         public boolean isStopRequested() { return false; }
@@ -56,27 +66,88 @@ public interface PendingUpdatesManager {
         @Override
         public boolean addRemove(Object entity) { return false; }
         @Override
+        public CompletionStage<PendingUpdate> addAsync(PendingUpdate.UpdateType updateType, Object entity) {
+            final CompletableFuture<PendingUpdate> future = new CompletableFuture<>();
+            future.completeExceptionally(new RejectedExecutionException());
+            return future;
+        }
+        @Override
         public int getPendingUpdatesSize() { return this.getPendingUpdates().size(); }
     };
     
     List<PendingUpdate> getPendingUpdates();
     
+    /**
+     * Sets a savepoint in the updates added by the current thread. While the 
+     * thread holds a savepoint, the updates it adds are kept aside in its own 
+     * slice rather than enqueued, and are enqueued only when the outermost 
+     * savepoint is released. Savepoints may be nested.
+     * <p>
+     * The slice is held by the thread until the outermost savepoint is 
+     * released or closed, so a savepoint should be set in a try-with-resources
+     * statement, and released at the end of its block. A savepoint closed 
+     * without being released is rolled back.
+     * </p>
+     * @return An opaque token for the savepoint, to be passed back by the 
+     * same thread
+     * @throws UnsupportedOperationException If savepoints are not supported,
+     * as by default
+     */
+    default Savepoint savepoint() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Discards the updates added by the current thread since the savepoint 
+     * was set. The savepoint remains set, while those nested within it are 
+     * released.
+     * @param savepoint The savepoint to roll back to
+     * @throws IllegalStateException If the savepoint was released or was 
+     * set by another thread
+     */
+    default void rollback(Savepoint savepoint) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Releases the savepoint and those nested within it. Releasing the 
+     * outermost savepoint enqueues the updates added by the current thread.
+     * @param savepoint The savepoint to release
+     * @throws IllegalStateException If the savepoint was released or was 
+     * set by another thread
+     */
+    default void release(Savepoint savepoint) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * The mark is a single position shared by all threads, and rolling back
+     * to it discards updates added by any thread.
+     * @deprecated Use {@link #savepoint()}, {@link #rollback(Savepoint)} and
+     * {@link #release(Savepoint)}
+     */
+    @Deprecated
     default boolean isMarked() {
         return this.getMark() > -1;
     }
     
+    @Deprecated
     default void unmark() {
         this.mark(-1);
     }
     
+    @Deprecated
     default int mark() {
         return this.mark(this.getPendingUpdatesSize());
     }
     
+    @Deprecated
     int getMark();
     
+    @Deprecated
     int mark(int n);
     
+    @Deprecated
     void rollbackToMarkedPosition();  
     
     void requestStop();
@@ -95,5 +166,97 @@ public interface PendingUpdatesManager {
     
     boolean addRemove(Object entity);
     
+    default CompletionStage<PendingUpdate> addPersistAsync(Object entity) {
+        return this.addAsync(PendingUpdate.UpdateType.PERSIST, entity);
+    }
+    
+    default CompletionStage<PendingUpdate> addMergeAsync(Object entity) {
+        return this.addAsync(PendingUpdate.UpdateType.MERGE, entity);
+    }
+    
+    default CompletionStage<PendingUpdate> addRemoveAsync(Object entity) {
+        return this.addAsync(PendingUpdate.UpdateType.REMOVE, entity);
+    }
+    
+    /**
+     * Adds the update without waiting for it to be applied.
+     * @param updateType The type of update
+     * @param entity The entity to update
+     * @return A stage completed once the update has reached the slave, or 
+     * completed exceptionally if it was not added or was set aside as failed
+     * @throws UnsupportedOperationException If updates can not be tracked 
+     * to the slave, as by default
+     */
+    default CompletionStage<PendingUpdate> addAsync(PendingUpdate.UpdateType updateType, Object entity) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Waits until every update added before this call is resolved, i.e 
+     * applied, coalesced with a later update or set aside as failed. Updates 
+     * held under a {@link Savepoint} are not waited on.
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return <code>true</code> if drained, <code>false</code> if the timeout
+     * elapsed or a stop was requested first
+     * @throws InterruptedException If interrupted while waiting
+     */
+    default boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        // By default polls, and waits on updates added after this call too
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(this.getPendingUpdatesSize() > 0) {
+            final long nanos = deadline - System.nanoTime();
+            if(nanos <= 0 || this.isStopRequested()) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+        return true;
+    }
+    
     int getPendingUpdatesSize();
+    
+    /**
+     * @return The state of the circuit guarding attempts to apply updates. 
+     * While {@link RetryPolicy.State#OPEN OPEN} the slave is taken to be 
+     * unreachable and updates accumulate. By default always 
+     * {@link RetryPolicy.State#CLOSED CLOSED}.
+     */
+    default RetryPolicy.State getRetryState() {
+        return RetryPolicy.State.CLOSED;
+    }
+    
+    /**
+     * @param fromSequence The sequence of the first failed update to return
+     * @param max The maximum number of failed updates to return
+     * @return Updates which failed for a reason which is not to be retried, 
+     * oldest first. By default none, as failed updates are not set aside.
+     */
+    default List<FailedUpdate> getFailedUpdates(long fromSequence, int max) {
+        return Collections.EMPTY_LIST;
+    }
+    
+    default int getFailedUpdatesSize() {
+        return 0;
+    }
+    
+    /**
+     * Adds failed updates back as pending updates, to be attempted again.
+     * @param max The maximum number of failed updates, from the oldest, to 
+     * re-enqueue
+     * @return The number of failed updates re-enqueued
+     */
+    default int requeueFailedUpdates(int max) {
+        return 0;
+    }
+    
+    /**
+     * Discards failed updates.
+     * @param max The maximum number of failed updates, from the oldest, to 
+     * discard
+     * @return The number of failed updates discarded
+     */
+    default int purgeFailedUpdates(int max) {
+        return 0;
+    }
 }
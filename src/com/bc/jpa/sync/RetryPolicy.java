@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync;
+
+/**
+ * Decides when pending updates which failed for a retryable reason, e.g the 
+ * slave being unreachable, may be attempted again.
+ */
+public interface RetryPolicy {
+    
+    enum State{
+        /** Attempts are made as updates arrive */
+        CLOSED, 
+        /** No attempts are made until the current delay has elapsed */
+        OPEN, 
+        /** A single probing attempt is in progress */
+        HALF_OPEN
+    }
+    
+    RetryPolicy IMMEDIATE = new RetryPolicy() {
+        @Override
+        public long acquirePermit() { return 0; }
+        @Override
+        public void onSuccess() { }
+        @Override
+        public void onFailure() { }
+        @Override
+        public State getState() { return State.CLOSED; }
+    };
+    
+    /**
+     * Must be called before each attempt. 
+     * @return <code>0</code> if an attempt may be made now, otherwise the 
+     * number of milliseconds to wait before asking again.
+     */
+    long acquirePermit();
+    
+    /**
+     * Called after an attempt for which a permit was acquired succeeded.
+     */
+    void onSuccess();
+    
+    /**
+     * Called after an attempt for which a permit was acquired failed for a 
+     * retryable reason.
+     */
+    void onFailure();
+    
+    State getState();
+}
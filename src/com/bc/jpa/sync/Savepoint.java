@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync;
+
+/**
+ * An opaque token for a position in the updates added by a thread, to which
+ * the thread may roll back.
+ * <p>
+ * Until the outermost savepoint is released, the updates of the thread are 
+ * held by the thread itself, so every savepoint must be either released or 
+ * closed, best with try-with-resources:
+ * </p>
+ * <pre>
+ * try(Savepoint savepoint = pendingUpdatesManager.savepoint()) {
+ *     pendingUpdatesManager.addMerge(entity);
+ *     ...
+ *     pendingUpdatesManager.release(savepoint);
+ * }
+ * </pre>
+ * @see PendingUpdatesManager#savepoint()
+ */
+public interface Savepoint extends AutoCloseable { 
+    
+    /**
+     * If this savepoint has not been released, discards the updates added 
+     * since it was set, then releases it. Otherwise does nothing.
+     * @throws IllegalStateException If called by a thread other than the 
+     * one which set this savepoint, while it is still held
+     */
+    @Override
+    void close();
+}
@@ -16,6 +16,8 @@
 
 package com.bc.jpa.sync;
 
+import java.util.List;
+
 /**
  * @author Chinomso Bassey Ikwuagwu on Mar 9, 2017 10:52:29 PM
  */
@@ -28,4 +30,38 @@ public interface Updater {
     void persist(Object entity); 
     
     void remove(Object entity);
+    
+    /**
+     * Applies the updates in the order given. Implementations should apply 
+     * them in a single transaction, so that either all or none are applied.
+     * This default implementation applies each in turn, without a shared 
+     * transaction, so the updates applied before one fails remain applied.
+     * @param pendingUpdates The updates to apply
+     * @throws PartiallyAppliedException If some updates were applied before 
+     * one of them failed
+     */
+    default void apply(List<PendingUpdate> pendingUpdates) {
+        int applied = 0;
+        for(PendingUpdate pendingUpdate : pendingUpdates) {
+            final Object entity = pendingUpdate.getEntity();
+            try{
+                switch(pendingUpdate.getUpdateType()) {
+                    case PERSIST: 
+                        this.persist(entity); break;
+                    case MERGE:
+                        this.merge(entity); break;
+                    case REMOVE:
+                        this.remove(entity); break;
+                    default:
+                        throw new UnsupportedOperationException();
+                }
+            }catch(RuntimeException e) {
+                if(applied == 0) {
+                    throw e;
+                }
+                throw new PartiallyAppliedException(applied, e);
+            }
+            ++applied;
+        }
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.RetryPolicy;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries with exponential backoff and jitter, up to a maximum delay.
+ * <p>
+ * After <code>failureThreshold</code> consecutive failures the circuit is 
+ * opened and no attempts are made until the current delay has elapsed. A 
+ * single probing attempt is then permitted. If it succeeds the circuit is 
+ * closed, otherwise it is opened again with a longer delay.
+ * </p>
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+
+    private transient static final Logger logger = Logger.getLogger(BackoffRetryPolicy.class.getName());
+    
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 100;
+    
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 60_000;
+    
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    
+    private final long initialDelayMillis;
+    
+    private final long maxDelayMillis;
+    
+    private final double multiplier;
+    
+    private final double jitter;
+    
+    private final int failureThreshold;
+    
+    /**
+     * The current time in millis
+     */
+    private final LongSupplier clock;
+    
+    private State state = State.CLOSED;
+    
+    private int consecutiveFailures;
+    
+    private long nextAttemptTime;
+    
+    private boolean probing;
+
+    public BackoffRetryPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, 2.0, 0.5, DEFAULT_FAILURE_THRESHOLD);
+    }
+
+    /**
+     * @param initialDelayMillis The delay after the first failure
+     * @param maxDelayMillis The maximum delay between attempts
+     * @param multiplier The factor by which the delay grows after each failure
+     * @param jitter The fraction, between 0 and 1, of each delay which is 
+     * randomized, so that attempts from several sources are spread out.
+     * @param failureThreshold The number of consecutive failures after which
+     * the circuit is opened.
+     */
+    public BackoffRetryPolicy(long initialDelayMillis, long maxDelayMillis, 
+            double multiplier, double jitter, int failureThreshold) {
+        this(initialDelayMillis, maxDelayMillis, multiplier, jitter, failureThreshold, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Supplies the current time in millis
+     */
+    BackoffRetryPolicy(long initialDelayMillis, long maxDelayMillis, 
+            double multiplier, double jitter, int failureThreshold, LongSupplier clock) {
+        if(initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid delays, initial: " + 
+                    initialDelayMillis + ", max: " + maxDelayMillis);
+        }
+        if(multiplier < 1) {
+            throw new IllegalArgumentException("Multiplier < 1");
+        }
+        if(jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter not in range 0 to 1");
+        }
+        if(failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold < 1");
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.failureThreshold = failureThreshold;
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    @Override
+    public synchronized long acquirePermit() {
+        final long remaining = nextAttemptTime - clock.getAsLong();
+        if(remaining > 0) {
+            return remaining;
+        }
+        switch(state) {
+            case OPEN:
+                state = State.HALF_OPEN;
+                probing = true;
+                logger.log(Level.FINE, "Probing after {0} failures", consecutiveFailures);
+                return 0;
+            case HALF_OPEN:
+                // Others wait for the outcome of the probe, or for it to time out
+                return probing ? Math.max(1, this.getDelay(consecutiveFailures)) : 0;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public synchronized void onSuccess() {
+        if(state != State.CLOSED) {
+            logger.log(Level.INFO, "Slave reachable again after {0} failures", consecutiveFailures);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        nextAttemptTime = 0;
+        probing = false;
+    }
+
+    @Override
+    public synchronized void onFailure() {
+        ++consecutiveFailures;
+        probing = false;
+        final long delay = this.getDelay(consecutiveFailures);
+        nextAttemptTime = clock.getAsLong() + delay;
+        if(state != State.OPEN && consecutiveFailures >= failureThreshold) {
+            if(state == State.CLOSED) {
+                logger.log(Level.WARNING, "Slave unreachable after {0} attempts, retrying with backoff", 
+                        consecutiveFailures);
+            }
+            state = State.OPEN;
+        }
+        logger.log(Level.FINER, "Failure {0}, next attempt in {1} millis", 
+                new Object[]{consecutiveFailures, delay});
+    }
+    
+    /**
+     * @param failures The number of consecutive failures
+     * @return The delay after the specified number of consecutive failures
+     */
+    protected long getDelay(int failures) {
+        final double base = Math.min(maxDelayMillis, 
+                initialDelayMillis * Math.pow(multiplier, Math.max(0, failures - 1)));
+        final double randomized = base * jitter * ThreadLocalRandom.current().nextDouble();
+        return (long)(base - randomized);
+    }
+
+    @Override
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.context.PersistenceUnitContext;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+/**
+ * Removes from the slave the rows of a type which are no longer on the
+ * master, e.g deleted while the slave was unreachable.
+ * <p>
+ * The ids of both sides are read in ascending order, a page at a time, and
+ * merged like two sorted lists: a slave id below the current master id is
+ * on the slave only. Numeric ids are held in primitive arrays. Memory is thus
+ * that of one page of ids on each side and one batch of ids to remove,
+ * however many rows the tables have.
+ * </p>
+ * <p>
+ * Before a batch is removed its ids are looked up on the master again, so
+ * that a row added to both sides while the ids were being read is kept, as
+ * is any row seemingly missing because the database orders non-numeric ids
+ * other than by their natural order, e.g case insensitively.
+ * Each batch is removed by one bulk delete, or if that fails, e.g because a
+ * row is still referenced, one row at a time.
+ * </p>
+ */
+final class DeletionPropagator {
+
+    private transient static final Logger logger = Logger.getLogger(DeletionPropagator.class.getName());
+
+    /**
+     * The number of ids read in each page. Ids are small, so pages of ids can
+     * be much larger than pages of entities.
+     */
+    static final int ID_PAGE_SIZE = 10_000;
+
+    /**
+     * The ids of an entity type in ascending order, read a page at a time.
+     */
+    private static final class IdCursor {
+
+        private final PersistenceUnitContext context;
+        private final Class entityType;
+        private final String idName;
+        private final Class idType;
+        private final boolean numeric;
+        private final int fetchSize;
+
+        private long [] longs;
+        private Object [] objects;
+        private int size;
+        private int index;
+        private Object lastId;
+        private boolean done;
+
+        private IdCursor(PersistenceUnitContext context, Class entityType, SingularAttribute id, int fetchSize) {
+            this.context = context;
+            this.entityType = entityType;
+            this.idName = id.getName();
+            this.idType = id.getJavaType();
+            this.numeric = isNumeric(idType);
+            this.fetchSize = fetchSize;
+        }
+
+        /**
+         * @return <code>true</code> if moved to the next id, <code>false</code>
+         * if there are no more ids
+         */
+        private boolean next() {
+            if(++index < size) {
+                return true;
+            }
+            if(done) {
+                return false;
+            }
+            this.read();
+            index = 0;
+            return size > 0;
+        }
+
+        private void read() {
+            final EntityManager em = context.getEntityManager();
+            try{
+                final CriteriaBuilder cb = em.getCriteriaBuilder();
+                final CriteriaQuery cq = cb.createQuery(idType);
+                final Root root = cq.from(entityType);
+                final Path id = root.get(idName);
+                cq.select(id);
+                if(lastId != null) {
+                    cq.where(cb.greaterThan(id, cb.parameter(idType, "k")));
+                }
+                cq.orderBy(cb.asc(id));
+                final TypedQuery tq = em.createQuery(cq).setMaxResults(ID_PAGE_SIZE);
+                if(lastId != null) {
+                    tq.setParameter("k", lastId);
+                }
+                final List ids = ReadHints.apply(tq, fetchSize).getResultList();
+                size = ids.size();
+                if(numeric) {
+                    if(longs == null) {
+                        longs = new long[ID_PAGE_SIZE];
+                    }
+                    for(int i=0; i<size; i++) {
+                        longs[i] = ((Number)ids.get(i)).longValue();
+                    }
+                }else{
+                    objects = ids.toArray();
+                }
+                if(size > 0) {
+                    lastId = ids.get(size - 1);
+                }
+                done = size < ID_PAGE_SIZE;
+            }finally{
+                em.close();
+            }
+        }
+
+        private int compareTo(IdCursor other) {
+            return numeric ? Long.compare(longs[index], other.longs[other.index]) :
+                    ((Comparable)objects[index]).compareTo(other.objects[other.index]);
+        }
+
+        private Object get() {
+            return numeric ? toIdType(longs[index], idType) : objects[index];
+        }
+    }
+
+    private final PersistenceUnitContext master;
+
+    private final PersistenceUnitContext slave;
+
+    private final int batchSize;
+
+    private final int fetchSize;
+
+    /**
+     * @param master The master persistence unit
+     * @param slave The slave persistence unit
+     * @param batchSize The number of slave rows removed in each transaction
+     * @param fetchSize The number of ids fetched in each round trip
+     */
+    DeletionPropagator(PersistenceUnitContext master, PersistenceUnitContext slave, int batchSize, int fetchSize) {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size < 1");
+        }
+        this.master = Objects.requireNonNull(master);
+        this.slave = Objects.requireNonNull(slave);
+        this.batchSize = batchSize;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @param masterType The master entity type
+     * @param slaveType The slave entity type
+     * @return The number of slave rows removed
+     * @throws UnsupportedOperationException If the id of either type is not
+     * a single comparable attribute, or the ids of the two types can not be
+     * compared with each other
+     */
+    int propagate(Class masterType, Class slaveType) {
+
+        final IdCursor masterIds = new IdCursor(master, masterType, this.getId(master, masterType), fetchSize);
+        final IdCursor slaveIds = new IdCursor(slave, slaveType, this.getId(slave, slaveType), fetchSize);
+        if(masterIds.numeric != slaveIds.numeric || (!masterIds.numeric && masterIds.idType != slaveIds.idType)) {
+            throw new UnsupportedOperationException("Ids of " + masterType.getName() +
+                    " and " + slaveType.getName() + " are not comparable");
+        }
+
+        int removed = 0;
+
+        final List batch = new ArrayList(batchSize);
+
+        boolean hasMaster = masterIds.next();
+
+        while(slaveIds.next()) {
+
+            int n = -1;
+            while(hasMaster && (n = masterIds.compareTo(slaveIds)) < 0) {
+                hasMaster = masterIds.next();
+            }
+
+            if(!hasMaster || n > 0) {
+                batch.add(slaveIds.get());
+                if(batch.size() == batchSize) {
+                    removed += this.remove(masterIds, slaveIds, batch);
+                    batch.clear();
+                }
+            }
+        }
+
+        if(!batch.isEmpty()) {
+            removed += this.remove(masterIds, slaveIds, batch);
+        }
+
+        final int count = removed;
+        logger.fine(() -> "Entity type: " + slaveType.getName() + ", number of records removed: " + count);
+
+        return removed;
+    }
+
+    private SingularAttribute getId(PersistenceUnitContext context, Class entityType) {
+        final EntityManager em = context.getEntityManager();
+        try{
+            final EntityType type = em.getMetamodel().entity(entityType);
+            if(type.hasSingleIdAttribute()) {
+                final SingularAttribute id = type.getId(type.getIdType().getJavaType());
+                final Class idType = id.getJavaType();
+                if(isNumeric(idType) || Comparable.class.isAssignableFrom(idType)) {
+                    return id;
+                }
+            }
+            throw new UnsupportedOperationException("Id not comparable for: " + entityType.getName());
+        }finally{
+            em.close();
+        }
+    }
+
+    private int remove(IdCursor masterIds, IdCursor slaveIds, List batch) {
+
+        final List ids = this.retainMissing(masterIds, batch);
+
+        if(ids.isEmpty()) {
+            return 0;
+        }
+
+        logger.log(Level.FINE, "Removing {0} of: {1}", new Object[]{ids.size(), slaveIds.entityType.getName()});
+
+        final EntityManager em = slave.getEntityManager();
+        try{
+            em.getTransaction().begin();
+            final CriteriaBuilder cb = em.getCriteriaBuilder();
+            final CriteriaDelete cd = cb.createCriteriaDelete(slaveIds.entityType);
+            cd.where(cd.from(slaveIds.entityType).get(slaveIds.idName).in(ids));
+            final int removed = em.createQuery(cd).executeUpdate();
+            em.getTransaction().commit();
+            return removed;
+        }catch(RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to remove " + ids.size() + " of " +
+                    slaveIds.entityType.getName() + " at once, removing one at a time", e);
+        }finally{
+            if(em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+
+        int removed = 0;
+        for(Object id : ids) {
+            if(this.remove(slaveIds.entityType, id)) {
+                ++removed;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return The ids of the batch not found on the master
+     */
+    private List retainMissing(IdCursor masterIds, List batch) {
+
+        final List masterBatch = new ArrayList(batch.size());
+        for(Object id : batch) {
+            masterBatch.add(masterIds.numeric ? toIdType(((Number)id).longValue(), masterIds.idType) : id);
+        }
+
+        final Set found = new HashSet();
+        final EntityManager em = master.getEntityManager();
+        try{
+            final CriteriaBuilder cb = em.getCriteriaBuilder();
+            final CriteriaQuery cq = cb.createQuery(masterIds.idType);
+            final Path id = cq.from(masterIds.entityType).get(masterIds.idName);
+            cq.select(id);
+            cq.where(id.in(masterBatch));
+            for(Object masterId : em.createQuery(cq).getResultList()) {
+                found.add(masterIds.numeric ? (Object)((Number)masterId).longValue() : masterId);
+            }
+        }finally{
+            em.close();
+        }
+
+        if(found.isEmpty()) {
+            return batch;
+        }
+
+        logger.log(Level.FINE, "Keeping {0} of: {1}, found on master", new Object[]{found.size(), masterIds.entityType.getName()});
+
+        final List missing = new ArrayList(batch.size() - found.size());
+        for(Object id : batch) {
+            if(!found.contains(masterIds.numeric ? (Object)((Number)id).longValue() : id)) {
+                missing.add(id);
+            }
+        }
+        return missing;
+    }
+
+    private boolean remove(Class entityType, Object id) {
+        final EntityManager em = slave.getEntityManager();
+        try{
+            em.getTransaction().begin();
+            final Object entity = em.find(entityType, id);
+            if(entity != null) {
+                em.remove(entity);
+            }
+            em.getTransaction().commit();
+            return entity != null;
+        }catch(RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to remove " + entityType.getName() + " with id: " + id, e);
+            return false;
+        }finally{
+            if(em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    private static boolean isNumeric(Class type) {
+        return type == Long.class || type == long.class || type == Integer.class || type == int.class ||
+                type == Short.class || type == short.class || type == Byte.class || type == byte.class;
+    }
+
+    private static Object toIdType(long value, Class idType) {
+        if(idType == Long.class || idType == long.class) {
+            return value;
+        }else if(idType == Integer.class || idType == int.class) {
+            return (int)value;
+        }else if(idType == Short.class || idType == short.class) {
+            return (short)value;
+        }else{
+            return (byte)value;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.DiffReport;
+import java.io.Serializable;
+import java.util.Objects;
+
+public class DiffReportImpl implements DiffReport, Serializable {
+
+    private final Class entityType;
+    private final int matched;
+    private final int missing;
+    private final int differed;
+    private final int extra;
+    private final int synced;
+    private final int ranges;
+    private final int rangesDiffered;
+
+    public DiffReportImpl(Class entityType, int matched, int missing, int differed, 
+            int extra, int synced, int ranges, int rangesDiffered) {
+        this.entityType = Objects.requireNonNull(entityType);
+        this.matched = matched;
+        this.missing = missing;
+        this.differed = differed;
+        this.extra = extra;
+        this.synced = synced;
+        this.ranges = ranges;
+        this.rangesDiffered = rangesDiffered;
+    }
+
+    @Override
+    public Class getEntityType() {
+        return entityType;
+    }
+
+    @Override
+    public int getMatched() {
+        return matched;
+    }
+
+    @Override
+    public int getMissing() {
+        return missing;
+    }
+
+    @Override
+    public int getDiffered() {
+        return differed;
+    }
+
+    @Override
+    public int getExtra() {
+        return extra;
+    }
+
+    @Override
+    public int getSynced() {
+        return synced;
+    }
+
+    @Override
+    public int getRanges() {
+        return ranges;
+    }
+
+    @Override
+    public int getRangesDiffered() {
+        return rangesDiffered;
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + '{' + entityType.getName() + 
+                ", matched=" + matched + ", missing=" + missing + 
+                ", differed=" + differed + ", extra=" + extra + 
+                ", synced=" + synced + ", ranges=" + ranges + 
+                ", rangesDiffered=" + rangesDiffered + '}';
+    }
+}
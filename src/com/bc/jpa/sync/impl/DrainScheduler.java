@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the workers of any number of pending updates managers on a shared
+ * executor, instead of a dedicated thread for each partition of each
+ * manager. A worker occupies a thread only while it has updates to apply,
+ * and gives up its turn after a few batches, so the number of threads stays
+ * the same however many managers share the scheduler.
+ * <pre>
+ * DrainScheduler scheduler = new DrainScheduler(4);
+ * new PendingUpdatesManagerBuilder().drainScheduler(scheduler).maxConcurrency(2)...
+ * </pre>
+ * @see PendingUpdatesManagerBuilder#drainScheduler(com.bc.jpa.sync.impl.DrainScheduler)
+ */
+public class DrainScheduler implements AutoCloseable {
+
+    public static final int DEFAULT_BATCHES_PER_TURN = 4;
+
+    private final Executor executor;
+
+    /**
+     * Wakes workers waiting out a batch window or a retry delay, and flushes
+     * the journals of the managers.
+     */
+    private final ScheduledExecutorService timer;
+
+    private final int batchesPerTurn;
+
+    private final boolean shutdownExecutor;
+
+    /**
+     * @param threads The number of daemon threads in the pool shared by the
+     * workers
+     */
+    public DrainScheduler(int threads) {
+        this(Executors.newFixedThreadPool(threads, createThreadFactory("DrainThread")),
+                DEFAULT_BATCHES_PER_TURN, true);
+    }
+
+    /**
+     * @param executor The executor to run workers on, e.g a virtual thread
+     * per task executor. It is not shut down when this scheduler is closed.
+     * @param batchesPerTurn The number of batches a worker applies before
+     * giving up its turn
+     */
+    public DrainScheduler(Executor executor, int batchesPerTurn) {
+        this(executor, batchesPerTurn, false);
+    }
+
+    private DrainScheduler(Executor executor, int batchesPerTurn, boolean shutdownExecutor) {
+        if(batchesPerTurn < 1) {
+            throw new IllegalArgumentException("Batches per turn < 1");
+        }
+        this.executor = Objects.requireNonNull(executor);
+        this.batchesPerTurn = batchesPerTurn;
+        this.shutdownExecutor = shutdownExecutor;
+        this.timer = Executors.newSingleThreadScheduledExecutor(createThreadFactory("DrainTimerThread"));
+    }
+
+    private static ThreadFactory createThreadFactory(String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return (runnable) -> {
+            final Thread thread = new Thread(runnable,
+                    DrainScheduler.class.getName() + '_' + name + '-' + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    void schedule(Runnable task, long delayNanos) {
+        timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    int getBatchesPerTurn() {
+        return batchesPerTurn;
+    }
+
+    /**
+     * Stops the timer, and the pool if created by this scheduler. The
+     * managers using this scheduler should be stopped first.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        if(shutdownExecutor && executor instanceof ExecutorService) {
+            ((ExecutorService)executor).shutdown();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.OneToOne;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+
+/**
+ * The parents of each of a set of entity types: the types referenced by its
+ * owning ManyToOne and OneToOne relations, whose rows must exist before its
+ * own rows can be written. Only parents within the set are included.
+ * <p>
+ * Relations which form a cycle, e.g a self reference or two types referencing
+ * each other, are left out, so that the types can always be ordered.
+ * </p>
+ */
+final class EntityDependencies {
+
+    private transient static final Logger logger = Logger.getLogger(EntityDependencies.class.getName());
+
+    private EntityDependencies() { }
+
+    /**
+     * @param metamodel The metamodel of the persistence unit of the types
+     * @param entityTypes The entity types
+     * @return The parents of each entity type, by entity type, in the order
+     * of the entity types
+     */
+    static Map<Class, Set<Class>> getParents(Metamodel metamodel, Set<Class> entityTypes) {
+
+        final Map<Class, Set<Class>> parents = new LinkedHashMap<>(entityTypes.size() * 2);
+
+        for(Class entityType : entityTypes) {
+
+            final Set<Class> typeParents = new LinkedHashSet<>();
+
+            final EntityType<?> type = metamodel.entity(entityType);
+
+            for(Attribute<?, ?> attribute : type.getAttributes()) {
+
+                if(!isOwningToOne(attribute)) {
+                    continue;
+                }
+
+                final Class referenced = attribute.getJavaType();
+
+                for(Class other : entityTypes) {
+                    if(other != entityType && referenced.isAssignableFrom(other)) {
+                        typeParents.add(other);
+                    }
+                }
+            }
+
+            parents.put(entityType, typeParents);
+        }
+
+        removeCycles(parents);
+
+        return parents;
+    }
+
+    /**
+     * @param parents The parents of each entity type, as returned by
+     * {@link #getParents(javax.persistence.metamodel.Metamodel, java.util.Set)}
+     * @return The entity types ordered children first, e.g for removing rows
+     * before the rows they reference
+     */
+    static List<Class> getChildrenFirst(Map<Class, Set<Class>> parents) {
+
+        final List<Class> output = new ArrayList<>(parents.size());
+
+        final Set<Class> pending = new LinkedHashSet<>(parents.keySet());
+
+        while(!pending.isEmpty()) {
+            for(Iterator<Class> it = pending.iterator(); it.hasNext();) {
+                final Class entityType = it.next();
+                boolean hasChild = false;
+                for(Class other : pending) {
+                    if(parents.get(other).contains(entityType)) {
+                        hasChild = true;
+                        break;
+                    }
+                }
+                if(!hasChild) {
+                    output.add(entityType);
+                    it.remove();
+                }
+            }
+        }
+
+        return output;
+    }
+
+    private static boolean isOwningToOne(Attribute<?, ?> attribute) {
+        switch(attribute.getPersistentAttributeType()) {
+            case MANY_TO_ONE:
+                return true;
+            case ONE_TO_ONE:
+                // The inverse side is mapped by the owner, and has no column
+                final OneToOne oneToOne = attribute.getJavaMember() instanceof AnnotatedElement ?
+                        ((AnnotatedElement)attribute.getJavaMember()).getAnnotation(OneToOne.class) : null;
+                return oneToOne == null || oneToOne.mappedBy().isEmpty();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Orders the types parents first, removing a parent from the type with the
+     * fewest parents left whenever no type is left without any.
+     */
+    private static void removeCycles(Map<Class, Set<Class>> parents) {
+
+        final Map<Class, Set<Class>> pending = new LinkedHashMap<>(parents.size() * 2);
+        for(Map.Entry<Class, Set<Class>> entry : parents.entrySet()) {
+            pending.put(entry.getKey(), new LinkedHashSet<>(entry.getValue()));
+        }
+
+        while(!pending.isEmpty()) {
+
+            Class next = null;
+            for(Map.Entry<Class, Set<Class>> entry : pending.entrySet()) {
+                if(next == null || entry.getValue().size() < pending.get(next).size()) {
+                    next = entry.getKey();
+                    if(entry.getValue().isEmpty()) {
+                        break;
+                    }
+                }
+            }
+
+            final Set<Class> cyclic = pending.remove(next);
+            if(!cyclic.isEmpty()) {
+                logger.log(Level.FINE, "Ignoring cyclic references of {0} to: {1}", new Object[]{next, cyclic});
+                parents.get(next).removeAll(cyclic);
+            }
+
+            for(Set<Class> remaining : pending.values()) {
+                remaining.remove(next);
+            }
+        }
+
+        for(Map.Entry<Class, Set<Class>> entry : parents.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+    }
+}
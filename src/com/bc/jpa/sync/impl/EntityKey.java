@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Identifies an entity by its type and id.
+ */
+public final class EntityKey implements Serializable {
+
+    private final Class entityType;
+    
+    private final Object entityId;
+
+    public EntityKey(Class entityType, Object entityId) {
+        this.entityType = Objects.requireNonNull(entityType);
+        this.entityId = Objects.requireNonNull(entityId);
+    }
+
+    public Class getEntityType() {
+        return entityType;
+    }
+
+    public Object getEntityId() {
+        return entityId;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * entityType.hashCode() + entityId.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final EntityKey other = (EntityKey) obj;
+        return entityType.equals(other.entityType) && entityId.equals(other.entityId);
+    }
+
+    @Override
+    public String toString() {
+        return entityType.getSimpleName() + '#' + entityId;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.EntityUpdater;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+import javax.persistence.EntityManager;
+
+/**
+ * The column values of a slave entity, captured from a master entity. 
+ * Other entities referenced by the master entity are held as an 
+ * {@link EntityKey} rather than by reference, so that the snapshot does not
+ * retain the graph of entities reachable from the master entity.
+ * @see MasterSlavePersistenceContextImpl#toSnapshot(java.lang.Object) 
+ */
+public final class EntitySnapshot implements Serializable {
+    
+    /**
+     * A collection valued column. Entity elements are held as {@link EntityKey}s.
+     */
+    static final class CollectionValue implements Serializable {
+        
+        private final Class collectionType;
+        
+        private final Object [] elements;
+
+        CollectionValue(Class collectionType, Object[] elements) {
+            this.collectionType = Objects.requireNonNull(collectionType);
+            this.elements = Objects.requireNonNull(elements);
+        }
+
+        Class getCollectionType() {
+            return collectionType;
+        }
+
+        Object[] getElements() {
+            return elements;
+        }
+
+        @Override
+        public String toString() {
+            return collectionType.getSimpleName() + Arrays.toString(elements);
+        }
+    }
+
+    private final Class entityType;
+    
+    private final Object entityId;
+    
+    private final String [] columnNames;
+    
+    private final Object [] values;
+
+    /**
+     * @param entityType The slave entity type
+     * @param entityId The id of the entity
+     * @param columnNames The names of the slave columns
+     * @param values The values of the columns, with entities replaced by 
+     * {@link EntityKey}s
+     */
+    EntitySnapshot(Class entityType, Object entityId, String[] columnNames, Object[] values) {
+        if(columnNames.length != values.length) {
+            throw new IllegalArgumentException("Column names: " + columnNames.length + 
+                    ", values: " + values.length);
+        }
+        this.entityType = Objects.requireNonNull(entityType);
+        this.entityId = entityId;
+        this.columnNames = columnNames;
+        this.values = values;
+    }
+    
+    /**
+     * Creates a new slave entity from this snapshot. Referenced entities are 
+     * obtained via {@link EntityManager#getReference(java.lang.Class, java.lang.Object)}.
+     * The entity is new, not managed, so it may be persisted or merged but 
+     * not removed. To remove, find the entity by {@link #getEntityId()}.
+     * @param updater The slave updater for the entity type
+     * @param em The slave EntityManager the entity is to be applied with
+     * @return A new slave entity having the captured column values
+     */
+    public Object toEntity(EntityUpdater updater, EntityManager em) {
+        final Object entity = newInstance(entityType);
+        for(int i=0; i<columnNames.length; i++) {
+            updater.setValue(entity, columnNames[i], this.toValue(values[i], entity, em));
+        }
+        return entity;
+    }
+    
+    private Object toValue(Object value, Object entity, EntityManager em) {
+        if(value instanceof EntityKey) {
+            final EntityKey key = (EntityKey)value;
+            return this.isSelf(key) ? entity : em.getReference(key.getEntityType(), key.getEntityId());
+        }else if(value instanceof CollectionValue) {
+            final CollectionValue collectionValue = (CollectionValue)value;
+            final Collection collection = (Collection)newInstance(collectionValue.collectionType);
+            for(Object element : collectionValue.elements) {
+                collection.add(this.toValue(element, entity, em));
+            }
+            return collection;
+        }else{
+            return value;
+        }
+    }
+    
+    /**
+     * @return <code>true</code> if any column references another entity
+     */
+    public boolean hasReferences() {
+        for(Object value : values) {
+            if(value instanceof EntityKey && !this.isSelf((EntityKey)value)) {
+                return true;
+            }
+            if(value instanceof CollectionValue) {
+                for(Object element : ((CollectionValue)value).elements) {
+                    if(element instanceof EntityKey && !this.isSelf((EntityKey)element)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+    
+    private boolean isSelf(EntityKey key) {
+        return entityId != null && entityType.equals(key.getEntityType()) && 
+                entityId.equals(key.getEntityId());
+    }
+
+    static Object newInstance(Class aClass) {
+        try{
+            return aClass.getConstructor().newInstance();
+        }catch(NoSuchMethodException | SecurityException | InstantiationException | 
+                IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Class getEntityType() {
+        return entityType;
+    }
+
+    public Object getEntityId() {
+        return entityId;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int i) {
+        return columnNames[i];
+    }
+
+    public Object getValue(int i) {
+        return values[i];
+    }
+
+    @Override
+    public String toString() {
+        return "EntitySnapshot{" + entityType.getSimpleName() + '#' + entityId + '}';
+    }
+}
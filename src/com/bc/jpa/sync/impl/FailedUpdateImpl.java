@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.FailedUpdate;
+import com.bc.jpa.sync.PendingUpdate;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Objects;
+
+public class FailedUpdateImpl extends PendingUpdateImpl implements FailedUpdate {
+    
+    private final String failure;
+    
+    private final int attempts;
+    
+    private final long timeFailed;
+
+    public FailedUpdateImpl(PendingUpdate pendingUpdate, Throwable failure, int attempts) {
+        this(-1L, pendingUpdate.getTimeCreated(), pendingUpdate.getUpdateType(), 
+                pendingUpdate.getEntity(), toString(failure), attempts, System.currentTimeMillis());
+    }
+
+    /**
+     * @param sequence The position of the update among failed updates
+     * @param failedUpdate The failed update
+     */
+    public FailedUpdateImpl(long sequence, FailedUpdate failedUpdate) {
+        this(sequence, failedUpdate.getTimeCreated(), failedUpdate.getUpdateType(), 
+                failedUpdate.getEntity(), failedUpdate.getFailure(), 
+                failedUpdate.getAttempts(), failedUpdate.getTimeFailed());
+    }
+
+    public FailedUpdateImpl(long sequence, long timeCreated, UpdateType updateType, 
+            Object entity, String failure, int attempts, long timeFailed) {
+        super(sequence, timeCreated, updateType, entity);
+        this.failure = Objects.requireNonNull(failure);
+        this.attempts = attempts;
+        this.timeFailed = timeFailed;
+    }
+    
+    private static String toString(Throwable t) {
+        final StringWriter writer = new StringWriter();
+        t.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    @Override
+    public String getFailure() {
+        return failure;
+    }
+
+    @Override
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public long getTimeFailed() {
+        return timeFailed;
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "{sequence=" + this.getSequence() + 
+                ", updateType=" + this.getUpdateType() + ", entity=" + this.getEntity() + 
+                ", attempts=" + attempts + ", timeFailed=" + timeFailed + '}';
+    }
+}
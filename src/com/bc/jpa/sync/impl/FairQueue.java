@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * The updates waiting in a partition, in lanes. Lanes take turns by weighted
+ * round robin, and within each lane so do entity types. Updates of the same
+ * entity type are taken in order of sequence, so updates of the same entity
+ * are never reordered. Not thread safe.
+ * <p>
+ * With a single lane and no type weights there is one flow, taken strictly
+ * in order of sequence.
+ * </p>
+ */
+final class FairQueue {
+
+    /**
+     * The updates of one entity type in a lane, by sequence.
+     */
+    private static final class Flow {
+        private final NavigableMap<Long, PendingUpdate> updates = new TreeMap<>();
+        private final int weight;
+        private int credit;
+        private Flow(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final class Lane {
+        private final int weight;
+        private int credit;
+        private int size;
+        private final Map<Class, Flow> flows = new HashMap<>();
+        /**
+         * The flows with updates, in turn. The flow at the head has the turn.
+         */
+        private final Deque<Flow> active = new ArrayDeque<>();
+        private Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final Lane [] lanes;
+
+    /**
+     * Null if entity types are not to be scheduled separately.
+     */
+    private final ToIntFunction<Class> typeWeights;
+
+    /**
+     * The lane which has the turn.
+     */
+    private int turn;
+
+    private int size;
+
+    /**
+     * @param laneWeights The weight of each lane. A lane with weight
+     * <code>w</code> has <code>w</code> updates taken each turn.
+     * @param typeWeights The weight of each entity type within its lane, or
+     * <code>null</code> to take each lane strictly in order of sequence
+     */
+    FairQueue(int [] laneWeights, ToIntFunction<Class> typeWeights) {
+        this.lanes = new Lane[laneWeights.length];
+        for(int i=0; i<lanes.length; i++) {
+            lanes[i] = new Lane(laneWeights[i]);
+        }
+        this.typeWeights = typeWeights;
+    }
+
+    void put(int lane, Class entityType, PendingUpdate pendingUpdate) {
+        final Lane l = lanes[lane];
+        final Class key = typeWeights == null ? null : entityType;
+        Flow flow = l.flows.get(key);
+        if(flow == null) {
+            flow = new Flow(key == null ? 1 : Math.max(1, typeWeights.applyAsInt(key)));
+            l.flows.put(key, flow);
+        }
+        if(flow.updates.put(pendingUpdate.getSequence(), pendingUpdate) == null) {
+            if(flow.updates.size() == 1) {
+                l.active.addLast(flow);
+            }
+            ++l.size;
+            ++size;
+        }
+    }
+
+    boolean remove(int lane, Class entityType, PendingUpdate pendingUpdate) {
+        final Lane l = lanes[lane];
+        final Flow flow = l.flows.get(typeWeights == null ? null : entityType);
+        if(flow == null || flow.updates.remove(pendingUpdate.getSequence()) == null) {
+            return false;
+        }
+        if(flow.updates.isEmpty()) {
+            l.active.remove(flow);
+            flow.credit = 0;
+        }
+        --l.size;
+        --size;
+        return true;
+    }
+
+    /**
+     * @return The next update to be applied, or <code>null</code> if none
+     */
+    PendingUpdate poll() {
+        if(size == 0) {
+            return null;
+        }
+        Lane lane = lanes[turn];
+        while(lane.size == 0 || lane.credit == 0) {
+            lane.credit = 0;
+            turn = (turn + 1) % lanes.length;
+            lane = lanes[turn];
+            if(lane.size > 0) {
+                lane.credit = lane.weight;
+            }
+        }
+        --lane.credit;
+        Flow flow = lane.active.peekFirst();
+        while(flow.credit == 0) {
+            lane.active.addLast(lane.active.pollFirst());
+            flow = lane.active.peekFirst();
+            flow.credit = flow.weight;
+        }
+        --flow.credit;
+        final PendingUpdate pendingUpdate = flow.updates.pollFirstEntry().getValue();
+        if(flow.updates.isEmpty()) {
+            lane.active.pollFirst();
+            flow.credit = 0;
+        }
+        --lane.size;
+        --size;
+        return pendingUpdate;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int size(int lane) {
+        return lanes[lane].size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int getLaneCount() {
+        return lanes.length;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.context.PersistenceUnitContext;
+import com.bc.jpa.sync.DiffReport;
+import com.bc.jpa.sync.JpaDiff;
+import com.bc.jpa.sync.Updater;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+
+/**
+ * Compares an entity type in three passes:
+ * <ol>
+ *   <li>The master rows are read in pages of <code>rangeSize</code>, by id.
+ *   The ids at which the pages end divide the ids into ranges, and the rows
+ *   of each range are hashed.</li>
+ *   <li>The slave rows are read by id, and the rows falling in each of the
+ *   same ranges are hashed. Rows after the last master id fall in a last
+ *   range of their own.</li>
+ *   <li>The hashes of each range on the two sides are compared. Only the
+ *   rows of the ranges which differ are read again and compared one by
+ *   one.</li>
+ * </ol>
+ * A master row is hashed as the slave entity it converts to, so a row
+ * matches when syncing it would not change the slave. Referenced entities
+ * are hashed by id, and collections are not hashed.
+ * <p>
+ * JPA has no portable hash function, so the rows are hashed here rather than
+ * by the databases, and each table is still read once in full: the reads
+ * grow with the size of the tables, not with how far they have drifted.
+ * The rows read again and written to the slave are only those of the
+ * ranges which differ.
+ * </p>
+ */
+public class JpaDiffImpl implements JpaDiff {
+
+    private transient static final Logger logger = Logger.getLogger(JpaDiffImpl.class.getName());
+
+    public static final int DEFAULT_RANGE_SIZE = 500;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Indices of the counts of a comparison.
+     */
+    private static final int MATCHED = 0, MISSING = 1, DIFFERED = 2, EXTRA = 3, SYNCED = 4;
+
+    private final PersistenceUnitContext master;
+
+    private final PersistenceUnitContext slave;
+
+    private final MasterSlavePersistenceContextImpl masterSlaveContext;
+
+    /**
+     * Writes entities already converted to slave entities.
+     */
+    private final Updater remoteUpdater;
+
+    private final int rangeSize;
+
+    public JpaDiffImpl(PersistenceUnitContext master, PersistenceUnitContext slave) {
+        this(master, slave, DEFAULT_RANGE_SIZE);
+    }
+
+    /**
+     * @param master The master persistence unit
+     * @param slave The slave persistence unit
+     * @param rangeSize The number of master rows in each range hashed. The
+     * smaller the ranges, the more of them, but the fewer rows read again
+     * for each row which differs.
+     */
+    public JpaDiffImpl(PersistenceUnitContext master, PersistenceUnitContext slave, int rangeSize) {
+        if(rangeSize < 1) {
+            throw new IllegalArgumentException("Range size < 1");
+        }
+        this.master = Objects.requireNonNull(master);
+        this.slave = Objects.requireNonNull(slave);
+        this.masterSlaveContext = new MasterSlavePersistenceContextImpl(master, slave);
+        this.remoteUpdater = new UpdaterImpl(slave, (e) -> e);
+        this.rangeSize = rangeSize;
+    }
+
+    @Override
+    public DiffReport compare(Class entityType) {
+        return this.diff(entityType, false);
+    }
+
+    @Override
+    public DiffReport reconcile(Class entityType) {
+        return this.diff(entityType, true);
+    }
+
+    @Override
+    public Map<Class, DiffReport> reconcile(Set<Class> entityTypes) {
+        final Map<Class, DiffReport> output = new LinkedHashMap<>(entityTypes.size() * 2);
+        for(Class entityType : entityTypes) {
+            output.put(entityType, this.reconcile(entityType));
+        }
+        return output.isEmpty() ? Collections.EMPTY_MAP : Collections.unmodifiableMap(output);
+    }
+
+    private DiffReport diff(Class masterType, boolean write) {
+
+        final Class slaveType = masterSlaveContext.getOtherTypeFromContext(slave, masterType, null);
+        if(slaveType == null) {
+            throw new UnsupportedOperationException("No slave type for: " + masterType);
+        }
+
+        logger.log(Level.FINE, "Comparing: {0}", masterType.getName());
+
+        // Pass 1: the master ranges
+        final List<Object []> ends = new ArrayList<>();
+        long [] masterHashes = new long[16];
+        int [] masterCounts = new int[16];
+
+        final KeysetPager masterPager = this.getPager(master, masterType, null, null);
+        while(true) {
+            final EntityManager em = master.getEntityManager();
+            try{
+                final List page = masterPager.read(em);
+                if(page.isEmpty()) {
+                    break;
+                }
+                if(ends.size() == masterHashes.length) {
+                    masterHashes = Arrays.copyOf(masterHashes, ends.size() * 2);
+                    masterCounts = Arrays.copyOf(masterCounts, ends.size() * 2);
+                }
+                long hash = FNV_OFFSET;
+                for(Object entity : page) {
+                    hash = combine(hash, this.hashMaster(slaveType, entity));
+                }
+                masterHashes[ends.size()] = hash;
+                masterCounts[ends.size()] = page.size();
+                ends.add(masterPager.getLastKey());
+            }finally{
+                em.close();
+            }
+        }
+
+        // The last range holds any slave rows after the last master row
+        final int rangeCount = ends.size() + 1;
+        masterHashes = Arrays.copyOf(masterHashes, rangeCount);
+        masterHashes[rangeCount - 1] = FNV_OFFSET;
+        masterCounts = Arrays.copyOf(masterCounts, rangeCount);
+
+        // Pass 2: the slave rows in the same ranges
+        final long [] slaveHashes = new long[rangeCount];
+        Arrays.fill(slaveHashes, FNV_OFFSET);
+
+        final KeysetPager slavePager = this.getPager(slave, slaveType, null, null);
+        int range = 0;
+        while(true) {
+            final EntityManager em = slave.getEntityManager();
+            try{
+                final List page = slavePager.read(em);
+                if(page.isEmpty()) {
+                    break;
+                }
+                for(Object entity : page) {
+                    final Object [] key = slavePager.getKey(entity);
+                    while(range < ends.size() && KeysetPager.compareKeys(key, ends.get(range)) > 0) {
+                        ++range;
+                    }
+                    slaveHashes[range] = combine(slaveHashes[range], this.hash(slaveType, entity));
+                }
+            }finally{
+                em.close();
+            }
+        }
+
+        // Pass 3: the rows of the ranges which differ
+        final int [] counts = new int[5];
+        int differing = 0;
+        for(int i=0; i<rangeCount; i++) {
+            if(masterHashes[i] != slaveHashes[i]) {
+                ++differing;
+                this.compareRange(masterType, slaveType,
+                        i == 0 ? null : ends.get(i - 1), i < ends.size() ? ends.get(i) : null, write, counts);
+            }else{
+                counts[MATCHED] += masterCounts[i];
+            }
+        }
+
+        final DiffReport report = new DiffReportImpl(masterType, counts[MATCHED], counts[MISSING],
+                counts[DIFFERED], counts[EXTRA], counts[SYNCED], rangeCount, differing);
+
+        logger.log(Level.FINE, "{0}", report);
+
+        return report;
+    }
+
+    /**
+     * Compares the rows after one key, up to and including another.
+     * @param after The key after which the range starts, or <code>null</code>
+     * @param end The key at which the range ends, or <code>null</code>
+     */
+    private void compareRange(Class masterType, Class slaveType,
+            Object [] after, Object [] end, boolean write, int [] counts) {
+
+        final Map<List, Long> slaveRows = new HashMap<>();
+
+        final KeysetPager slavePager = this.getPager(slave, slaveType, after, end);
+        final EntityManager slaveEm = slave.getEntityManager();
+        try{
+            List page;
+            while(!(page = slavePager.read(slaveEm)).isEmpty()) {
+                for(Object entity : page) {
+                    slaveRows.put(Arrays.asList(slavePager.getKey(entity)), this.hash(slaveType, entity));
+                }
+                slaveEm.clear();
+            }
+        }finally{
+            slaveEm.close();
+        }
+
+        final KeysetPager masterPager = this.getPager(master, masterType, after, end);
+        final EntityManager masterEm = master.getEntityManager();
+        try{
+            List page;
+            while(!(page = masterPager.read(masterEm)).isEmpty()) {
+                for(Object entity : page) {
+
+                    final Object [] key = masterPager.getKey(entity);
+                    final Object converted = masterSlaveContext.apply(entity);
+                    final Long slaveHash = slaveRows.remove(Arrays.asList(key));
+
+                    if(slaveHash != null && slaveHash == this.hash(slaveType, converted)) {
+                        ++counts[MATCHED];
+                        continue;
+                    }
+
+                    ++counts[slaveHash == null ? MISSING : DIFFERED];
+
+                    if(write && this.write(converted, master.getEntityUpdater(masterType).getId(entity))) {
+                        ++counts[SYNCED];
+                    }
+                }
+                masterEm.clear();
+            }
+        }finally{
+            masterEm.close();
+        }
+
+        counts[EXTRA] += slaveRows.size();
+    }
+
+    private boolean write(Object entity, Object entityId) {
+        try{
+            this.remoteUpdater.update(entity, entityId);
+            return true;
+        }catch(Exception e) {
+            logger.log(Level.WARNING, "For entity: {0}. {1}", new Object[]{entity, e});
+            return false;
+        }
+    }
+
+    private KeysetPager getPager(PersistenceUnitContext context, Class entityType, Object [] after, Object [] end) {
+        final EntityManager em = context.getEntityManager();
+        final KeysetPager pager;
+        try{
+            pager = KeysetPager.forType(em, entityType, rangeSize);
+        }finally{
+            em.close();
+        }
+        if(pager == null) {
+            throw new UnsupportedOperationException("Id not comparable for: " + entityType);
+        }
+        pager.setFetchSize(rangeSize);
+        if(after != null) {
+            pager.startAfter(after);
+        }
+        if(end != null) {
+            pager.endAt(end);
+        }
+        return pager;
+    }
+
+    private long hashMaster(Class slaveType, Object masterEntity) {
+        return this.hash(slaveType, masterSlaveContext.apply(masterEntity));
+    }
+
+    /**
+     * @param slaveEntity A slave entity, or a master entity converted to one
+     * @return The hash of the values of the slave columns of the entity
+     */
+    private long hash(Class slaveType, Object slaveEntity) {
+        long hash = FNV_OFFSET;
+        for(String column : slave.getMetaData().getColumnNames(slaveType)) {
+            final Object value = masterSlaveContext.getSlaveUpdater(slaveType).getValue(slaveEntity, column);
+            if(value instanceof Collection) {
+                continue;
+            }
+            hash = this.hash(hash, column);
+            hash = this.hash(hash, this.format(value));
+        }
+        return hash;
+    }
+
+    /**
+     * FNV-1a over the characters of the value.
+     */
+    private long hash(long hash, String value) {
+        for(int i=0; i<value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= 0xff;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    /**
+     * Values which hold the same on both databases format the same, e.g
+     * timestamps of different types, or decimals of different scales.
+     */
+    private String format(Object value) {
+        if(value == null) {
+            return "\u0000";
+        }
+        if(value instanceof Date) {
+            return Long.toString(((Date)value).getTime());
+        }
+        if(value instanceof BigDecimal) {
+            return ((BigDecimal)value).stripTrailingZeros().toPlainString();
+        }
+        if(value instanceof Number || value instanceof CharSequence ||
+                value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+            return value.toString();
+        }
+        final Class type = value.getClass();
+        if(slave.getMetaData().getEntityClasses().contains(type)) {
+            return "#" + masterSlaveContext.getSlaveUpdater(type).getValue(value, slave.getMetaData().getIdColumnName(type));
+        }
+        if(master.getMetaData().getEntityClasses().contains(type)) {
+            return "#" + masterSlaveContext.getMasterUpdater(type).getValue(value, master.getMetaData().getIdColumnName(type));
+        }
+        return value.toString();
+    }
+
+    private static long combine(long left, long right) {
+        return mix(left * 31 + right);
+    }
+
+    /**
+     * The finalizer of SplitMix64, so that nearby values give unrelated hashes.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
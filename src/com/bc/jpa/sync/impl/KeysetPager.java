@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+/**
+ * Reads the entities of a type in pages ordered by id, each page selecting
+ * the rows after the last id of the previous page:
+ * <pre>
+ * SELECT e FROM Entity e WHERE e.id &gt; :lastId ORDER BY e.id  -- LIMIT pageSize
+ * </pre>
+ * Unlike offset paging, each page costs the same however far into the table
+ * it is, and rows inserted or deleted behind the last id do not shift later
+ * pages. For an id class of several attributes the rows after the last key
+ * are selected by comparing the attributes in order:
+ * <pre>
+ * WHERE a &gt; :a OR (a = :a AND b &gt; :b) ORDER BY a, b
+ * </pre>
+ * Entities may also be ordered by another attribute ahead of their id, e.g
+ * a last modified timestamp, to read only those changed after a given key.
+ * Each page may be read with a different EntityManager, so the entities of a
+ * page can be handed on to another thread along with the EntityManager which
+ * loaded them.
+ * <p>
+ * When reading a whole table, set a fetch size so that pages are read for
+ * streaming: entities bypass the shared cache and rows are fetched in batches.
+ * Memory then depends on the page size and not on the size of the table,
+ * provided the EntityManager of each page is closed or cleared once done with.
+ * </p>
+ * @param <T> The entity type
+ */
+public class KeysetPager<T> {
+
+    private final PersistenceUnitUtil persistenceUnitUtil;
+
+    private final Class<T> entityType;
+
+    private final String [] keyNames;
+
+    private final Class [] keyTypes;
+
+    /**
+     * The members to read the key from. A <code>null</code> member is a
+     * single id, which is read from the persistence unit util.
+     */
+    private final Member [] keyMembers;
+
+    private final int pageSize;
+
+    private int fetchSize;
+
+    private Object [] lastKey;
+
+    private Object [] endKey;
+
+    private boolean done;
+
+    /**
+     * @param <T> The entity type
+     * @param em The entity manager to read the metamodel of the entity type
+     * from. Pages are read with the entity managers passed to
+     * {@link #read(javax.persistence.EntityManager)}.
+     * @param entityType The entity type
+     * @param pageSize The maximum number of entities in each page
+     * @return A pager for the entity type, or <code>null</code> if its id is
+     * not made up of comparable attributes, e.g an embedded id, in which case
+     * offset paging is to be used instead.
+     */
+    public static <T> KeysetPager<T> forType(EntityManager em, Class<T> entityType, int pageSize) {
+        return forType(em, entityType, pageSize, null);
+    }
+
+    /**
+     * @param <T> The entity type
+     * @param em The entity manager to read the metamodel of the entity type
+     * from. Pages are read with the entity managers passed to
+     * {@link #read(javax.persistence.EntityManager)}.
+     * @param entityType The entity type
+     * @param pageSize The maximum number of entities in each page
+     * @param orderAttribute The name of a non-null attribute to order the
+     * entities by ahead of their id, e.g a last modified timestamp, or
+     * <code>null</code> to order by id only
+     * @return A pager for the entity type, or <code>null</code> if its id or
+     * the order attribute is not comparable, in which case offset paging is
+     * to be used instead.
+     */
+    public static <T> KeysetPager<T> forType(EntityManager em, Class<T> entityType, int pageSize, String orderAttribute) {
+        final EntityType<T> type = em.getMetamodel().entity(entityType);
+        final List<Attribute> keys = new ArrayList<>();
+        if(orderAttribute != null) {
+            keys.add(type.getAttribute(orderAttribute));
+        }
+        final boolean singleId = type.hasSingleIdAttribute();
+        if(singleId) {
+            keys.add(type.getId(type.getIdType().getJavaType()));
+        }else{
+            final List<SingularAttribute> ids = new ArrayList<>(type.getIdClassAttributes());
+            Collections.sort(ids, Comparator.comparing(SingularAttribute::getName));
+            keys.addAll(ids);
+        }
+        final String [] names = new String[keys.size()];
+        final Class [] types = new Class[keys.size()];
+        final Member [] members = new Member[keys.size()];
+        for(int i=0; i<names.length; i++) {
+            final Attribute key = keys.get(i);
+            if(!isComparable(key.getJavaType())) {
+                return null;
+            }
+            names[i] = key.getName();
+            types[i] = key.getJavaType();
+            // A single id is read from the persistence unit util
+            members[i] = singleId && i == names.length - 1 ? null : key.getJavaMember();
+        }
+        return new KeysetPager<>(em, entityType, names, types, members, pageSize);
+    }
+
+    private static boolean isComparable(Class type) {
+        return type.isPrimitive() || Comparable.class.isAssignableFrom(type);
+    }
+
+    private KeysetPager(EntityManager em, Class<T> entityType,
+            String [] keyNames, Class [] keyTypes, Member [] keyMembers, int pageSize) {
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("Page size < 1");
+        }
+        this.persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        this.entityType = Objects.requireNonNull(entityType);
+        this.keyNames = keyNames;
+        this.keyTypes = keyTypes;
+        this.keyMembers = keyMembers;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Reads pages for streaming, with entities bypassing the shared cache and
+     * rows fetched by the driver in batches of the fetch size.
+     * @param fetchSize The number of rows fetched in each batch, or zero, the
+     * default, to read with the defaults of the persistence unit
+     */
+    public void setFetchSize(int fetchSize) {
+        if(fetchSize < 0) {
+            throw new IllegalArgumentException("Fetch size < 0");
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return <code>true</code> if there may be more pages to read
+     */
+    public boolean hasMore() {
+        return !done;
+    }
+
+    /**
+     * Reads the page after the last entity read.
+     * @param em The entity manager to read the page with
+     * @return The next page, or an empty list if all have been read
+     */
+    public List<T> read(EntityManager em) {
+        if(done) {
+            return Collections.emptyList();
+        }
+        final List<T> page = this.query(em);
+        if(page.isEmpty()) {
+            done = true;
+        }else{
+            lastKey = this.getKey(page.get(page.size() - 1));
+            // A short page is the last
+            done = page.size() < pageSize;
+        }
+        return page;
+    }
+
+    private List<T> query(EntityManager em) {
+
+        final CriteriaBuilder cb = em.getCriteriaBuilder();
+
+        final CriteriaQuery<T> cq = cb.createQuery(entityType);
+
+        final Root<T> root = cq.from(entityType);
+
+        final List<Order> order = new ArrayList<>(keyNames.length);
+        for(String keyName : keyNames) {
+            order.add(cb.asc(root.get(keyName)));
+        }
+        cq.orderBy(order);
+
+        final List<Predicate> where = new ArrayList<>(2);
+        if(lastKey != null) {
+            where.add(this.compare(cb, root, "k", true));
+        }
+        if(endKey != null) {
+            where.add(this.compare(cb, root, "e", false));
+        }
+        if(!where.isEmpty()) {
+            cq.where(where.toArray(new Predicate[0]));
+        }
+
+        final TypedQuery<T> tq = em.createQuery(cq).setMaxResults(pageSize);
+
+        if(fetchSize > 0) {
+            ReadHints.apply(tq, fetchSize);
+        }
+
+        for(int i=0; i<keyNames.length; i++) {
+            if(lastKey != null) {
+                tq.setParameter("k" + i, lastKey[i]);
+            }
+            if(endKey != null) {
+                tq.setParameter("e" + i, endKey[i]);
+            }
+        }
+
+        return tq.getResultList();
+    }
+
+    /**
+     * @return After the key: <code>k0 &gt; :k0 OR (k0 = :k0 AND k1 &gt; :k1) OR ...</code>
+     * <br>Else up to and including the key: <code>k0 &lt; :k0 OR (k0 = :k0 AND k1 &lt;= :k1) OR ...</code>
+     */
+    private Predicate compare(CriteriaBuilder cb, Root<T> root, String paramPrefix, boolean after) {
+        final ParameterExpression [] params = new ParameterExpression[keyNames.length];
+        for(int i=0; i<params.length; i++) {
+            params[i] = cb.parameter(keyTypes[i], paramPrefix + i);
+        }
+        final Predicate [] any = new Predicate[keyNames.length];
+        for(int i=0; i<any.length; i++) {
+            final Predicate [] all = new Predicate[i + 1];
+            for(int j=0; j<i; j++) {
+                all[j] = cb.equal(root.get(keyNames[j]), params[j]);
+            }
+            final Expression key = root.get(keyNames[i]);
+            if(after) {
+                all[i] = cb.greaterThan(key, (Expression)params[i]);
+            }else if(i < any.length - 1) {
+                all[i] = cb.lessThan(key, (Expression)params[i]);
+            }else{
+                all[i] = cb.lessThanOrEqualTo(key, (Expression)params[i]);
+            }
+            any[i] = all.length == 1 ? all[0] : cb.and(all);
+        }
+        return any.length == 1 ? any[0] : cb.or(any);
+    }
+
+    /**
+     * @param entity An entity of the type paged
+     * @return The key of the entity, one value for each key attribute, the
+     * order attribute first
+     */
+    public Object [] getKey(T entity) {
+        final Object [] key = new Object[keyMembers.length];
+        for(int i=0; i<key.length; i++) {
+            key[i] = keyMembers[i] == null ? persistenceUnitUtil.getIdentifier(entity) :
+                    this.getValue(entity, keyMembers[i]);
+        }
+        return key;
+    }
+
+    private Object getValue(T entity, Member member) {
+        try{
+            if(member instanceof Field) {
+                final Field field = (Field)member;
+                field.setAccessible(true);
+                return field.get(entity);
+            }else{
+                final Method method = (Method)member;
+                method.setAccessible(true);
+                return method.invoke(entity);
+            }
+        }catch(IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Failed to read " + member.getName() + " of " + entityType.getName(), e);
+        }
+    }
+
+    /**
+     * @return The key of the last entity read, one value for each key
+     * attribute, or <code>null</code> if none has been read
+     */
+    public Object [] getLastKey() {
+        return lastKey == null ? null : lastKey.clone();
+    }
+
+    /**
+     * Starts reading after the given key, e.g the last key read by an earlier
+     * pager of the same type.
+     * @param key One value for each key attribute, the order attribute first
+     * @see #getLastKey()
+     */
+    public void startAfter(Object [] key) {
+        if(key.length != keyNames.length) {
+            throw new IllegalArgumentException("Expected " + keyNames.length + " key values, found: " + key.length);
+        }
+        this.lastKey = key.clone();
+    }
+
+    /**
+     * Stops reading after the given key, so that only the entities up to and
+     * including the key are read.
+     * @param key One value for each key attribute, the order attribute first
+     */
+    public void endAt(Object [] key) {
+        if(key.length != keyNames.length) {
+            throw new IllegalArgumentException("Expected " + keyNames.length + " key values, found: " + key.length);
+        }
+        this.endKey = key.clone();
+    }
+
+    /**
+     * Compares keys of the type paged, in the order in which they are read.
+     * @param key0 A key of the type paged
+     * @param key1 Another key of the type paged
+     * @return A negative number, zero or a positive number as the first key
+     * is before, the same as or after the second
+     */
+    public static int compareKeys(Object [] key0, Object [] key1) {
+        for(int i=0; i<key0.length; i++) {
+            final int n = ((Comparable)key0[i]).compareTo(key1[i]);
+            if(n != 0) {
+                return n;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The names of the key attributes, the order attribute first
+     */
+    public String [] getKeyNames() {
+        return keyNames.clone();
+    }
+}
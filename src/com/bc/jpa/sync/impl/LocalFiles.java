@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads and writes the small state files kept by syncs between runs.
+ */
+final class LocalFiles {
+
+    private LocalFiles() { }
+
+    static Object read(File file) throws IOException, ClassNotFoundException {
+        try(ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Writes to a temporary file which then replaces the file, so a failed
+     * write never leaves the file half written. The temporary file of a
+     * failed write is deleted.
+     */
+    static void write(File file, Object value) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try{
+            try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(temp))) {
+                out.writeObject(value);
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch(IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+}
@@ -23,14 +23,17 @@ import com.bc.jpa.util.JpaUtil;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.persistence.Persistence;
 
 /**
  * @author Chinomso Bassey Ikwuagwu on Oct 30, 2017 10:13:35 PM
@@ -48,8 +51,8 @@ public class MasterSlavePersistenceContextImpl implements  Serializable, MasterS
     public MasterSlavePersistenceContextImpl(PersistenceUnitContext masterContext, PersistenceUnitContext slaveContext) {
         this.master = Objects.requireNonNull(masterContext);
         this.slave = Objects.requireNonNull(slaveContext);
-        this.masterUpdaters = new LinkedHashMap<>();
-        this.slaveUpdaters = new LinkedHashMap<>();
+        this.masterUpdaters = new ConcurrentHashMap<>();
+        this.slaveUpdaters = new ConcurrentHashMap<>();
     }
     
     @Override
@@ -149,6 +152,93 @@ public class MasterSlavePersistenceContextImpl implements  Serializable, MasterS
         return slaveEntity;
     }
     
+    /**
+     * Captures the values of the slave columns of the master entity, without 
+     * modifying it. Unlike {@link #createSlave(java.lang.Object, java.lang.Class, java.lang.Class)}, 
+     * referenced entities are not copied but held by key, to be resolved 
+     * against the slave when the snapshot is applied.
+     * <p>
+     * This is called on the thread adding the update, where the master entity
+     * may be detached. A collection which is not loaded is thus left out of 
+     * the snapshot rather than loaded, and the column left unset when the 
+     * snapshot is applied.
+     * </p>
+     * @param masterEntity The master entity
+     * @return A snapshot of the slave entity corresponding to the master entity
+     * @see EntitySnapshot#toEntity(com.bc.jpa.EntityUpdater, javax.persistence.EntityManager) 
+     */
+    public EntitySnapshot toSnapshot(Object masterEntity) {
+        
+        final Class masterType = masterEntity.getClass();
+        final Class slaveType = this.getOtherTypeFromContext(slave, masterType, null);
+        if(slaveType == null) {
+            throw new UnsupportedOperationException("No slave type for: " + masterType);
+        }
+        
+        final EntityUpdater masterUpdater = this.getMasterUpdater(masterType);
+        final String [] columnNames = this.slave.getMetaData().getColumnNames(slaveType);
+        final Class [] refingClasses = master.getPersistenceContext().getEntityReference().getReferencingClasses(masterType);
+        final List<String> names = new ArrayList<>(columnNames.length);
+        final List<Object> values = new ArrayList<>(columnNames.length);
+        
+        for(String columnName : columnNames) {
+            
+            final Object masterValue = masterUpdater.getValue(masterEntity, columnName);
+            
+            final Object value;
+            if(masterValue == null || (refingClasses != null && 
+                    Arrays.asList(refingClasses).contains(masterValue.getClass()))) {
+                // As nulled by #removeManyToOnes
+                value = null;
+            }else if(masterValue instanceof Collection) {
+                value = this.toSnapshotValue(masterType, columnName, (Collection)masterValue);
+                if(value == null) {
+                    continue;
+                }
+            }else{
+                value = this.toSnapshotValue(masterValue);
+            }
+            
+            names.add(columnName);
+            values.add(value);
+        }
+        
+        return new EntitySnapshot(slaveType, masterUpdater.getId(masterEntity), 
+                names.toArray(new String[names.size()]), values.toArray());
+    }
+    
+    /**
+     * @return The snapshot of the collection, or null if it is not loaded
+     */
+    private EntitySnapshot.CollectionValue toSnapshotValue(
+            Class masterType, String columnName, Collection masterCollection) {
+        if(!Persistence.getPersistenceUtil().isLoaded(masterCollection)) {
+            logger.finer(() -> "Not loaded, so not captured: " + masterType.getName() + '#' + columnName);
+            return null;
+        }
+        try{
+            final Object [] elements = new Object[masterCollection.size()];
+            int j = 0;
+            for(Object e : masterCollection) {
+                elements[j++] = this.toSnapshotValue(e);
+            }
+            return new EntitySnapshot.CollectionValue(masterCollection.getClass(), elements);
+        }catch(RuntimeException e) {
+            // E.g the collection of a detached entity, loaded lazily
+            logger.log(Level.FINE, "Failed to capture: " + masterType.getName() + '#' + columnName, e);
+            return null;
+        }
+    }
+    
+    private Object toSnapshotValue(Object masterValue) {
+        final Class slaveType = this.getOtherTypeFromContext(slave, masterValue.getClass(), null);
+        if(slaveType == null) {
+            return masterValue;
+        }
+        final Object id = this.getMasterUpdater(masterValue.getClass()).getId(masterValue);
+        return id == null ? null : new EntityKey(slaveType, id);
+    }
+    
     private void removeManyToOnes(Object entity) {
         final Class refClass = entity.getClass();
 
@@ -169,13 +259,7 @@ public class MasterSlavePersistenceContextImpl implements  Serializable, MasterS
     }
 
     private Object newInstance(Class aClass) {
-        try{
-            final Object output = aClass.getConstructor().newInstance();
-            return output;
-        }catch(NoSuchMethodException | SecurityException | InstantiationException | 
-                IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return EntitySnapshot.newInstance(aClass);
     }
     
     public EntityUpdater getMasterUpdater(Class entityType) {
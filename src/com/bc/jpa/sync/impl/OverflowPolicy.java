@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+/**
+ * What to do with an update added when the number of pending updates has 
+ * reached capacity. Whatever the policy, at most the window size of pending 
+ * updates are held in memory. The rest are read back from the journal in order.
+ */
+public enum OverflowPolicy {
+    /**
+     * The producer waits, up to a timeout, for updates to be applied. If 
+     * there is still no capacity the update is rejected.
+     */
+    BLOCK, 
+    /**
+     * The update is rejected at once.
+     */
+    REJECT, 
+    /**
+     * The update is journaled regardless. Capacity is not enforced, the 
+     * backlog is limited only by disk space.
+     */
+    SPILL
+}
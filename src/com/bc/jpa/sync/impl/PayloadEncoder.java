@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encodes the entities, of one type, carried by pending updates.
+ * @param <T> The type of entity encoded
+ * @see PendingUpdateCodec#register(com.bc.jpa.sync.impl.PayloadEncoder) 
+ */
+public interface PayloadEncoder<T> {
+    
+    /**
+     * @return The id written ahead of each encoded entity. It must not change
+     * once records have been written with it.
+     */
+    int getTypeId();
+    
+    Class<T> getType();
+    
+    void encode(T entity, DataOutput out, PendingUpdateCodec codec) throws IOException;
+    
+    T decode(DataInput in, PendingUpdateCodec codec) throws IOException;
+}
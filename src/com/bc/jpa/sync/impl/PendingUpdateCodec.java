@@ -0,0 +1,485 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary encoding of pending updates, as journaled.
+ * <p>
+ * Layout: <code>[byte version][byte updateType][long timeCreated][payload]</code>,
+ * where the payload is <code>[short typeId][entity]</code> and the entity is 
+ * encoded by the {@link PayloadEncoder} registered for the type id. Entities
+ * without a registered encoder are written with Java serialization under 
+ * type id 0.
+ * </p>
+ * <p>
+ * {@link EntitySnapshot}s are written as a class name followed by column 
+ * name/value pairs, so records stay readable after columns are added or 
+ * removed. Values of common column types are written in a tagged binary 
+ * form, anything else with Java serialization.
+ * </p>
+ * <p>
+ * Records written by earlier versions, entirely with Java serialization, are 
+ * recognised by the serialization stream header and still read.
+ * </p>
+ */
+public class PendingUpdateCodec {
+    
+    public static final byte VERSION = 1;
+    
+    public static final int SERIALIZED_TYPE_ID = 0;
+    
+    public static final int SNAPSHOT_TYPE_ID = 1;
+    
+    public static final int FAILED_UPDATE_TYPE_ID = 2;
+    
+    public static final int STRING_TYPE_ID = 3;
+    
+    /**
+     * First byte of a Java serialization stream, i.e of records written by 
+     * earlier versions.
+     */
+    private static final byte STREAM_MAGIC_HIGH = (byte)0xAC;
+    
+    private static final byte NULL = 0, STRING = 1, INTEGER = 2, LONG = 3, 
+            DOUBLE = 4, FLOAT = 5, BOOLEAN = 6, SHORT = 7, BYTE = 8, CHARACTER = 9,
+            DATE = 10, SQL_DATE = 11, SQL_TIMESTAMP = 12, SQL_TIME = 13, 
+            BIG_DECIMAL = 14, BIG_INTEGER = 15, BYTES = 16, ENTITY_KEY = 17, 
+            COLLECTION = 18, SERIALIZED = 19;
+    
+    private final Map<Integer, PayloadEncoder> encodersById;
+    
+    private final Map<Class, PayloadEncoder> encodersByType;
+    
+    private final Map<String, Class> classes;
+
+    public PendingUpdateCodec() {
+        this.encodersById = new ConcurrentHashMap<>();
+        this.encodersByType = new ConcurrentHashMap<>();
+        this.classes = new ConcurrentHashMap<>();
+        this.register(new SnapshotEncoder());
+        this.register(new FailedUpdateEncoder());
+        this.register(new StringEncoder());
+    }
+    
+    /**
+     * @param encoder The encoder to use for entities of its type
+     * @return this codec
+     * @throws IllegalArgumentException If the type id of the encoder is 
+     * already registered for another type
+     */
+    public PendingUpdateCodec register(PayloadEncoder encoder) {
+        final int typeId = encoder.getTypeId();
+        if(typeId <= SERIALIZED_TYPE_ID || typeId > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Type id not in range 1 to " + Short.MAX_VALUE + ": " + typeId);
+        }
+        final PayloadEncoder existing = encodersById.putIfAbsent(typeId, encoder);
+        if(existing != null && !existing.getType().equals(encoder.getType())) {
+            throw new IllegalArgumentException("Type id " + typeId + " already registered for: " + existing.getType());
+        }
+        encodersById.put(typeId, encoder);
+        encodersByType.put(encoder.getType(), encoder);
+        return this;
+    }
+    
+    public byte [] encode(UpdateType updateType, long timeCreated, Object entity) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeByte(updateType.ordinal());
+        out.writeLong(timeCreated);
+        this.writePayload(entity, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    public PendingUpdate decode(long sequence, ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        final byte version = buffer.get(buffer.position());
+        if(version == STREAM_MAGIC_HIGH) {
+            return this.decodeSerialized(sequence, buffer);
+        }
+        if(version != VERSION) {
+            throw new StreamCorruptedException("Unsupported version: " + version);
+        }
+        final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+        in.readByte();
+        final UpdateType updateType = UpdateType.values()[in.readByte()];
+        final long timeCreated = in.readLong();
+        final Object entity = this.readPayload(in);
+        return new PendingUpdateImpl(sequence, timeCreated, updateType, entity);
+    }
+    
+    /**
+     * Decodes only the header of a record whose entity could not be decoded, 
+     * e.g because the class or encoder of the entity is missing, so that the 
+     * record can be set aside rather than lost.
+     * @param sequence The sequence of the record
+     * @param buffer The encoded record, from its position
+     * @return An update of the type and time created in the header, or a 
+     * MERGE if even the header cannot be read, whose entity is the encoded 
+     * record as a byte array
+     */
+    public PendingUpdate decodeHeader(long sequence, ByteBuffer buffer) {
+        final byte [] record = new byte[buffer.remaining()];
+        buffer.duplicate().get(record);
+        UpdateType updateType = UpdateType.MERGE;
+        long timeCreated = 0L;
+        if(record.length >= 10 && record[0] == VERSION && record[1] >= 0 && record[1] < UpdateType.values().length) {
+            updateType = UpdateType.values()[record[1]];
+            timeCreated = ByteBuffer.wrap(record, 2, 8).getLong();
+        }else if(record.length > 0 && record[0] == STREAM_MAGIC_HIGH) {
+            try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record))) {
+                updateType = (UpdateType)ois.readObject();
+                timeCreated = ois.readLong();
+            }catch(IOException | ClassNotFoundException | ClassCastException ignored) {
+                // Set aside as a MERGE; the record itself is kept as is
+            }
+        }
+        return new PendingUpdateImpl(sequence, timeCreated, updateType, record);
+    }
+    
+    private PendingUpdate decodeSerialized(long sequence, ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        try(ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(buffer))) {
+            final UpdateType updateType = (UpdateType)ois.readObject();
+            final long timeCreated = ois.readLong();
+            final Object entity = ois.readObject();
+            return new PendingUpdateImpl(sequence, timeCreated, updateType, entity);
+        }
+    }
+    
+    public void writePayload(Object entity, DataOutput out) throws IOException {
+        final PayloadEncoder encoder = encodersByType.get(entity.getClass());
+        if(encoder == null) {
+            out.writeShort(SERIALIZED_TYPE_ID);
+            this.writeSerialized(entity, out);
+        }else{
+            out.writeShort(encoder.getTypeId());
+            encoder.encode(entity, out, this);
+        }
+    }
+    
+    public Object readPayload(DataInput in) throws IOException {
+        final int typeId = in.readShort();
+        if(typeId == SERIALIZED_TYPE_ID) {
+            return this.readSerialized(in);
+        }
+        final PayloadEncoder encoder = encodersById.get(typeId);
+        if(encoder == null) {
+            throw new StreamCorruptedException("No encoder registered for type id: " + typeId);
+        }
+        return encoder.decode(in, this);
+    }
+    
+    /**
+     * Writes a tagged value. Values of common column types are written in 
+     * binary form, anything else with Java serialization.
+     * @param value The value to write
+     * @param out The output to write to
+     * @throws IOException 
+     */
+    public void writeValue(Object value, DataOutput out) throws IOException {
+        if(value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        final Class type = value.getClass();
+        if(type == String.class) {
+            out.writeByte(STRING);
+            this.writeString((String)value, out);
+        }else if(type == Integer.class) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer)value);
+        }else if(type == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long)value);
+        }else if(type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double)value);
+        }else if(type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float)value);
+        }else if(type == Boolean.class) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean)value);
+        }else if(type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeShort((Short)value);
+        }else if(type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte)value);
+        }else if(type == Character.class) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character)value);
+        }else if(type == java.util.Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((java.util.Date)value).getTime());
+        }else if(type == java.sql.Date.class) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((java.sql.Date)value).getTime());
+        }else if(type == java.sql.Timestamp.class) {
+            out.writeByte(SQL_TIMESTAMP);
+            out.writeLong(((java.sql.Timestamp)value).getTime());
+            out.writeInt(((java.sql.Timestamp)value).getNanos());
+        }else if(type == java.sql.Time.class) {
+            out.writeByte(SQL_TIME);
+            out.writeLong(((java.sql.Time)value).getTime());
+        }else if(type == BigDecimal.class) {
+            out.writeByte(BIG_DECIMAL);
+            this.writeString(value.toString(), out);
+        }else if(type == BigInteger.class) {
+            out.writeByte(BIG_INTEGER);
+            this.writeString(value.toString(), out);
+        }else if(type == byte[].class) {
+            out.writeByte(BYTES);
+            this.writeBytes((byte[])value, out);
+        }else if(type == EntityKey.class) {
+            out.writeByte(ENTITY_KEY);
+            final EntityKey key = (EntityKey)value;
+            out.writeUTF(key.getEntityType().getName());
+            this.writeValue(key.getEntityId(), out);
+        }else if(type == EntitySnapshot.CollectionValue.class) {
+            out.writeByte(COLLECTION);
+            final EntitySnapshot.CollectionValue collection = (EntitySnapshot.CollectionValue)value;
+            out.writeUTF(collection.getCollectionType().getName());
+            out.writeInt(collection.getElements().length);
+            for(Object element : collection.getElements()) {
+                this.writeValue(element, out);
+            }
+        }else{
+            out.writeByte(SERIALIZED);
+            this.writeSerialized(value, out);
+        }
+    }
+    
+    public Object readValue(DataInput in) throws IOException {
+        final byte tag = in.readByte();
+        switch(tag) {
+            case NULL: return null;
+            case STRING: return this.readString(in);
+            case INTEGER: return in.readInt();
+            case LONG: return in.readLong();
+            case DOUBLE: return in.readDouble();
+            case FLOAT: return in.readFloat();
+            case BOOLEAN: return in.readBoolean();
+            case SHORT: return in.readShort();
+            case BYTE: return in.readByte();
+            case CHARACTER: return in.readChar();
+            case DATE: return new java.util.Date(in.readLong());
+            case SQL_DATE: return new java.sql.Date(in.readLong());
+            case SQL_TIMESTAMP: 
+                final java.sql.Timestamp timestamp = new java.sql.Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case SQL_TIME: return new java.sql.Time(in.readLong());
+            case BIG_DECIMAL: return new BigDecimal(this.readString(in));
+            case BIG_INTEGER: return new BigInteger(this.readString(in));
+            case BYTES: return this.readBytes(in);
+            case ENTITY_KEY: 
+                final Class entityType = this.getClass(in.readUTF());
+                return new EntityKey(entityType, this.readValue(in));
+            case COLLECTION:
+                final Class collectionType = this.getClass(in.readUTF());
+                final Object [] elements = new Object[in.readInt()];
+                for(int i=0; i<elements.length; i++) {
+                    elements[i] = this.readValue(in);
+                }
+                return new EntitySnapshot.CollectionValue(collectionType, elements);
+            case SERIALIZED: return this.readSerialized(in);
+            default: throw new StreamCorruptedException("Unknown value tag: " + tag);
+        }
+    }
+    
+    /**
+     * Unlike {@link DataOutput#writeUTF(java.lang.String)}, not limited to 
+     * 64K bytes.
+     */
+    public void writeString(String value, DataOutput out) throws IOException {
+        this.writeBytes(value.getBytes(StandardCharsets.UTF_8), out);
+    }
+    
+    public String readString(DataInput in) throws IOException {
+        return new String(this.readBytes(in), StandardCharsets.UTF_8);
+    }
+    
+    private void writeBytes(byte [] bytes, DataOutput out) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private byte [] readBytes(DataInput in) throws IOException {
+        final byte [] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+    
+    private void writeSerialized(Object value, DataOutput out) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try(ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(value);
+        }
+        this.writeBytes(bytes.toByteArray(), out);
+    }
+    
+    private Object readSerialized(DataInput in) throws IOException {
+        try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(this.readBytes(in)))) {
+            return ois.readObject();
+        }catch(ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    public Class getClass(String name) throws IOException {
+        Class type = classes.get(name);
+        if(type == null) {
+            try{
+                type = Class.forName(name, false, this.getClassLoader());
+            }catch(ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            classes.put(name, type);
+        }
+        return type;
+    }
+    
+    private ClassLoader getClassLoader() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return contextClassLoader == null ? PendingUpdateCodec.class.getClassLoader() : contextClassLoader;
+    }
+    
+    private static final class SnapshotEncoder implements PayloadEncoder<EntitySnapshot> {
+        @Override
+        public int getTypeId() { return SNAPSHOT_TYPE_ID; }
+        @Override
+        public Class<EntitySnapshot> getType() { return EntitySnapshot.class; }
+        @Override
+        public void encode(EntitySnapshot snapshot, DataOutput out, PendingUpdateCodec codec) throws IOException {
+            out.writeUTF(snapshot.getEntityType().getName());
+            codec.writeValue(snapshot.getEntityId(), out);
+            final int count = snapshot.getColumnCount();
+            out.writeShort(count);
+            for(int i=0; i<count; i++) {
+                out.writeUTF(snapshot.getColumnName(i));
+                codec.writeValue(snapshot.getValue(i), out);
+            }
+        }
+        @Override
+        public EntitySnapshot decode(DataInput in, PendingUpdateCodec codec) throws IOException {
+            final Class entityType = codec.getClass(in.readUTF());
+            final Object entityId = codec.readValue(in);
+            final int count = in.readShort();
+            final String [] columnNames = new String[count];
+            final Object [] values = new Object[count];
+            for(int i=0; i<count; i++) {
+                columnNames[i] = in.readUTF().intern();
+                values[i] = codec.readValue(in);
+            }
+            return new EntitySnapshot(entityType, entityId, columnNames, values);
+        }
+    }
+    
+    private static final class FailedUpdateEncoder implements PayloadEncoder<FailedUpdateImpl> {
+        @Override
+        public int getTypeId() { return FAILED_UPDATE_TYPE_ID; }
+        @Override
+        public Class<FailedUpdateImpl> getType() { return FailedUpdateImpl.class; }
+        @Override
+        public void encode(FailedUpdateImpl failedUpdate, DataOutput out, PendingUpdateCodec codec) throws IOException {
+            out.writeByte(failedUpdate.getUpdateType().ordinal());
+            out.writeLong(failedUpdate.getTimeCreated());
+            codec.writePayload(failedUpdate.getEntity(), out);
+            codec.writeString(failedUpdate.getFailure(), out);
+            out.writeInt(failedUpdate.getAttempts());
+            out.writeLong(failedUpdate.getTimeFailed());
+        }
+        @Override
+        public FailedUpdateImpl decode(DataInput in, PendingUpdateCodec codec) throws IOException {
+            final UpdateType updateType = UpdateType.values()[in.readByte()];
+            final long timeCreated = in.readLong();
+            final Object entity = codec.readPayload(in);
+            final String failure = codec.readString(in);
+            final int attempts = in.readInt();
+            final long timeFailed = in.readLong();
+            return new FailedUpdateImpl(-1L, timeCreated, updateType, entity, failure, attempts, timeFailed);
+        }
+    }
+    
+    private static final class StringEncoder implements PayloadEncoder<String> {
+        @Override
+        public int getTypeId() { return STRING_TYPE_ID; }
+        @Override
+        public Class<String> getType() { return String.class; }
+        @Override
+        public void encode(String value, DataOutput out, PendingUpdateCodec codec) throws IOException {
+            codec.writeString(value, out);
+        }
+        @Override
+        public String decode(DataInput in, PendingUpdateCodec codec) throws IOException {
+            return codec.readString(in);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte [] b, int off, int len) {
+            if(len == 0) {
+                return 0;
+            }
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.util.Objects;
  */
 public class PendingUpdateImpl implements PendingUpdate, Serializable {
 
+    private final long sequence;
+    
     private final long timeCreated;
     
     private final UpdateType updateType;
@@ -32,11 +34,25 @@ public class PendingUpdateImpl implements PendingUpdate, Serializable {
     private final Object entity;
 
     public PendingUpdateImpl(UpdateType updateType, Object entity) {
-        this.timeCreated = System.currentTimeMillis();
-        this.updateType = updateType;
+        this(-1L, updateType, entity);
+    }
+
+    public PendingUpdateImpl(long sequence, UpdateType updateType, Object entity) {
+        this(sequence, System.currentTimeMillis(), updateType, entity);
+    }
+
+    public PendingUpdateImpl(long sequence, long timeCreated, UpdateType updateType, Object entity) {
+        this.sequence = sequence;
+        this.timeCreated = timeCreated;
+        this.updateType = Objects.requireNonNull(updateType);
         this.entity = Objects.requireNonNull(entity);
     }
 
+    @Override
+    public long getSequence() {
+        return sequence;
+    }
+
     @Override
     public long getTimeCreated() {
         return timeCreated;
@@ -51,4 +67,10 @@ public class PendingUpdateImpl implements PendingUpdate, Serializable {
     public Object getEntity() {
         return entity;
     }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "{sequence=" + sequence + 
+                ", updateType=" + updateType + ", entity=" + entity + '}';
+    }
 }
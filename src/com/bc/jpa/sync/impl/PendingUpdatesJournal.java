@@ -0,0 +1,677 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A segmented, append-only journal of {@link PendingUpdate}s.
+ * <p>
+ * Segments are fixed-size, memory mapped files. Each update is appended as a
+ * single record to the active segment. A new segment is started once a record
+ * does not fit in the active one. Records are forced to disk in groups, either
+ * on every append (flush interval &lt;= 0) or at most once per flush interval
+ * by a background flusher.
+ * </p>
+ * <p>
+ * Records are {@link #read(long, int) read} lazily, straight from the mapped
+ * segments, so opening a journal does not depend on the size of the backlog.
+ * Consumers {@link #acknowledge(long) acknowledge} records by sequence once
+ * they have been applied. Segments containing only acknowledged records are
+ * deleted.
+ * </p>
+ * <p>
+ * Record layout: <code>[int length][long sequence][payload][int crc]</code>.
+ * The length is written last, so a zero length marks the end of a segment.
+ * The payload is encoded by a {@link PendingUpdateCodec}.
+ * </p>
+ * <p>
+ * Sequences increase from record to record, but need not be consecutive: a
+ * sequence is assigned to every update appended, even one whose record could
+ * not be written, e.g because the update could not be encoded. Readers step
+ * over such gaps to the next record.
+ * </p>
+ */
+public class PendingUpdatesJournal implements AutoCloseable {
+
+    private transient static final Logger logger = Logger.getLogger(PendingUpdatesJournal.class.getName());
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CONSUMER_OFFSET_FILENAME = "consumer.offset";
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int TRAILER_SIZE = 4;
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final long flushIntervalMillis;
+
+    private final PendingUpdateCodec codec;
+
+    private final TreeMap<Long, File> segments;
+
+    private final FileChannel offsetChannel;
+
+    /**
+     * Only if created by this journal.
+     */
+    private final ScheduledExecutorService flusher;
+
+    private final ScheduledFuture<?> flushTask;
+
+    private MappedByteBuffer activeBuffer;
+
+    private long activeSegment;
+
+    private ByteBuffer readBuffer;
+
+    private long readSegment;
+
+    private long readSequence;
+
+    private long nextSequence;
+
+    private long consumerOffset;
+
+    private volatile long syncedSequence;
+
+    private volatile boolean closed;
+
+    public PendingUpdatesJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public PendingUpdatesJournal(File dir, int segmentSize, long flushIntervalMillis) throws IOException {
+        this(dir, segmentSize, flushIntervalMillis, new PendingUpdateCodec());
+    }
+
+    public PendingUpdatesJournal(File dir, int segmentSize, long flushIntervalMillis, 
+            PendingUpdateCodec codec) throws IOException {
+        this(dir, segmentSize, flushIntervalMillis, codec, null);
+    }
+
+    /**
+     * @param dir The directory of the journal
+     * @param segmentSize The size of each segment file
+     * @param flushIntervalMillis How often appended records are forced to 
+     * disk, or 0 to force each as it is appended
+     * @param codec Encodes updates as records
+     * @param scheduler If not null, flushes are scheduled on this, which may 
+     * be shared, rather than on a thread created for this journal
+     * @throws IOException
+     */
+    public PendingUpdatesJournal(File dir, int segmentSize, long flushIntervalMillis, 
+            PendingUpdateCodec codec, ScheduledExecutorService scheduler) throws IOException {
+        this.dir = Objects.requireNonNull(dir);
+        this.codec = Objects.requireNonNull(codec);
+        if(segmentSize <= HEADER_SIZE + TRAILER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir);
+        }
+
+        this.segments = new TreeMap<>();
+        final File [] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if(files != null) {
+            for(File f : files) {
+                final String name = f.getName();
+                this.segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), f);
+            }
+        }
+
+        this.offsetChannel = FileChannel.open(new File(dir, CONSUMER_OFFSET_FILENAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final ByteBuffer offsetBuffer = ByteBuffer.allocate(8);
+        this.consumerOffset = this.offsetChannel.read(offsetBuffer, 0) == 8 ? offsetBuffer.getLong(0) : 0L;
+
+        // Sequences up to the consumer offset were assigned, even if the last
+        // of them were not written
+        this.nextSequence = Math.max(this.recoverTail(), this.consumerOffset);
+        this.syncedSequence = this.nextSequence;
+        this.readSequence = -1L;
+
+        if(flushIntervalMillis > 0) {
+            this.flusher = scheduler != null ? null : Executors.newSingleThreadScheduledExecutor((r) -> {
+                final Thread thread = new Thread(r, this.getClass().getName()+"_FlusherThread");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flushTask = (scheduler != null ? scheduler : flusher).scheduleWithFixedDelay(this::flushSilently,
+                    flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }else{
+            this.flusher = null;
+            this.flushTask = null;
+        }
+
+        logger.log(Level.FINE, "Journal: {0}, segments: {1}, consumer offset: {2}, next sequence: {3}",
+                new Object[]{dir, segments.size(), consumerOffset, nextSequence});
+    }
+
+    /**
+     * Maps the last segment for writing, positioned after its last valid
+     * record. Anything after that record is left over from an interrupted
+     * write and is cleared. Records are written one after the other, so only
+     * the last may be incomplete; gaps in the sequences of valid records are
+     * not taken for corruption.
+     * @return The sequence to assign to the next appended record
+     */
+    private long recoverTail() throws IOException {
+        if(segments.isEmpty()) {
+            return this.consumerOffset;
+        }
+        final Map.Entry<Long, File> last = segments.lastEntry();
+        final int size = (int)Math.max(last.getValue().length(), segmentSize);
+        this.activeSegment = last.getKey();
+        this.activeBuffer = this.map(last.getValue(), FileChannel.MapMode.READ_WRITE, size);
+        long next = last.getKey();
+        int position = 0;
+        int length;
+        while((length = recordLength(activeBuffer, position, next)) > 0) {
+            next = recordSequence(activeBuffer, position) + 1;
+            position += length;
+        }
+        if(size - position >= 4 && activeBuffer.getInt(position) != 0) {
+            logger.log(Level.WARNING, "Clearing corrupt tail of {0} from position {1}",
+                    new Object[]{last.getValue(), position});
+            clear(activeBuffer, position, size);
+            activeBuffer.force();
+        }
+        activeBuffer.position(position);
+        return next;
+    }
+
+    /**
+     * Reads records straight from the mapped segments, continuing from where
+     * the last read stopped when possible. Records are located while holding 
+     * the monitor of this journal, but decoded after releasing it, so that 
+     * appends are not held up. Records which cannot be decoded are skipped.
+     * @param fromSequence The sequence of the first record to read
+     * @param max The maximum number of records to read
+     * @return Up to <code>max</code> updates, in the order they were appended
+     * @throws IOException
+     * @see #read(long, int, java.util.List, java.util.function.BiConsumer) 
+     */
+    public List<PendingUpdate> read(long fromSequence, int max) throws IOException {
+        final List<PendingUpdate> output = new ArrayList<>();
+        this.read(fromSequence, max, output, null);
+        return output;
+    }
+
+    /**
+     * Reads records as {@link #read(long, int)} does, also reporting records 
+     * which cannot be decoded, e.g because the class or encoder of their 
+     * entity is missing, and how far the records were scanned.
+     * @param fromSequence The sequence of the first record to read
+     * @param max The maximum number of records to read
+     * @param output Receives up to <code>max</code> updates, in the order 
+     * they were appended
+     * @param unreadable Receives each record which could not be decoded, as 
+     * given by {@link PendingUpdateCodec#decodeHeader(long, java.nio.ByteBuffer)},
+     * with the failure. May be <code>null</code>
+     * @return The sequence after the last record read, whether or not it 
+     * could be decoded, or <code>fromSequence</code> if no record was read
+     * @throws IOException
+     */
+    public long read(long fromSequence, int max, List<PendingUpdate> output, 
+            BiConsumer<PendingUpdate, Exception> unreadable) throws IOException {
+        final long [] sequences;
+        final List<ByteBuffer> payloads;
+        final long scanned;
+        synchronized(this) {
+            if(closed || fromSequence >= nextSequence || max < 1) {
+                return fromSequence;
+            }
+            if(readBuffer == null || readSequence != fromSequence) {
+                this.seek(Math.max(fromSequence, consumerOffset));
+                if(readBuffer == null) {
+                    return fromSequence;
+                }
+            }
+            sequences = new long[(int)Math.min(max, nextSequence - readSequence)];
+            payloads = this.readPayloads(sequences);
+            scanned = payloads.isEmpty() ? fromSequence : readSequence;
+        }
+        for(int i=0; i<payloads.size(); i++) {
+            final ByteBuffer payload = payloads.get(i);
+            try{
+                output.add(codec.decode(sequences[i], payload.duplicate()));
+            }catch(ClassNotFoundException | IOException e) {
+                logger.log(Level.WARNING, "Unreadable record " + sequences[i] + " in " + dir, e);
+                if(unreadable != null) {
+                    unreadable.accept(codec.decodeHeader(sequences[i], payload), e);
+                }
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * @param sequences Receives the sequence of each record read
+     * @return The payloads of up to <code>sequences.length</code> records 
+     * from the read position, which is advanced past them.
+     */
+    private List<ByteBuffer> readPayloads(long [] sequences) throws IOException {
+        final List<ByteBuffer> output = new ArrayList<>(sequences.length);
+        while(output.size() < sequences.length && readSequence < nextSequence) {
+            final int position = readBuffer.position();
+            final int length = recordLength(readBuffer, position, readSequence);
+            if(length < 1) {
+                final Long nextSegment = segments.higherKey(readSegment);
+                if(nextSegment == null) {
+                    break;
+                }
+                this.openForRead(nextSegment);
+                readSequence = nextSegment;
+                continue;
+            }
+            final ByteBuffer payload = (ByteBuffer)readBuffer.duplicate()
+                    .position(position + HEADER_SIZE)
+                    .limit(position + length - TRAILER_SIZE);
+            sequences[output.size()] = recordSequence(readBuffer, position);
+            readSequence = sequences[output.size()] + 1;
+            output.add(payload);
+            readBuffer.position(position + length);
+        }
+        return output;
+    }
+
+    private void seek(long sequence) throws IOException {
+        final Long segment = segments.floorKey(sequence);
+        if(segment == null) {
+            readBuffer = null;
+            return;
+        }
+        this.openForRead(segment);
+        readSequence = segment;
+        int length;
+        while(readSequence < sequence && (length = recordLength(readBuffer, readBuffer.position(), readSequence)) > 0) {
+            final long recordSequence = recordSequence(readBuffer, readBuffer.position());
+            if(recordSequence >= sequence) {
+                break;
+            }
+            readBuffer.position(readBuffer.position() + length);
+            readSequence = recordSequence + 1;
+        }
+        // Any records skipped over were not written
+        readSequence = Math.max(readSequence, sequence);
+    }
+
+    private void openForRead(long segment) throws IOException {
+        if(activeBuffer != null && segment == activeSegment) {
+            readBuffer = activeBuffer.duplicate();
+        }else{
+            final File file = segments.get(segment);
+            readBuffer = this.map(file, FileChannel.MapMode.READ_ONLY, file.length());
+        }
+        readBuffer.position(0);
+        readSegment = segment;
+    }
+
+    /**
+     * Appends a record for the specified update. If the record could not be
+     * written, a warning is logged and the update is returned anyway, though
+     * it will not survive a restart. Its sequence is then left as a gap which
+     * readers step over, so the records appended after it are not lost.
+     * @param updateType The type of update
+     * @param entity The entity to update
+     * @return The pending update, carrying the sequence assigned to it
+     */
+    public PendingUpdate append(UpdateType updateType, Object entity) {
+        return this.append(updateType, entity, null);
+    }
+    
+    /**
+     * @param updateType The type of update
+     * @param entity The entity to update
+     * @param onSequenced If not null, called with the update as soon as its
+     * sequence is assigned, before the record may be read. Must not block.
+     * @return The pending update, carrying the sequence assigned to it
+     * @see #append(com.bc.jpa.sync.PendingUpdate.UpdateType, java.lang.Object) 
+     */
+    public PendingUpdate append(UpdateType updateType, Object entity, Consumer<PendingUpdate> onSequenced) {
+        final long timeCreated = System.currentTimeMillis();
+        // Encoded outside the lock
+        byte [] payload;
+        try{
+            payload = codec.encode(updateType, timeCreated, entity);
+        }catch(IOException e) {
+            logger.log(Level.WARNING, "Failed to encode: " + entity, e);
+            payload = null;
+        }
+        final PendingUpdate pendingUpdate;
+        synchronized(this) {
+            pendingUpdate = new PendingUpdateImpl(nextSequence++, timeCreated, updateType, entity);
+            if(onSequenced != null) {
+                onSequenced.accept(pendingUpdate);
+            }
+            if(closed) {
+                logger.log(Level.WARNING, "Journal closed, update will not be persisted: {0}", pendingUpdate);
+                return pendingUpdate;
+            }
+            if(payload == null) {
+                return pendingUpdate;
+            }
+            try{
+                final int length = HEADER_SIZE + payload.length + TRAILER_SIZE;
+                if(activeBuffer == null || activeBuffer.remaining() < length + 4) {
+                    this.roll(pendingUpdate.getSequence(), length + 4);
+                }
+                this.writeRecord(activeBuffer, pendingUpdate.getSequence(), payload);
+            }catch(IOException e) {
+                logger.log(Level.WARNING, "Failed to journal: " + pendingUpdate, e);
+                return pendingUpdate;
+            }
+            if(flusher != null) {
+                return pendingUpdate;
+            }
+        }
+        this.sync(pendingUpdate.getSequence());
+        return pendingUpdate;
+    }
+
+    /**
+     * Group commit. Forces the active segment unless a concurrent caller has
+     * already forced a range including the specified sequence.
+     */
+    private void sync(long sequence) {
+        if(syncedSequence > sequence) {
+            return;
+        }
+        synchronized(offsetChannel) {
+            if(syncedSequence > sequence) {
+                return;
+            }
+            this.flushSilently();
+        }
+    }
+
+    private void roll(long firstSequence, int minSize) throws IOException {
+        if(activeBuffer != null) {
+            activeBuffer.force();
+        }
+        final File segment = new File(dir, String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+        activeBuffer = this.map(segment, FileChannel.MapMode.READ_WRITE, Math.max(minSize, segmentSize));
+        activeSegment = firstSequence;
+        segments.put(firstSequence, segment);
+        logger.log(Level.FINE, "Rolled journal segment: {0}", segment);
+    }
+
+    private MappedByteBuffer map(File file, FileChannel.MapMode mode, long size) throws IOException {
+        final boolean write = mode == FileChannel.MapMode.READ_WRITE;
+        try(FileChannel channel = write ?
+                FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(mode, 0, size);
+        }
+    }
+
+    private void writeRecord(ByteBuffer buffer, long sequence, byte [] payload) {
+        final int position = buffer.position();
+        buffer.putLong(position + 4, sequence);
+        ((ByteBuffer)buffer.duplicate().position(position + HEADER_SIZE)).put(payload);
+        buffer.putInt(position + HEADER_SIZE + payload.length, checksum(sequence, ByteBuffer.wrap(payload)));
+        buffer.putInt(position, payload.length);
+        buffer.position(position + HEADER_SIZE + payload.length + TRAILER_SIZE);
+    }
+
+    /**
+     * Acknowledges that all records up to and including the specified
+     * sequence have been applied.
+     * @param sequence The sequence of the last applied record
+     */
+    public synchronized void acknowledge(long sequence) {
+        if(closed || sequence < consumerOffset) {
+            return;
+        }
+        consumerOffset = sequence + 1;
+        try{
+            offsetChannel.write(ByteBuffer.allocate(8).putLong(0, consumerOffset), 0);
+        }catch(IOException e) {
+            logger.log(Level.WARNING, "Failed to update consumer offset of " + dir, e);
+        }
+        this.deleteConsumedSegments();
+    }
+
+    private void deleteConsumedSegments() {
+        final Iterator<Map.Entry<Long, File>> iter = segments.entrySet().iterator();
+        while(iter.hasNext()) {
+            final Map.Entry<Long, File> entry = iter.next();
+            final Long nextFirst = segments.higherKey(entry.getKey());
+            if(nextFirst == null || nextFirst > consumerOffset) {
+                break;
+            }
+            if(readBuffer != null && readSegment == entry.getKey()) {
+                readBuffer = null;
+            }
+            if(entry.getValue().delete()) {
+                logger.log(Level.FINE, "Deleted consumed journal segment: {0}", entry.getValue());
+            }else{
+                logger.log(Level.WARNING, "Failed to delete consumed journal segment: {0}", entry.getValue());
+            }
+            iter.remove();
+        }
+    }
+
+    /**
+     * Discards all records from the specified sequence onwards.
+     * @param fromSequence The sequence of the first record to discard
+     * @throws IOException
+     */
+    public synchronized void truncate(long fromSequence) throws IOException {
+        if(closed || fromSequence >= nextSequence) {
+            return;
+        }
+        final long from = Math.max(fromSequence, consumerOffset);
+        final Long first = segments.floorKey(from);
+        if(first != null) {
+            for(Long key : new ArrayList<>(segments.tailMap(first, false).keySet())) {
+                final File segment = segments.remove(key);
+                if(!segment.delete()) {
+                    logger.log(Level.WARNING, "Failed to delete truncated journal segment: {0}", segment);
+                }
+            }
+            if(activeSegment != first) {
+                activeBuffer.force();
+                final File file = segments.get(first);
+                activeBuffer = this.map(file, FileChannel.MapMode.READ_WRITE, Math.max(file.length(), segmentSize));
+                activeSegment = first;
+            }
+            long sequence = first;
+            int position = 0;
+            int length;
+            while((length = recordLength(activeBuffer, position, sequence)) > 0 &&
+                    recordSequence(activeBuffer, position) < from) {
+                sequence = recordSequence(activeBuffer, position) + 1;
+                position += length;
+            }
+            int end = position;
+            while((length = recordLength(activeBuffer, end, sequence)) > 0) {
+                sequence = recordSequence(activeBuffer, end) + 1;
+                end += length;
+            }
+            clear(activeBuffer, position, end);
+            activeBuffer.position(position);
+            activeBuffer.force();
+        }
+        readBuffer = null;
+        nextSequence = from;
+        syncedSequence = Math.min(syncedSequence, from);
+    }
+
+    public void flush() throws IOException {
+        final MappedByteBuffer buffer;
+        final long sequence;
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            buffer = activeBuffer;
+            sequence = nextSequence;
+        }
+        if(buffer != null) {
+            buffer.force();
+        }
+        offsetChannel.force(false);
+        if(sequence > syncedSequence) {
+            syncedSequence = sequence;
+        }
+    }
+
+    void flushSilently() {
+        try{
+            this.flush();
+        }catch(IOException e) {
+            logger.log(Level.WARNING, "Failed to flush journal: " + dir, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if(flushTask != null) {
+            flushTask.cancel(false);
+        }
+        if(flusher != null) {
+            flusher.shutdown();
+        }
+        this.flushSilently();
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            activeBuffer = null;
+            readBuffer = null;
+            try{
+                offsetChannel.close();
+            }catch(IOException e) {
+                logger.log(Level.WARNING, "Error closing journal: " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * @return The length of the record at the specified position or 0 if
+     * there is no valid record at that position, with a sequence no less than 
+     * the minimum.
+     */
+    private static int recordLength(ByteBuffer buffer, int position, long minSequence) {
+        final int limit = buffer.limit();
+        if(limit - position < HEADER_SIZE + TRAILER_SIZE) {
+            return 0;
+        }
+        final int payloadLength = buffer.getInt(position);
+        if(payloadLength < 1 || limit - position - HEADER_SIZE - TRAILER_SIZE < payloadLength) {
+            return 0;
+        }
+        final long sequence = buffer.getLong(position + 4);
+        if(sequence < minSequence) {
+            return 0;
+        }
+        final ByteBuffer payload = (ByteBuffer)buffer.duplicate()
+                .position(position + HEADER_SIZE)
+                .limit(position + HEADER_SIZE + payloadLength);
+        if(checksum(sequence, payload) != buffer.getInt(position + HEADER_SIZE + payloadLength)) {
+            return 0;
+        }
+        return HEADER_SIZE + payloadLength + TRAILER_SIZE;
+    }
+
+    private static long recordSequence(ByteBuffer buffer, int position) {
+        return buffer.getLong(position + 4);
+    }
+
+    private static int checksum(long sequence, ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        for(int i=56; i>=0; i-=8) {
+            crc.update((int)(sequence >>> i));
+        }
+        crc.update(payload);
+        return (int)crc.getValue();
+    }
+
+    private static void clear(ByteBuffer buffer, int from, int to) {
+        for(int i=from; i<to; i++) {
+            buffer.put(i, (byte)0);
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public PendingUpdateCodec getCodec() {
+        return codec;
+    }
+
+    public synchronized long getConsumerOffset() {
+        return consumerOffset;
+    }
+
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * @return The number of records which have not been acknowledged
+     */
+    public synchronized long size() {
+        return nextSequence - consumerOffset;
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdatesManager;
+import com.bc.jpa.sync.RetryPolicy;
+import com.bc.jpa.sync.Updater;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Usage:
+ * <pre>
+ * PendingUpdatesManager pendingUpdatesManager = new PendingUpdatesManagerBuilder()
+ *         .file(dir)
+ *         .updater(new SlaveUpdater(masterSlaveContext))
+ *         .retryOnExceptionTest(new PersistenceCommunicationsLinkFailureTest())
+ *         .batchSize(100)
+ *         .build();
+ * </pre>
+ */
+public class PendingUpdatesManagerBuilder {
+
+    public static final int DEFAULT_WINDOW_SIZE = 1000;
+
+    public static final int DEFAULT_BATCH_SIZE = 1;
+
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 5_000;
+
+    static final String LEGACY_SNAPSHOT_SUFFIX = ".snapshot";
+
+    static final String DEAD_LETTER_DIRNAME = "dead-letters";
+
+    static final int DEAD_LETTER_SEGMENT_SIZE = 1024 * 1024;
+
+    private File file;
+
+    private PendingUpdatesJournal journal;
+
+    private PendingUpdatesJournal deadLetterJournal;
+
+    private int segmentSize = PendingUpdatesJournal.DEFAULT_SEGMENT_SIZE;
+
+    private long flushIntervalMillis = PendingUpdatesJournal.DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+    private PendingUpdateCodec codec;
+
+    private Updater updater;
+
+    private Predicate<Throwable> retryOnExceptionTest;
+
+    private RetryPolicy retryPolicy;
+
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private long batchWindowMillis;
+
+    private long capacity = Long.MAX_VALUE;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.SPILL;
+
+    private long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+
+    private Function<Object, Object> entityIdProvider;
+
+    private Function<Object, Object> snapshotProvider;
+
+    private int partitions = 1;
+    
+    private int [] laneWeights = {1};
+    
+    private DrainScheduler drainScheduler;
+    
+    private int maxConcurrency;
+    
+    private Function<Class, Integer> laneProvider;
+    
+    private Function<Class, Integer> typeWeightProvider;
+
+    private boolean jmxEnabled;
+
+    private ThreadFactory threadFactory;
+
+    private File legacySnapshot;
+
+    private boolean buildAttempted;
+
+    public PendingUpdatesManager build() {
+        return new PendingUpdatesManagerImpl(this.validate());
+    }
+
+    PendingUpdatesManagerBuilder validate() {
+        if(buildAttempted) {
+            throw new IllegalStateException("build() method may only be called once");
+        }
+        buildAttempted = true;
+        Objects.requireNonNull(updater);
+        if(windowSize < 1) {
+            throw new IllegalArgumentException("Window size < 1");
+        }
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size < 1");
+        }
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity < 1");
+        }
+        Objects.requireNonNull(overflowPolicy);
+        if(partitions < 1) {
+            throw new IllegalArgumentException("Partitions < 1");
+        }
+        if(partitions > 1 && entityIdProvider == null && snapshotProvider == null) {
+            throw new IllegalArgumentException("An entity id or snapshot provider is required to partition updates");
+        }
+        if(maxConcurrency < 0) {
+            throw new IllegalArgumentException("Max concurrency < 0");
+        }
+        if(laneWeights == null || laneWeights.length < 1) {
+            throw new IllegalArgumentException("No lanes");
+        }
+        for(int weight : laneWeights) {
+            if(weight < 1) {
+                throw new IllegalArgumentException("Lane weight < 1");
+            }
+        }
+        if(laneWeights.length > 1 && laneProvider == null) {
+            throw new IllegalArgumentException("A lane provider is required for more than one lane");
+        }
+        if(retryPolicy == null) {
+            retryPolicy = new BackoffRetryPolicy();
+        }
+        if(codec == null) {
+            codec = new PendingUpdateCodec();
+        }
+        if(journal == null) {
+            journal = this.openJournal(Objects.requireNonNull(file));
+        }
+        if(deadLetterJournal == null) {
+            try{
+                // Failures are rare, so each is forced to disk as it is added
+                deadLetterJournal = new PendingUpdatesJournal(
+                        new File(journal.getDir(), DEAD_LETTER_DIRNAME), DEAD_LETTER_SEGMENT_SIZE, 0, codec);
+            }catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * If the file is not a directory, it is taken to be a snapshot saved by
+     * an earlier version. It is moved aside so that the journal directory can
+     * take its place, and its contents are then imported into the journal.
+     */
+    private PendingUpdatesJournal openJournal(File file) {
+        final File legacy = new File(file.getPath() + LEGACY_SNAPSHOT_SUFFIX);
+        if(file.isFile() && !file.renameTo(legacy)) {
+            throw new RuntimeException("Failed to move " + file + " to " + legacy);
+        }
+        if(legacy.isFile()) {
+            legacySnapshot = legacy;
+        }
+        try{
+            return new PendingUpdatesJournal(file, segmentSize, flushIntervalMillis, codec, 
+                    drainScheduler == null ? null : drainScheduler.getTimer());
+        }catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param file The journal directory
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder file(File file) {
+        this.file = file;
+        return this;
+    }
+
+    /**
+     * @param journal The journal to which pending updates are appended.
+     * If specified, the file, segment size and flush interval are not used.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder journal(PendingUpdatesJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * @param deadLetterJournal The journal to which updates which failed for 
+     * a reason which is not to be retried are appended. Defaults to a journal
+     * in a sub-directory of the journal directory.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder deadLetterJournal(PendingUpdatesJournal deadLetterJournal) {
+        this.deadLetterJournal = deadLetterJournal;
+        return this;
+    }
+
+    public PendingUpdatesManagerBuilder segmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * @param flushIntervalMillis Interval at which appended updates are forced
+     * to disk. If &lt;= 0, each update is forced to disk as it is added.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder flushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @param codec Encodes journaled updates. Register a {@link PayloadEncoder} 
+     * with it for compact encoding of entity types other than snapshots.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder codec(PendingUpdateCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * @param updater The updater used to apply pending updates
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder updater(Updater updater) {
+        this.updater = updater;
+        return this;
+    }
+
+    /**
+     * @param retryOnExceptionTest Tests if an update which failed should be retried
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder retryOnExceptionTest(Predicate<Throwable> retryOnExceptionTest) {
+        this.retryOnExceptionTest = retryOnExceptionTest;
+        return this;
+    }
+
+    /**
+     * @param retryPolicy Decides when updates which failed for a retryable 
+     * reason are attempted again. Defaults to a {@link BackoffRetryPolicy}. 
+     * Use {@link RetryPolicy#IMMEDIATE} to retry at once.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder retryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * @param windowSize The maximum number of pending updates held in memory,
+     * for each lane. Updates beyond these are read from the journal as the 
+     * window drains.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder windowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * @param batchSize The maximum number of pending updates applied in one
+     * slave transaction. Defaults to 1, which applies each update in its own 
+     * transaction. Larger batches are only applied atomically by an updater 
+     * which overrides {@link Updater#apply(java.util.List)}.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param batchWindowMillis How long to wait for a batch to fill up
+     * before applying whatever has arrived. If &lt;= 0, the updates available
+     * are applied without waiting.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder batchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+        return this;
+    }
+
+    /**
+     * If specified, pending updates of the same entity are coalesced. A MERGE 
+     * replaces an earlier MERGE, a REMOVE replaces earlier MERGEs and a REMOVE 
+     * cancels out an earlier PERSIST.
+     * <pre>
+     * builder.entityIdProvider((entity) -&gt; 
+     *         masterContext.getEntityUpdater(entity.getClass()).getId(entity));
+     * </pre>
+     * @param entityIdProvider Provides the id of an entity
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder entityIdProvider(Function<Object, Object> entityIdProvider) {
+        this.entityIdProvider = entityIdProvider;
+        return this;
+    }
+
+    /**
+     * If specified, each entity added is replaced by a snapshot of the 
+     * columns the slave needs, and only the snapshot is journaled and held 
+     * in memory. Updates of {@link EntitySnapshot}s are coalesced by the id 
+     * captured in the snapshot, with no need for an entity id provider.
+     * <pre>
+     * builder.snapshotProvider(masterSlaveContext::toSnapshot);
+     * </pre>
+     * @param snapshotProvider Provides the snapshot of an entity
+     * @return this builder
+     * @see MasterSlavePersistenceContextImpl#toSnapshot(java.lang.Object) 
+     */
+    public PendingUpdatesManagerBuilder snapshotProvider(Function<Object, Object> snapshotProvider) {
+        this.snapshotProvider = snapshotProvider;
+        return this;
+    }
+
+    /**
+     * @param capacity The maximum number of pending updates, both in memory
+     * and in the journal. Enforced unless the overflow policy is 
+     * {@link OverflowPolicy#SPILL SPILL}.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder capacity(long capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    /**
+     * @param overflowPolicy What to do with updates added when at capacity.
+     * Defaults to {@link OverflowPolicy#SPILL SPILL}.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder overflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * @param blockTimeoutMillis How long a producer waits for capacity when
+     * the overflow policy is {@link OverflowPolicy#BLOCK BLOCK}.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder blockTimeoutMillis(long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param jmxEnabled If <code>true</code>, the metrics of the manager are 
+     * registered as an MBean with the platform MBean server, under a name 
+     * made from the journal directory. Rates and maximum waits are only 
+     * sampled while enabled, on the timer of the drain scheduler if there is 
+     * one, else on a timer thread of the manager. Defaults to <code>false</code>.
+     * @return this builder
+     * @see PendingUpdatesMetricsMBean
+     */
+    public PendingUpdatesManagerBuilder jmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+
+    /**
+     * Updates are partitioned by entity, and each partition applied by its own 
+     * worker. Updates of the same entity are applied in the order added, while 
+     * those of different entities may be applied concurrently.
+     * @param partitions The number of partitions. Requires an 
+     * {@link #entityIdProvider(java.util.function.Function) entityIdProvider}
+     * or a {@link #snapshotProvider(java.util.function.Function) snapshotProvider}
+     * if &gt; 1.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder partitions(int partitions) {
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * Creates the worker thread of each partition. By default, daemon threads 
+     * are created. To use virtual threads where available:
+     * <pre>
+     * builder.threadFactory(Thread.ofVirtual().name("slave-updates-", 0).factory());
+     * </pre>
+     * @param threadFactory The factory for worker threads
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder threadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        return this;
+    }
+
+    /**
+     * @param drainScheduler If set, the partitions of the manager take turns 
+     * on this, which may be shared with other managers, instead of each 
+     * having a dedicated thread. The {@link #threadFactory(java.util.concurrent.ThreadFactory) threadFactory}
+     * is then not used, and the journal is flushed on the timer of the 
+     * scheduler.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder drainScheduler(DrainScheduler drainScheduler) {
+        this.drainScheduler = drainScheduler;
+        return this;
+    }
+
+    /**
+     * @param maxConcurrency The maximum number of partitions of the manager 
+     * having a turn on the {@link #drainScheduler(com.bc.jpa.sync.impl.DrainScheduler) drainScheduler}
+     * at once. Defaults to the number of partitions.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder maxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Lanes share the slave by weighted round robin: each turn, a lane of 
+     * weight <code>w</code> has up to <code>w</code> updates applied. Each 
+     * lane also has its own share of the window, so updates of one lane are 
+     * loaded from the journal ahead of a backlog in another. E.g for 
+     * interactive and bulk lanes:
+     * <pre>
+     * builder.lanes(8, 1).laneProvider((type) -&gt; type == Audit.class ? 1 : 0);
+     * </pre>
+     * @param laneWeights The weight of each lane. Defaults to a single lane.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder lanes(int... laneWeights) {
+        this.laneWeights = laneWeights;
+        return this;
+    }
+
+    /**
+     * @param laneProvider Provides the lane of each entity type, as an index 
+     * into the {@link #lanes(int...) lanes}. For a snapshot, the type is that 
+     * of the slave entity. Updates of a type for which <code>null</code> is 
+     * returned go to the last lane.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder laneProvider(Function<Class, Integer> laneProvider) {
+        this.laneProvider = laneProvider;
+        return this;
+    }
+
+    /**
+     * Entity types in the same lane share it by weighted round robin, so that
+     * a backlog of one type does not hold up updates of others. Updates of 
+     * the same type are still applied in order.
+     * @param typeWeightProvider Provides the weight of each entity type. If 
+     * not set, each lane is applied strictly in order.
+     * @return this builder
+     */
+    public PendingUpdatesManagerBuilder typeWeightProvider(Function<Class, Integer> typeWeightProvider) {
+        this.typeWeightProvider = typeWeightProvider;
+        return this;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    PendingUpdatesJournal getJournal() {
+        return journal;
+    }
+
+    PendingUpdatesJournal getDeadLetterJournal() {
+        return deadLetterJournal;
+    }
+
+    Updater getUpdater() {
+        return updater;
+    }
+
+    Predicate<Throwable> getRetryOnExceptionTest() {
+        return retryOnExceptionTest;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    long getBatchWindowMillis() {
+        return batchWindowMillis;
+    }
+
+    Function<Object, Object> getEntityIdProvider() {
+        return entityIdProvider;
+    }
+
+    Function<Object, Object> getSnapshotProvider() {
+        return snapshotProvider;
+    }
+
+    DrainScheduler getDrainScheduler() {
+        return drainScheduler;
+    }
+
+    int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    int [] getLaneWeights() {
+        return laneWeights.clone();
+    }
+
+    Function<Class, Integer> getLaneProvider() {
+        return laneProvider;
+    }
+
+    Function<Class, Integer> getTypeWeightProvider() {
+        return typeWeightProvider;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    int getPartitions() {
+        return partitions;
+    }
+
+    ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    File getLegacySnapshot() {
+        return legacySnapshot;
+    }
+}
@@ -27,14 +27,49 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.LinkedList;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.persistence.EntityNotFoundException;
+import com.bc.jpa.sync.FailedUpdate;
+import com.bc.jpa.sync.PartiallyAppliedException;
 import com.bc.jpa.sync.PendingUpdatesManager;
+import com.bc.jpa.sync.RetryPolicy;
+import com.bc.jpa.sync.Savepoint;
 import java.io.File;
 import java.util.Collections;
 import java.util.List;
@@ -51,135 +86,1487 @@ public class PendingUpdatesManagerImpl implements PendingUpdatesManager {
     
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     
+    /**
+     * Shared by producers while appending, so that they do not exclude each 
+     * other, and held exclusively by {@link #rollbackToMarkedPosition()} 
+     * while the journal is truncated. Never held while acquiring {@link #lock}.
+     */
+    private final ReadWriteLock appendGate = new ReentrantReadWriteLock();
+    
+    private final Condition capacityAvailable = lock.writeLock().newCondition();
+    
+    /**
+     * Signalled each time updates are acknowledged.
+     */
+    private final Condition acknowledged = lock.writeLock().newCondition();
+    
     private final File file;
     
-    private final Updater updater;
+    private final PendingUpdatesJournal journal;
+    
+    /**
+     * Updates which failed for a reason which is not to be retried.
+     */
+    private final PendingUpdatesJournal deadLetterJournal;
+    
+    private final Updater updater;
+    
+    private final Predicate<Throwable> retryOnExceptionTest;
+    
+    private final RetryPolicy retryPolicy;
+    
+    private final int windowSize;
+    
+    private final int batchSize;
+    
+    private final long batchWindowMillis;
+    
+    private final Function<Object, Object> entityIdProvider;
+    
+    private final Function<Object, Object> snapshotProvider;
+    
+    private final Function<Class, Integer> laneProvider;
+    
+    private final int [] laneWeights;
+    
+    private final ToIntFunction<Class> typeWeights;
+    
+    private final long capacity;
+    
+    private final OverflowPolicy overflowPolicy;
+    
+    private final long blockTimeoutMillis;
+    
+    private final AtomicLong rejectedCount = new AtomicLong();
+    
+    /**
+     * The number of producers which have found capacity for an update, but 
+     * not yet appended it. Counted with the pending updates, so that 
+     * concurrent producers do not take the same free slot.
+     */
+    private final AtomicLong reserved = new AtomicLong();
+    
+    /**
+     * The number of times each update was put back for a dependency, by 
+     * sequence. 
+     * @see #isDependencyFailure(com.bc.jpa.sync.PendingUpdate, java.lang.Throwable) 
+     */
+    private final ConcurrentMap<Long, Integer> dependencyRetries = new ConcurrentHashMap<>();
+    
+    /**
+     * The interval at which rates and maximum waits are sampled.
+     * @see PendingUpdatesMetrics#sample() 
+     */
+    public static final long METRICS_WINDOW_MILLIS = 10_000;
+    
+    private final PendingUpdatesMetrics metrics;
+    
+    /**
+     * Samples the metrics when JMX is enabled and there is no 
+     * {@link #drainScheduler} timer.
+     */
+    private final ScheduledExecutorService metricsTimer;
+    
+    /**
+     * <code>null</code> unless JMX is enabled.
+     */
+    private final ScheduledFuture<?> metricsSampling;
+    
+    private final ThreadFactory threadFactory;
+    
+    /**
+     * If not null, partitions take turns on this instead of each having a 
+     * dedicated thread.
+     */
+    private final DrainScheduler drainScheduler;
+    
+    /**
+     * The maximum number of partitions having a turn on the 
+     * {@link #drainScheduler} at once.
+     */
+    private final int maxConcurrency;
+    
+    /**
+     * The partitions waiting for a turn on the {@link #drainScheduler}.
+     */
+    private final Queue<Partition> ready = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The number of partitions having a turn on the {@link #drainScheduler}.
+     */
+    private final AtomicInteger running = new AtomicInteger();
+    
+    private static final long APPLIED = -1;
+    
+    private static final long STOPPED = Long.MIN_VALUE;
+    
+    /**
+     * How long to wait before offering a partition again, after the 
+     * {@link #drainScheduler} rejected it.
+     */
+    private static final long REDISPATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    
+    /**
+     * How many times an update which may depend on another entity is put 
+     * back, after violating an integrity constraint, before it is set aside.
+     */
+    private static final int DEPENDENCY_RETRIES = 5;
+    
+    /**
+     * How long a partition waits before applying again an update put back 
+     * for a dependency, multiplied by the number of times it was put back.
+     */
+    private static final long DEPENDENCY_RETRY_DELAY_MILLIS = 200;
+    
+    /**
+     * Updates are partitioned by entity. Each partition is drained by its own 
+     * worker, so updates of the same entity are applied in order while those 
+     * of different entities may be applied concurrently.
+     */
+    private final Partition [] partitions;
+    
+    /**
+     * The updates loaded from the journal, at most {@link #windowSize} of them, 
+     * keyed by sequence. This includes updates which are being applied.
+     */
+    private final NavigableMap<Long, PendingUpdate> pendingUpdates;
+    
+    /**
+     * The updates in the window for each entity, in order of sequence. Updates
+     * which are being applied are not included, as they may not be coalesced.
+     */
+    private final Map<EntityKey, Deque<PendingUpdate>> pendingUpdatesByKey;
+    
+    /**
+     * Updates added by producers, which do not take the lock to add them.
+     * @see #drainInbox() 
+     */
+    private final Queue<Arrival> inbox = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Updates drained from the inbox ahead of an earlier sequence which has 
+     * not yet arrived.
+     */
+    private final NavigableMap<Long, PendingUpdate> arrivals = new TreeMap<>();
+    
+    /**
+     * Odd while a rollback is in progress. Arrivals tagged with any other 
+     * generation than the current are dropped.
+     */
+    private volatile long generation;
+    
+    /**
+     * The sequence of the next journal record to load into the window. The
+     * lowest of the {@link #laneCursors}.
+     */
+    private long loadedSequence;
+    
+    /**
+     * For each lane, the sequence from which records of the lane are yet to 
+     * be loaded. A lane whose share of the window is full is left behind 
+     * while records of other lanes are loaded ahead of it.
+     */
+    private final long [] laneCursors;
+    
+    /**
+     * The sequence up to which records which could not be decoded have been 
+     * set aside as failed updates. Lanes left behind scan records again, but 
+     * each is set aside only once.
+     */
+    private long unreadableSequence;
+    
+    /**
+     * The number of updates of each lane in the window.
+     */
+    private final int [] laneDepths;
+    
+    private long markSequence = -1;
+    
+    /**
+     * The slice of each thread holding a savepoint. Removed when the outermost
+     * savepoint is released or closed.
+     */
+    private final ThreadLocal<Slice> slices = new ThreadLocal<>();
+    
+    /**
+     * The futures of updates added with {@link #addAsync(com.bc.jpa.sync.PendingUpdate.UpdateType, java.lang.Object)},
+     * by sequence.
+     */
+    private final ConcurrentNavigableMap<Long, Completion> completions = new ConcurrentSkipListMap<>();
+    
+    /**
+     * @param file The journal directory. If this is a file, it is taken to be
+     * a snapshot saved by an earlier version and its contents are imported
+     * into the journal.
+     * @param updater The updater used to apply pending updates
+     * @param retryOnExceptionTest Tests if an update which failed should be retried
+     * @see PendingUpdatesManagerBuilder
+     */
+    public PendingUpdatesManagerImpl(File file, Updater updater, Predicate<Throwable> retryOnExceptionTest) {
+        this(new PendingUpdatesManagerBuilder()
+                .file(file)
+                .updater(updater)
+                .retryOnExceptionTest(retryOnExceptionTest)
+                .validate());
+    }
+    
+    PendingUpdatesManagerImpl(PendingUpdatesManagerBuilder builder) {
+        this.journal = Objects.requireNonNull(builder.getJournal());
+        this.file = journal.getDir();
+        this.deadLetterJournal = Objects.requireNonNull(builder.getDeadLetterJournal());
+        this.updater = Objects.requireNonNull(builder.getUpdater());
+        this.retryOnExceptionTest = builder.getRetryOnExceptionTest();
+        this.retryPolicy = Objects.requireNonNull(builder.getRetryPolicy());
+        this.windowSize = builder.getWindowSize();
+        this.batchSize = Math.min(builder.getBatchSize(), windowSize);
+        this.batchWindowMillis = builder.getBatchWindowMillis();
+        this.entityIdProvider = builder.getEntityIdProvider();
+        this.snapshotProvider = builder.getSnapshotProvider();
+        this.laneProvider = builder.getLaneProvider();
+        this.laneWeights = builder.getLaneWeights();
+        final Function<Class, Integer> typeWeightProvider = builder.getTypeWeightProvider();
+        this.typeWeights = typeWeightProvider == null ? null : (type) -> {
+            final Integer weight = typeWeightProvider.apply(type);
+            return weight == null ? 1 : weight;
+        };
+        this.capacity = builder.getCapacity();
+        this.overflowPolicy = Objects.requireNonNull(builder.getOverflowPolicy());
+        this.blockTimeoutMillis = builder.getBlockTimeoutMillis();
+        this.threadFactory = builder.getThreadFactory() == null ? 
+                this.createDefaultThreadFactory() : builder.getThreadFactory();
+        this.drainScheduler = builder.getDrainScheduler();
+        this.maxConcurrency = builder.getMaxConcurrency() < 1 ? 
+                builder.getPartitions() : builder.getMaxConcurrency();
+        this.partitions = new Partition[builder.getPartitions()];
+        for(int i=0; i<partitions.length; i++) {
+            partitions[i] = new Partition(i);
+        }
+        this.pendingUpdates = new TreeMap<>();
+        this.pendingUpdatesByKey = new HashMap<>();
+        this.loadedSequence = journal.getConsumerOffset();
+        this.laneCursors = new long[laneWeights.length];
+        Arrays.fill(laneCursors, loadedSequence);
+        this.unreadableSequence = loadedSequence;
+        this.laneDepths = new int[laneWeights.length];
+        this.metrics = new PendingUpdatesMetrics(this);
+        if(builder.isJmxEnabled()) {
+            try{
+                this.metrics.register();
+            }catch(IllegalStateException e) {
+                this.journal.close();
+                this.deadLetterJournal.close();
+                throw e;
+            }
+        }
+        // Only sampled for JMX, so that no thread is added for metrics otherwise
+        this.metricsTimer = !builder.isJmxEnabled() || drainScheduler != null ? null : 
+                Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                    final Thread thread = new Thread(runnable, this.getClass().getName()+"_MetricsThread");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.metricsSampling = !builder.isJmxEnabled() ? null : 
+                (metricsTimer != null ? metricsTimer : drainScheduler.getTimer())
+                .scheduleAtFixedRate(metrics::sample, METRICS_WINDOW_MILLIS, METRICS_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        logger.log(Level.INFO, "Pending updates count: {0}", journal.size());
+        
+        this.init();
+        
+        if(builder.getLegacySnapshot() != null) {
+            this.importLegacySnapshot(builder.getLegacySnapshot());
+        }
+    }
+    
+    private void importLegacySnapshot(File legacy) {
+        final List<PendingUpdate> snapshot = (List<PendingUpdate>)this.readSilently(legacy, Collections.EMPTY_LIST);
+        logger.log(Level.INFO, "Importing {0} pending updates from: {1}", new Object[]{snapshot.size(), legacy});
+        for(PendingUpdate pendingUpdate : snapshot) {
+            this.add(pendingUpdate.getUpdateType(), pendingUpdate.getEntity());
+        }
+        this.journal.flushSilently();
+        if(!legacy.delete()) {
+            logger.log(Level.WARNING, "Failed to delete: {0}", legacy);
+        }
+    }
+    
+    private void init() {
+        for(Partition partition : partitions) {
+            if(drainScheduler == null) {
+                final Thread thread = threadFactory.newThread(partition);
+                thread.start();
+            }else{
+                // For any updates left in the journal
+                partition.wakeup();
+            }
+        }
+    }
+    
+    /**
+     * Gives turns on the {@link #drainScheduler} to ready partitions, up to 
+     * {@link #maxConcurrency} at once. Does not block.
+     */
+    private void dispatch() {
+        while(!ready.isEmpty()) {
+            final int count = running.get();
+            if(count >= maxConcurrency) {
+                return;
+            }
+            if(!running.compareAndSet(count, count + 1)) {
+                continue;
+            }
+            final Partition partition = ready.poll();
+            if(partition == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            try{
+                drainScheduler.execute(partition::drain);
+            }catch(RejectedExecutionException e) {
+                running.decrementAndGet();
+                logger.log(Level.WARNING, "Drain scheduler rejected partition of: " + file + 
+                        ", retrying in " + TimeUnit.NANOSECONDS.toMillis(REDISPATCH_DELAY_NANOS) + " millis", e);
+                // Not on ready, so must not be marked scheduled, or no wakeup would requeue it
+                partition.scheduled.set(false);
+                partition.wakeupAfter(REDISPATCH_DELAY_NANOS);
+                return;
+            }
+        }
+    }
+    
+    private ThreadFactory createDefaultThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+        return (runnable) -> {
+            final Thread thread = new Thread(runnable, 
+                    this.getClass().getName()+"_LooperThread-"+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    private class Partition implements Runnable {
+        
+        private final int index;
+        
+        /**
+         * The updates in this partition which are waiting to be applied.
+         */
+        private final FairQueue queue = new FairQueue(laneWeights, typeWeights);
+        
+        private volatile Thread thread;
+        
+        /**
+         * When shared, set while this partition is waiting for or has a turn 
+         * on the {@link #drainScheduler}.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        
+        /**
+         * When shared, set when woken, so that a wakeup while a turn is 
+         * ending is not lost.
+         */
+        private volatile boolean signalled;
+        
+        /**
+         * When shared, the time a pending timer will wake this partition, or 0.
+         */
+        private volatile long timerDeadline;
+        
+        /**
+         * How long to park for when {@link #nextBatch()} returns an empty 
+         * batch, or 0 to park until woken.
+         */
+        private long parkNanos;
+        
+        /**
+         * When a batch which has not filled up is to be applied anyway, or 0.
+         */
+        private long batchDeadline;
+        
+        /**
+         * When an update put back for a dependency may be applied again, or 0.
+         */
+        private long dependencyDeadline;
+        
+        private Partition(int index) {
+            this.index = index;
+        }
+        
+        /**
+         * Wakes the worker of this partition. Does not block, so may be 
+         * called by producers without holding the lock.
+         */
+        private void wakeup() {
+            if(drainScheduler == null) {
+                final Thread t = thread;
+                if(t != null) {
+                    LockSupport.unpark(t);
+                }
+            }else{
+                signalled = true;
+                if(scheduled.compareAndSet(false, true)) {
+                    ready.add(this);
+                    dispatch();
+                }
+            }
+        }
+        
+        /**
+         * The worker of a dedicated thread.
+         */
+        @Override
+        public void run() {
+            
+            this.thread = Thread.currentThread();
+
+            while(true) {
+                
+                final long wait = step();
+                
+                if(wait == STOPPED) {
+                    break;
+                }
+                
+                if(wait == APPLIED) {
+                    continue;
+                }
+                
+                if(wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }else{
+                    LockSupport.park(this);
+                }
+
+                if(Thread.interrupted()) {
+
+                    logger.warning("Interrupted while waiting for pending updates");
+
+                    break;
+                }
+            }
+        }
+        
+        /**
+         * The worker of a turn on the {@link #drainScheduler}. Instead of 
+         * parking, the turn ends and the partition is scheduled again when 
+         * woken.
+         */
+        private void drain() {
+            try{
+                for(int i=0; i<drainScheduler.getBatchesPerTurn(); i++) {
+                    
+                    signalled = false;
+                    
+                    final long wait = step();
+                    
+                    if(wait == STOPPED) {
+                        return;
+                    }
+                    
+                    if(wait != APPLIED) {
+                        if(wait > 0) {
+                            this.wakeupAfter(wait);
+                        }
+                        scheduled.set(false);
+                        // Woken while the turn was ending
+                        if(signalled && scheduled.compareAndSet(false, true)) {
+                            ready.add(this);
+                        }
+                        return;
+                    }
+                }
+                // Give other partitions a turn
+                ready.add(this);
+            }finally{
+                running.decrementAndGet();
+                dispatch();
+            }
+        }
+        
+        private void wakeupAfter(long nanos) {
+            final long deadline = System.nanoTime() + nanos;
+            final long pending = timerDeadline;
+            // An earlier timer will do, as the wait is reconsidered on waking
+            if(pending == 0 || deadline - pending < 0) {
+                timerDeadline = deadline;
+                try{
+                    drainScheduler.schedule(() -> {
+                        timerDeadline = 0;
+                        this.wakeup();
+                    }, nanos);
+                }catch(RejectedExecutionException e) {
+                    timerDeadline = 0;
+                    logger.log(Level.WARNING, "Drain scheduler closed, partition of: " + file + 
+                            " will not be woken", e);
+                }
+            }
+        }
+        
+        /**
+         * Selects and applies one batch. The write lock is only held while 
+         * selecting the batch and while recording its outcome. It is 
+         * released while the batch is applied, so that other partitions and 
+         * producers are not held up by the slave.
+         * @return {@link #APPLIED} if a batch was applied, {@link #STOPPED} 
+         * if a stop was requested, otherwise how long to wait, in nanos, 
+         * before the next step, or 0 to wait until woken.
+         */
+        private long step() {
+
+            final List<PendingUpdate> batch;
+
+            try{
+
+                lock.writeLock().lock();
+
+                batch = nextBatch();
+
+            }finally{
+
+                lock.writeLock().unlock();
+            }
+
+            if(batch == null) {
+                return STOPPED;
+            }
+
+            if(batch.isEmpty()) {
+
+                completeAcknowledged();
+
+                return parkNanos;
+            }
+
+            int resolved = 0;
+
+            try{
+
+                resolved = apply(this, batch, 1);
+
+            }catch(RuntimeException e) {
+
+                logger.log(Level.WARNING, "Unexpected error", e);
+
+            }finally{
+
+                try{
+
+                    lock.writeLock().lock();
+
+                    complete(batch, resolved);
+
+                }finally{
+
+                    lock.writeLock().unlock();
+                }
+
+                completeApplied(batch, resolved);
+            }
+            
+            return APPLIED;
+        }
+
+        /**
+         * Must be called while holding the write lock. Does not block.
+         * <p>
+         * Once an update is available, the batch is held back for up to the 
+         * batch window for it to fill up.
+         * </p>
+         * @return Up to batch size updates from the head of this partition, or 
+         * <code>null</code> if a stop was requested. The updates returned are 
+         * in flight until passed to {@link #complete(java.util.List, int)}.
+         * An empty list is returned if paused, if there are no updates, if 
+         * the batch window is still open or if the retry policy does not yet 
+         * permit another attempt. {@link #parkNanos} is then set to how long 
+         * to wait before asking again.
+         */
+        private List<PendingUpdate> nextBatch() {
+            if(stopRequested) {
+                return null;
+            }
+            drainInbox();
+            parkNanos = 0;
+            if(paused) {
+                return Collections.EMPTY_LIST;
+            }
+            if(queue.size() < batchSize || laneCursors.length > 1) {
+                loadFromJournal();
+            }
+            if(queue.isEmpty()) {
+                batchDeadline = 0;
+                return Collections.EMPTY_LIST;
+            }
+            if(batchWindowMillis > 0 && queue.size() < batchSize) {
+                final long now = System.nanoTime();
+                if(batchDeadline == 0) {
+                    batchDeadline = now + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+                }
+                if(batchDeadline - now > 0) {
+                    parkNanos = batchDeadline - now;
+                    return Collections.EMPTY_LIST;
+                }
+            }
+            batchDeadline = 0;
+            if(dependencyDeadline != 0) {
+                final long remaining = dependencyDeadline - System.nanoTime();
+                if(remaining > 0) {
+                    parkNanos = remaining;
+                    return Collections.EMPTY_LIST;
+                }
+                dependencyDeadline = 0;
+            }
+            final long delay = retryPolicy.acquirePermit();
+            if(delay > 0) {
+                parkNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+                return Collections.EMPTY_LIST;
+            }
+            final List<PendingUpdate> batch = new ArrayList<>(Math.min(batchSize, queue.size()));
+            final long now = System.currentTimeMillis();
+            while(batch.size() < batchSize && !queue.isEmpty()) {
+                final PendingUpdate pendingUpdate = queue.poll();
+                removeFromIndex(pendingUpdate);
+                metrics.onDispatched(getLane(pendingUpdate), now - pendingUpdate.getTimeCreated());
+                batch.add(pendingUpdate);
+            }
+            return batch;
+        }
+        
+        /**
+         * Dequeues the resolved updates and returns the rest to the head of 
+         * this partition to be retried. Must be called while holding the write 
+         * lock.
+         */
+        private void complete(List<PendingUpdate> batch, int resolved) {
+            if(!batch.isEmpty()) {
+                if(dependencyDeadline != 0) {
+                    // Not a failure to reach the slave
+                    metrics.onRetry();
+                }else if(resolved < batch.size()) {
+                    retryPolicy.onFailure();
+                    metrics.onRetry();
+                }else if(retryPolicy.getState() != RetryPolicy.State.CLOSED) {
+                    retryPolicy.onSuccess();
+                    // Partitions waiting out a delay may resume at once
+                    for(Partition partition : partitions) {
+                        partition.wakeup();
+                    }
+                }else{
+                    retryPolicy.onSuccess();
+                }
+            }
+            for(PendingUpdate pendingUpdate : batch.subList(0, resolved)) {
+                removeFromWindow(pendingUpdate);
+            }
+            for(int i=batch.size()-1; i>=resolved; i--) {
+                final PendingUpdate pendingUpdate = batch.get(i);
+                // Not if rolled back while in flight
+                if(pendingUpdates.containsKey(pendingUpdate.getSequence())) {
+                    queue.put(getLane(pendingUpdate), getEntityType(pendingUpdate), pendingUpdate);
+                    final EntityKey key = getKey(pendingUpdate);
+                    if(key != null) {
+                        pendingUpdatesByKey.computeIfAbsent(key, (k) -> new ArrayDeque<>())
+                                .addFirst(pendingUpdate);
+                    }
+                }
+            }
+            if(resolved > 0) {
+                acknowledgeResolved();
+                loadFromJournal();
+                capacityAvailable.signalAll();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Partition#" + index + "{queued=" + queue.size() + '}';
+        }
+    }
+    
+    /**
+     * An update added by a producer, waiting to be moved into the window.
+     */
+    private static final class Arrival {
+        private final PendingUpdate pendingUpdate;
+        private final long generation;
+        private Arrival(PendingUpdate pendingUpdate, long generation) {
+            this.pendingUpdate = pendingUpdate;
+            this.generation = generation;
+        }
+    }
+    
+    /**
+     * Moves updates added by producers into the window, in sequence order. 
+     * Must be called while holding the write lock.
+     * <p>
+     * Producers may arrive out of sequence order, so later arrivals are held 
+     * until the gap is filled. Arrivals are dropped if the window is full, 
+     * if they were already loaded from the journal or if they were added 
+     * concurrently with a rollback. The journal is the source of truth, so 
+     * anything dropped which has not been rolled back is loaded from it later.
+     * Arrivals are also dropped while any lane has been left behind, as 
+     * they are then loaded by {@link #loadFromJournal()}.
+     * </p>
+     */
+    private void drainInbox() {
+        Arrival arrival;
+        while((arrival = inbox.poll()) != null) {
+            final long sequence = arrival.pendingUpdate.getSequence();
+            if(arrival.generation == generation && sequence >= loadedSequence) {
+                arrivals.put(sequence, arrival.pendingUpdate);
+            }
+        }
+        Map.Entry<Long, PendingUpdate> next;
+        while((next = arrivals.firstEntry()) != null) {
+            if(next.getKey() < loadedSequence) {
+                arrivals.pollFirstEntry();
+            }else if(next.getKey() == loadedSequence) {
+                if(!this.isLanesLevel() || laneDepths[this.getLane(next.getValue())] >= windowSize) {
+                    arrivals.clear();
+                    break;
+                }
+                arrivals.pollFirstEntry();
+                this.setLaneCursors(++loadedSequence);
+                if(!this.enqueue(next.getValue()) && pendingUpdates.isEmpty()) {
+                    this.acknowledgeResolved();
+                }
+            }else{
+                break;
+            }
+        }
+        if(arrivals.size() > windowSize) {
+            arrivals.clear();
+        }
+    }
+    
+    private boolean isLanesLevel() {
+        for(long cursor : laneCursors) {
+            if(cursor != loadedSequence) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void setLaneCursors(long sequence) {
+        Arrays.fill(laneCursors, sequence);
+    }
+    
+    /**
+     * Applies the batch in one call to {@link Updater#apply(java.util.List)}.
+     * If that fails for a reason which is not to be retried, the batch is 
+     * split in two and each half applied in turn, until the update(s) causing 
+     * the failure are isolated and set aside as failed updates. If the 
+     * updater reports that part of the batch was applied before it failed, 
+     * only the rest is retried or split.
+     * <p>
+     * An isolated update which may have failed only because an entity it 
+     * references has yet to reach the slave, e.g from another partition or 
+     * lane, is not set aside at once. It is put back at the head of its 
+     * partition, which waits a while before applying it again.
+     * </p>
+     * @param partition The partition of the batch
+     * @param batch The updates to apply
+     * @param attempt 1 for the first attempt, incremented as the batch is split
+     * @return The number of updates, from the head of the batch, which were 
+     * either applied or set aside. The rest are to be retried.
+     */
+    private int apply(Partition partition, List<PendingUpdate> batch, int attempt) {
+        if(batch.isEmpty()) {
+            return 0;
+        }
+        try{
+            
+            updater.apply(batch);
+            
+            final long time = System.currentTimeMillis();
+            for(PendingUpdate pendingUpdate : batch) {
+                metrics.onApplied(pendingUpdate, time);
+                if(!dependencyRetries.isEmpty()) {
+                    dependencyRetries.remove(pendingUpdate.getSequence());
+                }
+            }
+            
+            return batch.size();
+            
+        }catch(PartiallyAppliedException e) {
+            
+            final int applied = Math.min(e.getAppliedCount(), batch.size() - 1);
+            
+            final long time = System.currentTimeMillis();
+            for(PendingUpdate pendingUpdate : batch.subList(0, applied)) {
+                metrics.onApplied(pendingUpdate, time);
+            }
+            
+            if(retryOnExceptionTest != null && retryOnExceptionTest.test(e.getCause())) {
+                
+                return applied;
+            }
+            
+            // The update which failed was applied on its own
+            final PendingUpdate failed = batch.get(applied);
+            
+            if(this.deferForDependency(partition, failed, e.getCause())) {
+                
+                return applied;
+            }
+            
+            logger.log(Level.WARNING, "Failed to update remote entity: " + failed.getEntity(), e.getCause());
+            
+            this.deadLetter(failed, e.getCause(), attempt);
+            
+            return applied + 1 + this.apply(partition, batch.subList(applied + 1, batch.size()), attempt);
+            
+        }catch(Exception e) {
+            
+            if(retryOnExceptionTest != null && retryOnExceptionTest.test(e)) {
+                
+                return 0;
+                
+            }else if(batch.size() == 1) {
+                
+                if(this.deferForDependency(partition, batch.get(0), e)) {
+                    
+                    return 0;
+                }
+                
+                logger.log(Level.WARNING, "Failed to update remote entity: " + batch.get(0).getEntity(), e);
+                
+                this.deadLetter(batch.get(0), e, attempt);
+                
+                return 1;
+                
+            }else{
+                
+                logger.log(Level.FINE, "Failed to apply batch of {0}, splitting. {1}", new Object[]{batch.size(), e});
+                
+                final int mid = batch.size() / 2;
+                
+                final int resolved = this.apply(partition, batch.subList(0, mid), attempt + 1);
+                
+                return resolved < mid ? resolved : mid + this.apply(partition, batch.subList(mid, batch.size()), attempt + 1);
+            }
+        }
+    }
+    
+    /**
+     * @return <code>true</code> if the update is to be put back at the head 
+     * of the partition, which is then set to wait before applying it again
+     */
+    private boolean deferForDependency(Partition partition, PendingUpdate pendingUpdate, Throwable e) {
+        if(!this.isDependencyFailure(pendingUpdate, e)) {
+            return false;
+        }
+        final int retries = dependencyRetries.merge(pendingUpdate.getSequence(), 1, Integer::sum);
+        if(retries > DEPENDENCY_RETRIES) {
+            return false;
+        }
+        logger.log(Level.FINE, "Putting back {0}, attempt {1}, possibly applied before an entity it references. {2}", 
+                new Object[]{pendingUpdate, retries, e});
+        partition.dependencyDeadline = System.nanoTime() + 
+                TimeUnit.MILLISECONDS.toNanos(DEPENDENCY_RETRY_DELAY_MILLIS * retries);
+        return true;
+    }
+    
+    /**
+     * Updates of different entities may be in different partitions and lanes,
+     * and so be applied in a different order than they were added. An update 
+     * may thus violate an integrity constraint, e.g a foreign key, because an
+     * entity it references is yet to be persisted.
+     * @return <code>true</code> if the failure is an integrity constraint 
+     * violation, or a referenced entity was not found, and the update may 
+     * reference another entity
+     */
+    private boolean isDependencyFailure(PendingUpdate pendingUpdate, Throwable e) {
+        if(pendingUpdate.getUpdateType() == UpdateType.REMOVE) {
+            return false;
+        }
+        final Object entity = pendingUpdate.getEntity();
+        if(entity instanceof EntitySnapshot && !((EntitySnapshot)entity).hasReferences()) {
+            return false;
+        }
+        for(Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if(t instanceof SQLIntegrityConstraintViolationException || t instanceof EntityNotFoundException) {
+                return true;
+            }
+            if(t instanceof SQLException) {
+                final String sqlState = ((SQLException)t).getSQLState();
+                // Class 23: integrity constraint violation
+                if(sqlState != null && sqlState.startsWith("23")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private void deadLetter(PendingUpdate pendingUpdate, Exception e, int attempts) {
+        metrics.onFailure();
+        final Integer retries = dependencyRetries.remove(pendingUpdate.getSequence());
+        if(retries != null) {
+            attempts += retries - 1;
+        }
+        deadLetterJournal.append(pendingUpdate.getUpdateType(), new FailedUpdateImpl(pendingUpdate, e, attempts));
+        final Completion completion = completions.remove(pendingUpdate.getSequence());
+        if(completion != null) {
+            completion.future.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * The future of an update added asynchronously.
+     */
+    private static final class Completion {
+        private final PendingUpdate pendingUpdate;
+        private final CompletableFuture<PendingUpdate> future;
+        private Completion(PendingUpdate pendingUpdate, CompletableFuture<PendingUpdate> future) {
+            this.pendingUpdate = pendingUpdate;
+            this.future = future;
+        }
+    }
+    
+    /**
+     * Completes the futures of the updates applied, then those of updates 
+     * resolved otherwise. Called by the worker once per batch, without the 
+     * lock, so that producers are woken a batch at a time. Updates which 
+     * failed have already been completed.
+     */
+    private void completeApplied(List<PendingUpdate> batch, int resolved) {
+        if(completions.isEmpty()) {
+            return;
+        }
+        for(int i=0; i<resolved; i++) {
+            final PendingUpdate pendingUpdate = batch.get(i);
+            final Completion completion = completions.remove(pendingUpdate.getSequence());
+            if(completion != null) {
+                completion.future.complete(pendingUpdate);
+            }
+        }
+        this.completeAcknowledged();
+    }
+    
+    /**
+     * Completes the futures of acknowledged updates. These include updates 
+     * which were coalesced with a later update, or cancelled out by one, 
+     * once every update before them is resolved.
+     */
+    private void completeAcknowledged() {
+        if(completions.isEmpty()) {
+            return;
+        }
+        final long offset = journal.getConsumerOffset();
+        Map.Entry<Long, Completion> first;
+        while((first = completions.firstEntry()) != null && first.getKey() < offset) {
+            if(completions.remove(first.getKey(), first.getValue())) {
+                first.getValue().future.complete(first.getValue().pendingUpdate);
+            }
+        }
+    }
+    
+    private void cancelCompletions(long fromSequence) {
+        Map.Entry<Long, Completion> entry;
+        while((entry = completions.ceilingEntry(fromSequence)) != null) {
+            if(completions.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().future.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Loads journaled updates which have not yet been loaded, up to the 
+     * window size. Must be called while holding the write lock.
+     * <p>
+     * Records which cannot be decoded are set aside as failed updates. The 
+     * lane cursors are only ever moved past the records actually scanned, 
+     * so no readable record is passed over because others were unreadable.
+     * </p>
+     * @return <code>true</code> if any updates were loaded
+     */
+    private boolean loadFromJournal() {
+        int count;
+        // On past records which were unreadable or of lanes left behind
+        while((count = this.scanJournal()) == 0) { }
+        return count > 0;
+    }
+    
+    /**
+     * Scans up to the window size of journaled records, from the lowest 
+     * cursor of the lanes which have room.
+     * @return The number of updates loaded, or -1 if there was nothing to scan
+     */
+    private int scanJournal() {
+        final long end = journal.getNextSequence();
+        final boolean [] open = new boolean[laneCursors.length];
+        long from = end;
+        int max = 0;
+        for(int i=0; i<laneCursors.length; i++) {
+            if(laneCursors[i] < end && laneDepths[i] < windowSize) {
+                open[i] = true;
+                from = Math.min(from, laneCursors[i]);
+                max = Math.max(max, windowSize - laneDepths[i]);
+            }
+        }
+        if(from >= end) {
+            return -1;
+        }
+        try{
+            final List<PendingUpdate> loaded = new ArrayList<>(max);
+            final long scanned = journal.read(from, max, loaded, (unreadable, e) -> {
+                if(unreadable.getSequence() >= unreadableSequence) {
+                    this.deadLetter(unreadable, e, 0);
+                }
+            });
+            if(scanned <= from) {
+                logger.log(Level.WARNING, "No records read from sequence {0} in: {1}", 
+                        new Object[]{from, file});
+                return -1;
+            }
+            unreadableSequence = Math.max(unreadableSequence, scanned);
+            int count = 0;
+            for(PendingUpdate pendingUpdate : loaded) {
+                final int lane = this.getLane(pendingUpdate);
+                if(!open[lane] || pendingUpdate.getSequence() < laneCursors[lane]) {
+                    continue;
+                }
+                if(laneDepths[lane] >= windowSize) {
+                    // Left behind until its share of the window has room
+                    open[lane] = false;
+                    laneCursors[lane] = pendingUpdate.getSequence();
+                    continue;
+                }
+                this.enqueue(pendingUpdate);
+                ++count;
+            }
+            long lowest = Long.MAX_VALUE;
+            for(int i=0; i<laneCursors.length; i++) {
+                if(open[i]) {
+                    laneCursors[i] = Math.max(laneCursors[i], scanned);
+                }
+                lowest = Math.min(lowest, laneCursors[i]);
+            }
+            loadedSequence = lowest;
+            if(pendingUpdates.isEmpty()) {
+                this.acknowledgeResolved();
+            }
+            logger.log(Level.FINER, "Loaded {0} pending updates from journal", count);
+            return count;
+        }catch(IOException e) {
+            logger.log(Level.WARNING, "Error reading pending updates from: " + file, e);
+            return -1;
+        }
+    }
+    
+    /**
+     * Adds the update to the window, first coalescing it with earlier updates 
+     * of the same entity. Must be called while holding the write lock.
+     * <ul>
+     *   <li>MERGE after MERGE: the earlier MERGE is discarded</li>
+     *   <li>REMOVE after MERGE: the MERGE is discarded</li>
+     *   <li>REMOVE after PERSIST: both are discarded</li>
+     * </ul>
+     * The later update always keeps its position, so no update is ever moved 
+     * ahead of updates to other entities which preceded it. Updates added 
+     * after the mark are not coalesced with those before it, so that a 
+     * rollback leaves the earlier updates intact.
+     * @param pendingUpdate The update to add
+     * @return <code>true</code> if the update was added, <code>false</code> 
+     * if it cancelled out an earlier update.
+     */
+    private boolean enqueue(PendingUpdate pendingUpdate) {
+        final EntityKey key = this.getKey(pendingUpdate);
+        final Partition partition = this.getPartition(key);
+        if(key == null) {
+            this.put(partition, pendingUpdate);
+            return true;
+        }
+        Deque<PendingUpdate> forKey = pendingUpdatesByKey.get(key);
+        if(forKey == null) {
+            forKey = new ArrayDeque<>();
+            pendingUpdatesByKey.put(key, forKey);
+        }
+        final UpdateType updateType = pendingUpdate.getUpdateType();
+        if(updateType == UpdateType.MERGE || updateType == UpdateType.REMOVE) {
+            while(this.isCoalescible(forKey.peekLast(), UpdateType.MERGE)) {
+                this.remove(partition, forKey.removeLast());
+            }
+        }
+        if(updateType == UpdateType.REMOVE && this.isCoalescible(forKey.peekLast(), UpdateType.PERSIST)) {
+            this.remove(partition, forKey.removeLast());
+            if(forKey.isEmpty()) {
+                pendingUpdatesByKey.remove(key);
+            }
+            logger.log(Level.FINER, "Cancelled out: {0}", pendingUpdate);
+            return false;
+        }
+        forKey.addLast(pendingUpdate);
+        this.put(partition, pendingUpdate);
+        return true;
+    }
     
-    private final Predicate<Throwable> retryOnExceptionTest;
+    private void put(Partition partition, PendingUpdate pendingUpdate) {
+        final int lane = this.getLane(pendingUpdate);
+        if(pendingUpdates.put(pendingUpdate.getSequence(), pendingUpdate) == null) {
+            ++laneDepths[lane];
+        }
+        partition.queue.put(lane, this.getEntityType(pendingUpdate), pendingUpdate);
+        partition.wakeup();
+    }
     
-    private final List<PendingUpdate> pendingUpdates;
+    private void remove(Partition partition, PendingUpdate pendingUpdate) {
+        this.removeFromWindow(pendingUpdate);
+        partition.queue.remove(this.getLane(pendingUpdate), this.getEntityType(pendingUpdate), pendingUpdate);
+    }
     
-    private int mark = -1;
+    private void removeFromWindow(PendingUpdate pendingUpdate) {
+        if(pendingUpdates.remove(pendingUpdate.getSequence()) != null) {
+            --laneDepths[this.getLane(pendingUpdate)];
+        }
+    }
     
-    public PendingUpdatesManagerImpl(File file, Updater updater, Predicate<Throwable> retryOnExceptionTest) {
-        this.file = Objects.requireNonNull(file);
-        this.updater = Objects.requireNonNull(updater);
-        this.retryOnExceptionTest = retryOnExceptionTest;
-        this.pendingUpdates = (List<PendingUpdate>)this.readSilently(file, new LinkedList<>());
-        logger.log(Level.INFO, "Pending updates count: {0}", this.pendingUpdates.size());
-        
-        this.init();
+    private boolean isCoalescible(PendingUpdate earlier, UpdateType updateType) {
+        return earlier != null && earlier.getUpdateType() == updateType &&
+                (markSequence < 0 || earlier.getSequence() >= markSequence);
     }
     
-    private void init() {
-        
-        final Thread thread = new Thread(this.getClass().getName()+"_LooperThread") {
-            
-            @Override
-            public void run() {
-                
-                while(true) {
-                    
-                    if(stopRequested) {
-                        break;
-                    }
-                    if(paused) {
-                        continue;
-                    }
-                    if(pendingUpdates.isEmpty()) {
-                        continue;
-                    }
-                    
-                    try{
-                        final PendingUpdate pendingUpdate;
-                        try{
-                            lock.readLock().lock();
-                            pendingUpdate = pendingUpdates.get(0);
-                        }finally{
-                            lock.readLock().unlock();
-                        }
-
-                        if(pendingUpdate == null) {
-                            continue;
-                        }
-
-                        try{
-
-                            lock.writeLock().lock();
-                            
-                            final UpdateType updateType = pendingUpdate.getUpdateType();
-                            switch(updateType) {
-                                case PERSIST: 
-                                    updater.persist(pendingUpdate.getEntity()); break;
-                                case MERGE:
-                                    updater.merge(pendingUpdate.getEntity()); break;
-                                case REMOVE:
-                                    updater.remove(pendingUpdate.getEntity()); break;
-                                default:
-                                    throw new UnsupportedOperationException();
-                            }
-
-                            pendingUpdates.remove(0);
-
-                        }catch(Exception e) {
-                            
-                            if(retryOnExceptionTest != null && retryOnExceptionTest.test(e)) {
-                                
-//                                logger.log(Level.INFO, "Communications exception updating remote entity: " + entity, e);
-                                
-                            }else{
-                                
-                                logger.log(Level.WARNING, "Failed to update remote entity: " + pendingUpdate.getEntity(), e);
-                                
-                                pendingUpdates.remove(0);
-                            }
-                        }finally{
-                            lock.writeLock().unlock();
-                        }
-                    }catch(RuntimeException e) {
-                        
-                        logger.log(Level.WARNING, "Unexpected error", e);
-                    }
+    private void dequeue(PendingUpdate pendingUpdate) {
+        this.remove(this.getPartition(this.getKey(pendingUpdate)), pendingUpdate);
+        this.removeFromIndex(pendingUpdate);
+    }
+    
+    private void removeFromIndex(PendingUpdate pendingUpdate) {
+        final EntityKey key = this.getKey(pendingUpdate);
+        if(key != null) {
+            final Deque<PendingUpdate> forKey = pendingUpdatesByKey.get(key);
+            if(forKey != null) {
+                forKey.remove(pendingUpdate);
+                if(forKey.isEmpty()) {
+                    pendingUpdatesByKey.remove(key);
                 }
             }
-        };
-        thread.setDaemon(true);
-        thread.start();
+        }
+    }
+    
+    /**
+     * Every update ahead of the window has either been applied, discarded or
+     * coalesced with a later update, so is acknowledged.
+     */
+    private void acknowledgeResolved() {
+        final long first = pendingUpdates.isEmpty() ? loadedSequence : 
+                Math.min(loadedSequence, pendingUpdates.firstKey());
+        journal.acknowledge(first - 1);
+        acknowledged.signalAll();
+    }
+    
+    /**
+     * @return The type of entity the update is to be applied to. For a 
+     * snapshot this is the slave type.
+     */
+    private Class getEntityType(PendingUpdate pendingUpdate) {
+        final Object entity = pendingUpdate.getEntity();
+        return entity instanceof EntitySnapshot ? 
+                ((EntitySnapshot)entity).getEntityType() : entity.getClass();
+    }
+    
+    /**
+     * The lane depends only on the entity type, so all updates of an entity 
+     * are in the same lane.
+     */
+    private int getLane(PendingUpdate pendingUpdate) {
+        if(laneProvider == null) {
+            return 0;
+        }
+        final Integer lane = laneProvider.apply(this.getEntityType(pendingUpdate));
+        return lane == null ? laneWeights.length - 1 : 
+                Math.max(0, Math.min(laneWeights.length - 1, lane));
+    }
+    
+    private EntityKey getKey(PendingUpdate pendingUpdate) {
+        final Object entity = pendingUpdate.getEntity();
+        if(entity instanceof EntitySnapshot) {
+            final EntitySnapshot snapshot = (EntitySnapshot)entity;
+            return snapshot.getEntityId() == null ? null : 
+                    new EntityKey(snapshot.getEntityType(), snapshot.getEntityId());
+        }
+        if(entityIdProvider == null) {
+            return null;
+        }
+        final Object id = entityIdProvider.apply(entity);
+        return id == null ? null : new EntityKey(entity.getClass(), id);
+    }
+    
+    /**
+     * Updates without a key all go to the first partition, in order.
+     */
+    private Partition getPartition(EntityKey key) {
+        return key == null ? partitions[0] : 
+                partitions[(key.hashCode() & Integer.MAX_VALUE) % partitions.length];
+    }
+    
+    private void signalLooper() {
+        try{
+            lock.writeLock().lock();
+            for(Partition partition : partitions) {
+                partition.wakeup();
+            }
+            capacityAvailable.signalAll();
+            acknowledged.signalAll();
+        }finally{
+            lock.writeLock().unlock();
+        }
     }
     
     @Override
     public int getMark() {
-        return this.mark;
+        final long sequence = this.markSequence;
+        return sequence < 0 ? -1 : (int)Math.max(0, sequence - journal.getConsumerOffset());
     }
     
+    /**
+     * The mark is held as the sequence of the update at position <code>n</code>
+     * so that it is not shifted as updates are applied from the head.
+     * @param n The position to mark or -1 to unmark
+     * @return The position marked
+     */
     @Override
     public int mark(int n) {
-        this.mark = n;
-        return this.mark;
+        this.markSequence = n < 0 ? -1 : journal.getConsumerOffset() + n;
+        return n;
+    }
+    
+    /**
+     * The updates added by a thread while it holds savepoints, in order. 
+     * Only ever accessed by that thread.
+     */
+    private static final class Slice {
+        private UpdateType [] updateTypes = new UpdateType[16];
+        private Object [] payloads = new Object[16];
+        /**
+         * Only created once an update is added asynchronously.
+         */
+        private CompletableFuture<PendingUpdate> [] futures;
+        private int size;
+        /**
+         * The savepoints set, outermost first.
+         */
+        private final List<SavepointImpl> savepoints = new ArrayList<>(4);
+        private void add(UpdateType updateType, Object payload, CompletableFuture<PendingUpdate> future) {
+            if(size == payloads.length) {
+                updateTypes = Arrays.copyOf(updateTypes, size << 1);
+                payloads = Arrays.copyOf(payloads, size << 1);
+                if(futures != null) {
+                    futures = Arrays.copyOf(futures, size << 1);
+                }
+            }
+            if(future != null && futures == null) {
+                futures = new CompletableFuture[payloads.length];
+            }
+            updateTypes[size] = updateType;
+            payloads[size] = payload;
+            if(futures != null) {
+                futures[size] = future;
+            }
+            ++size;
+        }
+        private CompletableFuture<PendingUpdate> getFuture(int i) {
+            return futures == null ? null : futures[i];
+        }
+    }
+    
+    private final class SavepointImpl implements Savepoint {
+        private final Slice slice;
+        private final int depth;
+        /**
+         * The size of the slice when the savepoint was set.
+         */
+        private final int position;
+        private SavepointImpl(Slice slice, int depth, int position) {
+            this.slice = slice;
+            this.depth = depth;
+            this.position = position;
+        }
+        private boolean isHeld() {
+            return depth < slice.savepoints.size() && slice.savepoints.get(depth) == this;
+        }
+        @Override
+        public void close() {
+            if(this.isHeld()) {
+                rollback(this);
+                release(this);
+            }
+        }
     }
     
     @Override
-    public synchronized void rollbackToMarkedPosition() {
-        if(this.isMarked()) {
-            final int size;
+    public Savepoint savepoint() {
+        
+        if(stopRequested) { throw new IllegalStateException(); }
+        
+        Slice slice = slices.get();
+        if(slice == null) {
+            slice = new Slice();
+            slices.set(slice);
+        }
+        final SavepointImpl savepoint = new SavepointImpl(slice, slice.savepoints.size(), slice.size);
+        slice.savepoints.add(savepoint);
+        return savepoint;
+    }
+    
+    /**
+     * Rolling back moves the end of the slice back to the savepoint. The 
+     * entries beyond it are cleared, their capacity released and the futures 
+     * of those added asynchronously cancelled, so this takes time in 
+     * proportion to the number of updates discarded. No lock is taken unless 
+     * producers may be blocked waiting for the capacity released.
+     */
+    @Override
+    public void rollback(Savepoint savepoint) {
+        final SavepointImpl held = this.getHeld(savepoint);
+        final Slice slice = held.slice;
+        slice.savepoints.subList(held.depth + 1, slice.savepoints.size()).clear();
+        this.discard(slice, held.position);
+    }
+
+    /**
+     * Releasing the outermost savepoint journals the updates in the slice,
+     * in the order they were added, as if they had been added then. Each 
+     * holds the capacity it reserved as it was added to the slice until it 
+     * is journaled, so updates held in slices count against the capacity.
+     * <p>
+     * If a stop was requested while the savepoint was held, the updates in 
+     * the slice are dropped, and the futures of those added asynchronously 
+     * cancelled, before an {@link IllegalStateException} is thrown.
+     * </p>
+     */
+    @Override
+    public void release(Savepoint savepoint) {
+        final SavepointImpl held = this.getHeld(savepoint);
+        final Slice slice = held.slice;
+        slice.savepoints.subList(held.depth, slice.savepoints.size()).clear();
+        if(held.depth == 0) {
+            slices.remove();
+            if(stopRequested) {
+                final int dropped = this.discard(slice, 0);
+                if(dropped > 0) {
+                    logger.log(Level.WARNING, "Stop requested, dropped {0} updates of a released savepoint", dropped);
+                }
+                throw new IllegalStateException();
+            }
+            int appended = 0;
             try{
-                lock.readLock().lock();
-                size = this.pendingUpdates.size();
+                for(; appended<slice.size; appended++) {
+                    this.append(slice.updateTypes[appended], slice.payloads[appended], slice.getFuture(appended));
+                    this.releaseCapacity(1);
+                }
             }finally{
-                lock.readLock().unlock();
+                if(appended < slice.size) {
+                    logger.log(Level.WARNING, "Dropped {0} updates of a released savepoint", 
+                            this.discard(slice, appended));
+                }
             }
-            if(this.mark < size) {
-                try{
-                    lock.writeLock().lock();
-                    this.pendingUpdates.subList(this.mark, size).clear();
-                }finally{
-                    lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Drops the updates of the slice from the position onwards, releasing 
+     * the capacity they reserved and cancelling their futures.
+     * @return The number of updates dropped
+     */
+    private int discard(Slice slice, int position) {
+        final int dropped = slice.size - position;
+        if(dropped <= 0) {
+            return 0;
+        }
+        for(int i=position; i<slice.size; i++) {
+            final CompletableFuture<PendingUpdate> future = slice.getFuture(i);
+            if(future != null) {
+                future.cancel(false);
+                slice.futures[i] = null;
+            }
+            slice.payloads[i] = null;
+        }
+        slice.size = position;
+        this.releaseCapacity(dropped);
+        if(overflowPolicy == OverflowPolicy.BLOCK) {
+            lock.writeLock().lock();
+            try{
+                capacityAvailable.signalAll();
+            }finally{
+                lock.writeLock().unlock();
+            }
+        }
+        return dropped;
+    }
+    
+    private SavepointImpl getHeld(Savepoint savepoint) {
+        final Slice slice = slices.get();
+        if(!(savepoint instanceof SavepointImpl) || slice == null || 
+                ((SavepointImpl)savepoint).slice != slice) {
+            throw new IllegalStateException("Not a savepoint held by the current thread: " + savepoint);
+        }
+        final SavepointImpl held = (SavepointImpl)savepoint;
+        if(!held.isHeld()) {
+            throw new IllegalStateException("Savepoint already released: " + savepoint);
+        }
+        return held;
+    }
+    
+    /**
+     * Producers are held off while the journal is truncated, so that no 
+     * update is appended at a sequence which is being discarded. Updates 
+     * added by any thread after the mark are rolled back.
+     */
+    @Override
+    public void rollbackToMarkedPosition() {
+        if(this.isMarked()) {
+            final long fromSequence = this.markSequence;
+            appendGate.writeLock().lock();
+            try{
+                lock.writeLock().lock();
+                this.drainInbox();
+                ++generation;
+                for(PendingUpdate pendingUpdate : new ArrayList<>(pendingUpdates.tailMap(fromSequence).values())) {
+                    this.dequeue(pendingUpdate);
+                }
+                for(int i=0; i<laneCursors.length; i++) {
+                    laneCursors[i] = Math.min(laneCursors[i], fromSequence);
                 }
+                loadedSequence = Math.min(loadedSequence, fromSequence);
+                unreadableSequence = Math.min(unreadableSequence, fromSequence);
+                this.journal.truncate(fromSequence);
+                this.cancelCompletions(fromSequence);
+                capacityAvailable.signalAll();
+            }catch(IOException e) {
+                logger.log(Level.WARNING, "Error truncating journal: " + file, e);
+            }finally{
+                ++generation;
+                arrivals.clear();
+                lock.writeLock().unlock();
+                appendGate.writeLock().unlock();
             }
             this.unmark();
         }
     }
     
+    /**
+     * Waits on the acknowledgement of updates rather than polling, so the 
+     * caller is woken at most once per batch.
+     */
+    @Override
+    public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        final long target = journal.getNextSequence();
+        long nanos = unit.toNanos(timeout);
+        lock.writeLock().lockInterruptibly();
+        try{
+            while(journal.getConsumerOffset() < target) {
+                if(nanos <= 0 || stopRequested) {
+                    return false;
+                }
+                nanos = acknowledged.awaitNanos(nanos);
+            }
+            return true;
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
     @Override
     public boolean isStopRequested() {
         return this.stopRequested;
@@ -189,7 +1576,18 @@ public class PendingUpdatesManagerImpl implements PendingUpdatesManager {
     public void requestStop() {
         if(!stopRequested) {
             stopRequested = true;
-            this.save();
+            this.signalLooper();
+            this.journal.close();
+            this.deadLetterJournal.close();
+            this.metrics.unregister();
+            if(this.metricsSampling != null) {
+                this.metricsSampling.cancel(false);
+            }
+            if(this.metricsTimer != null) {
+                this.metricsTimer.shutdownNow();
+            }
+            // Still journaled, but to be applied after a restart
+            this.cancelCompletions(Long.MIN_VALUE);
         }
     }
     
@@ -207,7 +1605,11 @@ public class PendingUpdatesManagerImpl implements PendingUpdatesManager {
         if(stopRequested) { throw new IllegalStateException(); }
         
         logger.fine("Pausing slave updates");
-        return this.isPaused() ? false : (paused = true);
+        if(this.isPaused()) {
+            return false;
+        }
+        metrics.onPaused();
+        return paused = true;
     }
 
     @Override
@@ -216,16 +1618,13 @@ public class PendingUpdatesManagerImpl implements PendingUpdatesManager {
         if(stopRequested) { throw new IllegalStateException(); }
         
         logger.fine("Resuming slave updates");
-        return !this.isPaused() ? false : (paused = false);
-    }
-    
-    private void save() {
-        logger.log(Level.FINE, "Saving {0} slave updates", this.getPendingUpdatesSize());
-        try{
-            writeSilently(pendingUpdates, file);
-        }catch(RuntimeException e) { 
-            logger.log(Level.WARNING, "Error saving to: " + file, e);
+        if(!this.isPaused()) {
+            return false;
         }
+        paused = false;
+        metrics.onResumed();
+        this.signalLooper();
+        return true;
     }
     
     @Override
@@ -244,26 +1643,235 @@ public class PendingUpdatesManagerImpl implements PendingUpdatesManager {
     }
 
     public boolean add(UpdateType updateType, Object entity) {
+        return this.add(updateType, entity, null);
+    }
+
+    /**
+     * @return A stage completed once the update is applied, or once it is 
+     * coalesced with a later update and every update before it is resolved. 
+     * Completed exceptionally with the cause if the update is set aside as 
+     * failed, or with a {@link RejectedExecutionException} if it was not 
+     * accepted for lack of capacity. Cancelled if the update is rolled back, 
+     * or outstanding when a stop is requested.
+     */
+    @Override
+    public CompletionStage<PendingUpdate> addAsync(UpdateType updateType, Object entity) {
+        final CompletableFuture<PendingUpdate> future = new CompletableFuture<>();
+        if(!this.add(updateType, entity, future)) {
+            future.completeExceptionally(new RejectedExecutionException("At capacity of " + capacity));
+        }
+        return future;
+    }
+    
+    private boolean add(UpdateType updateType, Object entity, CompletableFuture<PendingUpdate> future) {
         
         if(stopRequested) { throw new IllegalStateException(); }
         
+        // Without the lock, as this may have to read lazily loaded columns
+        final Object payload = snapshotProvider == null ? entity : snapshotProvider.apply(entity);
+        
+        if(!this.reserveCapacity() && !this.awaitCapacity()) {
+
+            rejectedCount.incrementAndGet();
+
+            logger.log(Level.WARNING, "At capacity of {0}, rejected {1} {2}", 
+                    new Object[]{capacity, updateType, entity});
+
+            return false;
+        }
+
+        boolean heldInSlice = false;
         try{
-            
-            lock.writeLock().lock(); 
-            
-            return this.pendingUpdates.add(new PendingUpdateImpl(updateType, entity));
-            
+            final Slice slice = slices.get();
+            if(slice != null) {
+                // The capacity stays reserved until the slice is released or rolled back
+                slice.add(updateType, payload, future);
+                heldInSlice = true;
+            }else{
+                this.append(updateType, payload, future);
+            }
         }finally{
+            if(!heldInSlice) {
+                this.releaseCapacity(1);
+            }
+        }
+        
+        logger.log(Level.FINER, "Pending slave updates: {0}", this.getPendingUpdatesSize());
+
+        return true;
+    }
+
+    /**
+     * Journals the update and hands it to the worker of its partition, 
+     * without taking the lock. The journal assigns the sequence and holds 
+     * its own monitor only while copying the encoded update into the active 
+     * segment, never while the slave is being updated.
+     */
+    private void append(UpdateType updateType, Object payload) {
+        this.append(updateType, payload, null);
+    }
+    
+    /**
+     * @param future If not null, registered under the sequence of the update 
+     * before the update can be seen by the worker
+     */
+    private void append(UpdateType updateType, Object payload, CompletableFuture<PendingUpdate> future) {
+        
+        final PendingUpdate pendingUpdate;
+        
+        appendGate.readLock().lock();
+        try{
             
-            lock.writeLock().unlock();
+            final long currentGeneration = this.generation;
+
+            pendingUpdate = this.journal.append(updateType, payload, future == null ? null :
+                    (sequenced) -> completions.put(sequenced.getSequence(), new Completion(sequenced, future)));
+
+            inbox.add(new Arrival(pendingUpdate, currentGeneration));
             
-            logger.log(Level.FINER, "Pending slave updates: {0}", this.getPendingUpdatesSize());
+        }finally{
+            appendGate.readLock().unlock();
+        }
+        
+        metrics.onEnqueued();
+        
+        this.getPartition(this.getKey(pendingUpdate)).wakeup();
+    }
+    
+    @Override
+    public List<FailedUpdate> getFailedUpdates(long fromSequence, int max) {
+        try{
+            final long from = Math.max(fromSequence, deadLetterJournal.getConsumerOffset());
+            final List<PendingUpdate> records = deadLetterJournal.read(from, max);
+            final List<FailedUpdate> output = new ArrayList<>(records.size());
+            for(PendingUpdate record : records) {
+                output.add(new FailedUpdateImpl(record.getSequence(), (FailedUpdate)record.getEntity()));
+            }
+            return output;
+        }catch(IOException e) {
+            logger.log(Level.WARNING, "Error reading failed updates from: " + deadLetterJournal.getDir(), e);
+            return Collections.EMPTY_LIST;
+        }
+    }
+
+    @Override
+    public int getFailedUpdatesSize() {
+        return (int)Math.min(Integer.MAX_VALUE, deadLetterJournal.size());
+    }
+    
+    /**
+     * The failed updates are journaled as pending updates, then applied in 
+     * batches like any other. Stops short, without blocking, if 
+     * capacity is reached.
+     * @param max The maximum number of failed updates, from the oldest, to 
+     * re-enqueue
+     * @return The number of failed updates re-enqueued
+     */
+    @Override
+    public int requeueFailedUpdates(int max) {
+        
+        if(stopRequested) { throw new IllegalStateException(); }
+        
+        final List<FailedUpdate> failedUpdates = this.getFailedUpdates(0, max);
+        
+        int requeued = 0;
+        
+        for(FailedUpdate failedUpdate : failedUpdates) {
+            if(!this.reserveCapacity()) {
+                break;
+            }
+            try{
+                this.append(failedUpdate.getUpdateType(), failedUpdate.getEntity());
+            }finally{
+                this.releaseCapacity(1);
+            }
+            ++requeued;
         }
+        
+        if(requeued > 0) {
+            // Only once durable as pending updates
+            journal.flushSilently();
+            deadLetterJournal.acknowledge(failedUpdates.get(requeued - 1).getSequence());
+            logger.log(Level.INFO, "Re-enqueued {0} failed updates", requeued);
+        }
+        
+        return requeued;
+    }
+
+    @Override
+    public int purgeFailedUpdates(int max) {
+        final long offset = deadLetterJournal.getConsumerOffset();
+        final int purged = (int)Math.min(max, deadLetterJournal.size());
+        if(purged > 0) {
+            deadLetterJournal.acknowledge(offset + purged - 1);
+            logger.log(Level.INFO, "Purged {0} failed updates", purged);
+        }
+        return purged;
     }
 
+    /**
+     * Takes a slot for an update, to be released by {@link #releaseCapacity(int)}
+     * once the update is appended, or not.
+     * @return <code>true</code> if a slot was taken
+     */
+    private boolean reserveCapacity() {
+        if(overflowPolicy == OverflowPolicy.SPILL) {
+            return true;
+        }
+        while(true) {
+            final long n = reserved.get();
+            if(journal.size() + n >= capacity) {
+                return false;
+            }
+            if(reserved.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+    
+    private void releaseCapacity(int slots) {
+        if(overflowPolicy != OverflowPolicy.SPILL) {
+            reserved.addAndGet(-slots);
+        }
+    }
+    
+    /**
+     * Only producers which are to block for capacity take the lock.
+     * @return <code>true</code> if a slot was taken, as by {@link #reserveCapacity()}
+     */
+    private boolean awaitCapacity() {
+        if(overflowPolicy != OverflowPolicy.BLOCK) {
+            return false;
+        }
+        try{
+            lock.writeLock().lock();
+            long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+            while(!stopRequested && nanos > 0) {
+                if(this.reserveCapacity()) {
+                    return true;
+                }
+                nanos = capacityAvailable.awaitNanos(nanos);
+            }
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }finally{
+            lock.writeLock().unlock();
+        }
+        return false;
+    }
+    
+    /**
+     * @return The number of updates which have not been applied, including 
+     * those not yet loaded from the journal
+     */
     @Override
     public int getPendingUpdatesSize() {
-        return this.pendingUpdates.size();
+        return (int)Math.min(Integer.MAX_VALUE, this.journal.size());
+    }
+
+    @Override
+    public RetryPolicy.State getRetryState() {
+        return this.retryPolicy.getState();
     }
     
     public Object readSilently(File f, Object outputIfNone) {
@@ -346,6 +1954,63 @@ public class PendingUpdatesManagerImpl implements PendingUpdatesManager {
         return file;
     }
 
+    public PendingUpdatesJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return The metrics of this manager. Rates and maximum waits are only 
+     * sampled if JMX is enabled; counters and gauges are always kept.
+     */
+    public PendingUpdatesMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The number of updates held in memory
+     */
+    public int getWindowDepth() {
+        try{
+            lock.readLock().lock();
+            return pendingUpdates.size();
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * @return The number of updates of each lane held in memory
+     */
+    public int [] getLaneDepths() {
+        try{
+            lock.readLock().lock();
+            return laneDepths.clone();
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+    
+    public int getLaneCount() {
+        return laneWeights.length;
+    }
+
+    /**
+     * @return The time the oldest update held in memory was created, or -1 
+     * if none.
+     */
+    public long getOldestTimeCreated() {
+        try{
+            lock.readLock().lock();
+            return pendingUpdates.isEmpty() ? -1 : pendingUpdates.firstEntry().getValue().getTimeCreated();
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    public PendingUpdatesJournal getDeadLetterJournal() {
+        return deadLetterJournal;
+    }
+
     public Updater getUpdater() {
         return updater;
     }
@@ -354,8 +2019,57 @@ public class PendingUpdatesManagerImpl implements PendingUpdatesManager {
         return retryOnExceptionTest;
     }
 
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    /**
+     * @return The number of updates rejected for want of capacity
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchWindowMillis() {
+        return batchWindowMillis;
+    }
+
+    public int getPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * @return The pending updates currently loaded in memory. There may be
+     * more in the journal. 
+     * @see #getPendingUpdatesSize() 
+     */
     @Override
     public List<PendingUpdate> getPendingUpdates() {
-        return Collections.unmodifiableList(this.pendingUpdates);
+        try{
+            lock.readLock().lock();
+            return Collections.unmodifiableList(new ArrayList<>(this.pendingUpdates.values()));
+        }finally{
+            lock.readLock().unlock();
+        }
     }
 }
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters are plain atomics, updated without locking or allocation on the 
+ * paths which add and apply updates. Gauges are computed when read. Rates and
+ * maximum waits are over a fixed window, computed by {@link #sample()} which 
+ * the manager calls at the end of each window while JMX is enabled, so
+ * reading has no side effects.
+ */
+public class PendingUpdatesMetrics implements PendingUpdatesMetricsMBean {
+
+    private transient static final Logger logger = Logger.getLogger(PendingUpdatesMetrics.class.getName());
+    
+    /**
+     * Bucket <code>i</code> counts latencies below <code>2^(i+1)</code> 
+     * millis not counted by an earlier bucket. The last bucket counts the rest.
+     */
+    private static final int BUCKETS = 24;
+    
+    private final PendingUpdatesManagerImpl manager;
+    
+    private final AtomicLong enqueued = new AtomicLong();
+    
+    private final AtomicLong applied = new AtomicLong();
+    
+    private final AtomicLong retries = new AtomicLong();
+    
+    private final AtomicLong failures = new AtomicLong();
+    
+    private final AtomicLong pausedMillis = new AtomicLong();
+    
+    private volatile long pausedSince = -1;
+    
+    /**
+     * One histogram per update type, laid out end to end.
+     */
+    private final AtomicLongArray latencies = new AtomicLongArray(UpdateType.values().length * BUCKETS);
+    
+    private final AtomicLongArray laneDispatched;
+    
+    private final AtomicLongArray laneWaits;
+    
+    /**
+     * The longest wait of each lane in the current window.
+     */
+    private final AtomicLongArray laneMaxWaits;
+    
+    /**
+     * The longest wait of each lane in the last complete window.
+     */
+    private volatile long [] lastLaneMaxWaits;
+    
+    private volatile double enqueueRate;
+    
+    private volatile double applyRate;
+    
+    /**
+     * The counts and time at the start of the current window. Only accessed 
+     * by {@link #sample()}.
+     */
+    private long windowEnqueued;
+    private long windowApplied;
+    private long windowStart = System.nanoTime();
+    
+    private ObjectName objectName;
+
+    public PendingUpdatesMetrics(PendingUpdatesManagerImpl manager) {
+        this.manager = manager;
+        this.laneDispatched = new AtomicLongArray(manager.getLaneCount());
+        this.laneWaits = new AtomicLongArray(manager.getLaneCount());
+        this.laneMaxWaits = new AtomicLongArray(manager.getLaneCount());
+        this.lastLaneMaxWaits = new long[manager.getLaneCount()];
+    }
+    
+    /**
+     * Registers with the platform MBean server. Failure is logged, as 
+     * metrics are not essential, unless the name is taken.
+     * @throws IllegalStateException If metrics are already registered under 
+     * the name of this manager, e.g of another manager of the same journal
+     */
+    public void register() {
+        final ObjectName name;
+        final MBeanServer server;
+        try{
+            server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("com.bc.jpa.sync:type=PendingUpdatesManager,name=" + 
+                    ObjectName.quote(manager.getFile().getPath()));
+        }catch(JMException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to register metrics of: " + manager.getFile(), e);
+            return;
+        }
+        if(server.isRegistered(name)) {
+            throw new IllegalStateException("Already registered: " + name);
+        }
+        try{
+            server.registerMBean(this, name);
+            this.objectName = name;
+        }catch(JMException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to register metrics of: " + manager.getFile(), e);
+        }
+    }
+    
+    public void unregister() {
+        if(objectName != null) {
+            try{
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }catch(JMException | RuntimeException e) {
+                logger.log(Level.FINE, "Failed to unregister metrics of: " + manager.getFile(), e);
+            }
+            objectName = null;
+        }
+    }
+    
+    /**
+     * Ends the current window. Called by one thread at a time, at a fixed 
+     * interval.
+     */
+    void sample() {
+        final long now = System.nanoTime();
+        final long enqueuedNow = enqueued.get();
+        final long appliedNow = applied.get();
+        final long elapsed = now - windowStart;
+        if(elapsed > 0) {
+            enqueueRate = (enqueuedNow - windowEnqueued) * 1_000_000_000.0 / elapsed;
+            applyRate = (appliedNow - windowApplied) * 1_000_000_000.0 / elapsed;
+        }
+        final long [] maxWaits = new long[laneMaxWaits.length()];
+        for(int i=0; i<maxWaits.length; i++) {
+            maxWaits[i] = laneMaxWaits.getAndSet(i, 0);
+        }
+        lastLaneMaxWaits = maxWaits;
+        windowEnqueued = enqueuedNow;
+        windowApplied = appliedNow;
+        windowStart = now;
+    }
+    
+    void onEnqueued() {
+        enqueued.incrementAndGet();
+    }
+    
+    void onApplied(PendingUpdate pendingUpdate, long time) {
+        applied.incrementAndGet();
+        final long latency = Math.max(1, time - pendingUpdate.getTimeCreated());
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latency) - 1);
+        latencies.incrementAndGet(pendingUpdate.getUpdateType().ordinal() * BUCKETS + bucket);
+    }
+    
+    void onDispatched(int lane, long wait) {
+        laneDispatched.incrementAndGet(lane);
+        laneWaits.addAndGet(lane, wait);
+        long max;
+        while((max = laneMaxWaits.get(lane)) < wait && !laneMaxWaits.compareAndSet(lane, max, wait)) { }
+    }
+    
+    void onRetry() {
+        retries.incrementAndGet();
+    }
+    
+    void onFailure() {
+        failures.incrementAndGet();
+    }
+    
+    void onPaused() {
+        pausedSince = System.currentTimeMillis();
+    }
+    
+    void onResumed() {
+        final long since = pausedSince;
+        if(since > -1) {
+            pausedSince = -1;
+            pausedMillis.addAndGet(System.currentTimeMillis() - since);
+        }
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return manager.getJournal().size();
+    }
+
+    @Override
+    public int getWindowDepth() {
+        return manager.getWindowDepth();
+    }
+
+    @Override
+    public long getOldestItemAgeMillis() {
+        final long timeCreated = manager.getOldestTimeCreated();
+        return timeCreated < 0 ? 0 : System.currentTimeMillis() - timeCreated;
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    @Override
+    public long getAppliedCount() {
+        return applied.get();
+    }
+
+    @Override
+    public double getEnqueueRate() {
+        return enqueueRate;
+    }
+
+    @Override
+    public double getApplyRate() {
+        return applyRate;
+    }
+
+    @Override
+    public long [] getLatencyBucketBounds() {
+        final long [] bounds = new long[BUCKETS];
+        for(int i=0; i<BUCKETS - 1; i++) {
+            bounds[i] = 1L << (i + 1);
+        }
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+        return bounds;
+    }
+
+    @Override
+    public long [] getPersistLatencyHistogram() {
+        return this.getLatencyHistogram(UpdateType.PERSIST);
+    }
+
+    @Override
+    public long [] getMergeLatencyHistogram() {
+        return this.getLatencyHistogram(UpdateType.MERGE);
+    }
+
+    @Override
+    public long [] getRemoveLatencyHistogram() {
+        return this.getLatencyHistogram(UpdateType.REMOVE);
+    }
+    
+    public long [] getLatencyHistogram(UpdateType updateType) {
+        final long [] histogram = new long[BUCKETS];
+        final int offset = updateType.ordinal() * BUCKETS;
+        for(int i=0; i<BUCKETS; i++) {
+            histogram[i] = latencies.get(offset + i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return manager.getRejectedCount();
+    }
+
+    @Override
+    public long getPausedTimeMillis() {
+        final long since = pausedSince;
+        return pausedMillis.get() + (since < 0 ? 0 : System.currentTimeMillis() - since);
+    }
+
+    @Override
+    public int [] getLaneDepths() {
+        return manager.getLaneDepths();
+    }
+
+    @Override
+    public long [] getLaneDispatchedCounts() {
+        return this.toArray(laneDispatched);
+    }
+
+    @Override
+    public long [] getLaneWaitMillis() {
+        return this.toArray(laneWaits);
+    }
+
+    @Override
+    public long [] getLaneMaxWaitMillis() {
+        return lastLaneMaxWaits.clone();
+    }
+    
+    private long [] toArray(AtomicLongArray values) {
+        final long [] output = new long[values.length()];
+        for(int i=0; i<output.length; i++) {
+            output[i] = values.get(i);
+        }
+        return output;
+    }
+
+    @Override
+    public String getRetryState() {
+        return manager.getRetryState().name();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+public interface PendingUpdatesMetricsMBean {
+    
+    /**
+     * @return The number of updates not yet applied, including those not 
+     * yet loaded from the journal
+     */
+    long getQueueDepth();
+    
+    /**
+     * @return The number of updates held in memory
+     */
+    int getWindowDepth();
+    
+    /**
+     * @return The age of the oldest update held in memory, or 0 if none
+     */
+    long getOldestItemAgeMillis();
+    
+    long getEnqueuedCount();
+    
+    long getAppliedCount();
+    
+    /**
+     * @return Updates enqueued per second over the last sampling window
+     * @see PendingUpdatesManagerImpl#METRICS_WINDOW_MILLIS
+     */
+    double getEnqueueRate();
+    
+    /**
+     * @return Updates applied per second over the last sampling window
+     */
+    double getApplyRate();
+    
+    /**
+     * @return The upper bounds, in milliseconds, of the latency histogram 
+     * buckets. The last bucket has no upper bound.
+     */
+    long [] getLatencyBucketBounds();
+    
+    /**
+     * Latency is the time from when an update was added to when it was applied.
+     * @return The number of PERSIST updates applied, by latency bucket
+     * @see #getLatencyBucketBounds() 
+     */
+    long [] getPersistLatencyHistogram();
+    
+    long [] getMergeLatencyHistogram();
+    
+    long [] getRemoveLatencyHistogram();
+    
+    /**
+     * @return The number of attempts which failed for a retryable reason
+     */
+    long getRetryCount();
+    
+    /**
+     * @return The number of updates set aside as failed
+     */
+    long getFailureCount();
+    
+    long getRejectedCount();
+    
+    long getPausedTimeMillis();
+    
+    /**
+     * @return The number of updates of each lane held in memory
+     */
+    int [] getLaneDepths();
+    
+    /**
+     * @return The number of updates of each lane taken to be applied
+     */
+    long [] getLaneDispatchedCounts();
+    
+    /**
+     * Wait is the time from when an update was added to when it was taken 
+     * to be applied. 
+     * @return The total wait of the updates of each lane taken to be applied
+     * @see #getLaneDispatchedCounts() 
+     */
+    long [] getLaneWaitMillis();
+    
+    /**
+     * @return The longest wait of each lane in the last sampling window
+     */
+    long [] getLaneMaxWaitMillis();
+    
+    String getRetryState();
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The progress of a sync, for each entity type, kept in a local file so that
+ * a sync which was interrupted can be resumed where it stopped.
+ * <p>
+ * The checkpoint of a type holds the key of the last entity committed, i.e
+ * up to which every entity has been written or skipped, and the number of
+ * entities written. Checkpoints are saved at most once every
+ * <code>intervalMillis</code> while a type is synced, and each time a type is
+ * done.
+ * </p>
+ * <pre>
+ * SyncCheckpoints checkpoints = new SyncCheckpoints(new File(dir, "sync.checkpoints"), 30_000);
+ * try{
+ *     jpaSync.sync(entityTypes, checkpoints);
+ * }catch(RuntimeException e) {
+ *     // Later, possibly after a restart
+ *     jpaSync.resume(entityTypes, checkpoints);
+ * }
+ * </pre>
+ * @see JpaSyncImpl#resume(java.util.Set, com.bc.jpa.sync.impl.SyncCheckpoints)
+ */
+public class SyncCheckpoints {
+
+    private transient static final Logger logger = Logger.getLogger(SyncCheckpoints.class.getName());
+
+    public static final class Checkpoint implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object [] lastKey;
+
+        private final int readCount;
+
+        private final int count;
+
+        private final boolean complete;
+
+        private Checkpoint(Object [] lastKey, int readCount, int count, boolean complete) {
+            this.lastKey = lastKey;
+            this.readCount = readCount;
+            this.count = count;
+            this.complete = complete;
+        }
+
+        /**
+         * @return The key of the last entity committed, or <code>null</code>
+         * if the type is to be read from the start
+         */
+        public Object [] getLastKey() {
+            return lastKey == null ? null : lastKey.clone();
+        }
+
+        /**
+         * @return The number of entities read, whether written or skipped
+         */
+        public int getReadCount() {
+            return readCount;
+        }
+
+        /**
+         * @return The number of entities written
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return <code>true</code> if every entity of the type has been synced
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public String toString() {
+            return "Checkpoint{lastKey=" + Arrays.toString(lastKey) +
+                    ", readCount=" + readCount + ", count=" + count + ", complete=" + complete + '}';
+        }
+    }
+
+    private final File file;
+
+    private final long intervalMillis;
+
+    private Map<String, Checkpoint> checkpoints;
+
+    private long lastSaved;
+
+    private boolean modified;
+
+    /**
+     * @param file The file to keep the checkpoints in
+     * @param intervalMillis The least time between two saves of the
+     * checkpoints while a type is synced
+     */
+    public SyncCheckpoints(File file, long intervalMillis) {
+        if(intervalMillis < 0) {
+            throw new IllegalArgumentException("Interval < 0");
+        }
+        this.file = Objects.requireNonNull(file);
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * @param entityType The entity type
+     * @return The checkpoint of the entity type, or <code>null</code> if none
+     */
+    public synchronized Checkpoint get(Class entityType) {
+        return this.getCheckpoints().get(entityType.getName());
+    }
+
+    /**
+     * Records the progress of an entity type, saving the checkpoints if the
+     * interval has passed since they were last saved.
+     * @param entityType The entity type
+     * @param lastKey The key of the last entity committed
+     * @param readCount The number of entities read, whether written or skipped
+     * @param count The number of entities written
+     */
+    synchronized void update(Class entityType, Object [] lastKey, int readCount, int count) {
+        this.put(entityType, new Checkpoint(lastKey == null ? null : lastKey.clone(), readCount, count, false));
+        if(System.currentTimeMillis() - lastSaved >= intervalMillis) {
+            this.save();
+        }
+    }
+
+    /**
+     * Records that every entity of the type has been synced, and saves the
+     * checkpoints.
+     * @param entityType The entity type
+     * @param readCount The number of entities read, whether written or skipped
+     * @param count The number of entities written
+     */
+    synchronized void complete(Class entityType, int readCount, int count) {
+        this.put(entityType, new Checkpoint(null, readCount, count, true));
+        this.save();
+    }
+
+    /**
+     * Saves the checkpoints if changed since last saved.
+     */
+    public synchronized void flush() {
+        if(modified) {
+            this.save();
+        }
+    }
+
+    /**
+     * Removes all the checkpoints, so that the next sync starts afresh.
+     */
+    public synchronized void clear() {
+        checkpoints = new HashMap<>();
+        modified = false;
+        if(file.exists() && !file.delete()) {
+            logger.log(Level.WARNING, "Failed to delete: {0}", file);
+        }
+    }
+
+    private void put(Class entityType, Checkpoint checkpoint) {
+        this.getCheckpoints().put(entityType.getName(), checkpoint);
+        modified = true;
+        logger.log(Level.FINER, "{0} {1}", new Object[]{entityType.getName(), checkpoint});
+    }
+
+    private Map<String, Checkpoint> getCheckpoints() {
+        if(checkpoints == null) {
+            checkpoints = this.load();
+        }
+        return checkpoints;
+    }
+
+    private Map<String, Checkpoint> load() {
+        if(!file.exists()) {
+            return new HashMap<>();
+        }
+        try{
+            return (Map<String, Checkpoint>)LocalFiles.read(file);
+        }catch(IOException | ClassNotFoundException | ClassCastException e) {
+            logger.log(Level.WARNING, "Failed to read checkpoints from " + file + ", entities will be synced from the start", e);
+            return new HashMap<>();
+        }
+    }
+
+    private void save() {
+        try{
+            LocalFiles.write(file, checkpoints);
+            modified = false;
+        }catch(IOException e) {
+            logger.log(Level.WARNING, "Failed to save checkpoints to " + file, e);
+        }
+        lastSaved = System.currentTimeMillis();
+    }
+}
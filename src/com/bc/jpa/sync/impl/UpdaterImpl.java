@@ -16,10 +16,12 @@
 
 package com.bc.jpa.sync.impl;
 
+import com.bc.jpa.sync.PendingUpdate;
 import com.bc.jpa.sync.Updater;
 import com.bc.jpa.EntityUpdater;
 import com.bc.jpa.context.PersistenceUnitContext;
 import java.io.Serializable;
+import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
 import java.util.logging.Level;
@@ -84,12 +86,17 @@ public class UpdaterImpl implements Updater, Serializable {
 
     private Object update(Object entity, int type) {
 
-        final Object other = this.formatter.apply(entity);
-        
         final EntityManager em = this.context.getEntityManager();
         
         try{
             
+            final Object other = this.format(entity, em, type);
+            
+            if(other == null) {
+                logger.log(Level.FINE, "Not found, so not removed: {0}", entity);
+                return null;
+            }
+            
             final EntityUpdater updater = context.getEntityUpdater(other.getClass());
             
             return this.beginUpdateCommitAndClose(em, updater, other, null, type);
@@ -101,6 +108,74 @@ public class UpdaterImpl implements Updater, Serializable {
         }
     } 
     
+    /**
+     * Applies all the updates in one transaction on one EntityManager. 
+     * If any update fails, the transaction is rolled back.
+     * @param pendingUpdates The updates to apply
+     */
+    @Override
+    public void apply(List<PendingUpdate> pendingUpdates) {
+        
+        final EntityManager em = this.context.getEntityManager();
+        
+        try{
+            
+            em.getTransaction().begin();
+            
+            for(PendingUpdate pendingUpdate : pendingUpdates) {
+                
+                final int type = this.getType(pendingUpdate.getUpdateType());
+                
+                final Object other = this.format(pendingUpdate.getEntity(), em, type);
+                
+                if(other == null) {
+                    logger.log(Level.FINE, "Not found, so not removed: {0}", pendingUpdate);
+                    continue;
+                }
+                
+                final EntityUpdater updater = this.context.getEntityUpdater(other.getClass());
+                
+                this.update(em, updater, other, null, type);
+            }
+            
+            em.getTransaction().commit();
+            
+        }finally{
+            if(em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            if(em.isOpen()) {
+                em.close();
+            }
+        }
+    }
+    
+    /**
+     * Snapshots are rehydrated against the EntityManager they are to be 
+     * applied with, except that for a removal the managed entity is found 
+     * by the id of the snapshot. Other entities are passed to the formatter.
+     * @return The entity to apply, or null if the entity to remove was not found
+     */
+    private Object format(Object entity, EntityManager em, int type) {
+        if(entity instanceof EntitySnapshot) {
+            final EntitySnapshot snapshot = (EntitySnapshot)entity;
+            if(type == remove) {
+                return em.find(snapshot.getEntityType(), snapshot.getEntityId());
+            }
+            return snapshot.toEntity(this.context.getEntityUpdater(snapshot.getEntityType()), em);
+        }
+        return this.formatter.apply(entity);
+    }
+    
+    private int getType(PendingUpdate.UpdateType updateType) {
+        switch(updateType) {
+            case PERSIST: return persist;
+            case MERGE: return merge;
+            case REMOVE: return remove;
+            default: throw new UnsupportedOperationException();
+        }
+    }
+    
     private Object beginUpdateCommitAndClose(
             EntityManager em, EntityUpdater updater, 
             Object entity, Object entityId, int type) {
@@ -109,36 +184,7 @@ public class UpdaterImpl implements Updater, Serializable {
 
             em.getTransaction().begin();
             
-            switch(type) {
-                case merge: 
-                    logger.log(Level.FINE, "Merging: {0}", entity);
-                    try{
-                        output = em.merge(entity);
-                    }catch(Exception e) {
-System.err.println(this.getClass().getName()+"\n---------------- CAUGHT EXCEPTION WHILE MERGING ---------------\n" + e);                        
-                        final Class entityType = entity.getClass();
-                        final Object idToFind = entityId == null ? updater.getId(entity) : entityId;
-                        final Object found = em.find(entityType, idToFind);
-                        updater.update(entity, found, false);
-                        output = em.merge(found);
-System.out.println(this.getClass().getName()+"\n----------------   SUCCESSFULLY MERGED ENTITY ---------------");                                                
-//                        em.persist(remote);
-//                        output = em.find(remote.getClass(), this.getId(remote));
-                    }
-                    break;
-                case persist: 
-                    logger.log(Level.FINE, "Persisting: {0}", entity);
-                    em.persist(entity); 
-                    output = entity; 
-                    break;
-                case remove: 
-                    logger.log(Level.FINE, "Removing: {0}", entity);
-                    em.remove(entity); 
-                    output = entity; 
-                    break;
-                default: 
-                    throw new UnsupportedOperationException();
-            }
+            output = this.update(em, updater, entity, entityId, type);
 
             em.getTransaction().commit();
 
@@ -148,4 +194,45 @@ System.out.println(this.getClass().getName()+"\n----------------   SUCCESSFULLY
         
         return output;
     }
+    
+    private Object update(EntityManager em, EntityUpdater updater, 
+            Object entity, Object entityId, int type) {
+        Object output;
+        switch(type) {
+            case merge: 
+                logger.log(Level.FINE, "Merging: {0}", entity);
+                try{
+                    output = em.merge(entity);
+                }catch(Exception e) {
+                    logger.log(Level.WARNING, "Failed to merge: " + entity + ", merging found entity instead", e);
+                    final Class entityType = entity.getClass();
+                    final Object idToFind = entityId == null ? updater.getId(entity) : entityId;
+                    final Object found = em.find(entityType, idToFind);
+                    updater.update(entity, found, false);
+                    output = em.merge(found);
+                    logger.log(Level.FINE, "Merged found entity: {0}", found);
+//                        em.persist(remote);
+//                        output = em.find(remote.getClass(), this.getId(remote));
+                }
+                break;
+            case persist: 
+                logger.log(Level.FINE, "Persisting: {0}", entity);
+                em.persist(entity); 
+                output = entity; 
+                break;
+            case remove: 
+                logger.log(Level.FINE, "Removing: {0}", entity);
+                // Only a managed entity may be removed
+                final Object managed = em.contains(entity) ? entity : 
+                        em.find(entity.getClass(), entityId == null ? updater.getId(entity) : entityId);
+                if(managed != null) {
+                    em.remove(managed); 
+                }
+                output = entity; 
+                break;
+            default: 
+                throw new UnsupportedOperationException();
+        }
+        return output;
+    }
 }
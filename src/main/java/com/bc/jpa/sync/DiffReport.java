@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync;
+
+/**
+ * The result of comparing the rows of an entity type on the master with
+ * those on the slave.
+ * @see JpaDiff
+ */
+public interface DiffReport {
+
+    Class getEntityType();
+
+    /**
+     * @return The number of rows on both the master and the slave, with the
+     * same values
+     */
+    int getMatched();
+
+    /**
+     * @return The number of rows on the master but not on the slave
+     */
+    int getMissing();
+
+    /**
+     * @return The number of rows on both the master and the slave, with
+     * different values
+     */
+    int getDiffered();
+
+    /**
+     * @return The number of rows on the slave but not on the master
+     */
+    int getExtra();
+
+    /**
+     * @return The number of rows written to the slave, of those missing or
+     * differing. Zero if the rows were only compared.
+     */
+    int getSynced();
+
+    /**
+     * @return The number of id ranges the rows were hashed in
+     */
+    int getRanges();
+
+    /**
+     * @return The number of id ranges whose hashes differed, and whose rows
+     * were thus compared one by one
+     */
+    int getRangesDiffered();
+}
@@ -17,23 +17,30 @@
 package com.bc.jpa.sync.impl;
 
 import com.bc.jpa.context.PersistenceUnitContext;
-import com.bc.jpa.search.QuerySearchResults;
-import com.bc.jpa.search.SearchResults;
 import com.bc.jpa.sync.JpaSync;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.persistence.EntityManager;
-import javax.persistence.TypedQuery;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import java.util.Set;
 import com.bc.jpa.DatabaseUpdater;
+import com.bc.jpa.DatabaseUpdaterImpl;
 import com.bc.jpa.util.MapBuilderForEntity;
 
 /**
@@ -51,25 +58,102 @@ public class JpaSyncImpl implements JpaSync {
     
     private final int pageSize;
     
-    private int retrialsOnCommunicationsFailure;
+    private final int fetchSize;
     
     private final int maxRetrialsOnCommunicationsFailure = 100;
     
     private final int intervalBetweenCommunicationsFailureMillis = 5000;
     
+    /**
+     * The retrials on communications failure of the sync of one entity type.
+     * Writers which fail during the same interval wait it out together, and 
+     * count as one retrial.
+     */
+    private final class Retrials {
+        
+        private int count;
+        
+        private long resumeAt;
+        
+        /**
+         * Waits until writes to the slave may be retried.
+         * @return <code>false</code> if the maximum retrials have been made
+         */
+        private boolean await() throws InterruptedException {
+            final long wait;
+            synchronized(this) {
+                final long now = System.currentTimeMillis();
+                if(now >= resumeAt) {
+                    if(++count >= maxRetrialsOnCommunicationsFailure) {
+                        return false;
+                    }
+                    resumeAt = now + intervalBetweenCommunicationsFailureMillis;
+                }
+                wait = resumeAt - now;
+            }
+            Thread.sleep(wait);
+            return true;
+        }
+    }
+    
     private final Predicate<Throwable> commsLinkFailureTest;
     
+    private final MasterSlavePersistenceContextImpl masterSlaveContext;
+    
+    /**
+     * Writes entities already converted to slave entities.
+     */
     private final DatabaseUpdater remoteUpdater;
+    
+    private final int pagesToPrefetch;
+    
+    private final int converterThreads;
+    
+    private final int writerThreads;
+    
+    private final int typeThreads;
+    
+    /**
+     * Null unless syncing incrementally.
+     */
+    private final SyncWatermarks watermarks;
+    
+    private final DeletionPropagator deletionPropagator;
 
+    /**
+     * @param master The master persistence unit
+     * @param slave The slave persistence unit
+     * @param pageSize The number of entities read in each page
+     * @param commsLinkFailureTest Tests exceptions thrown writing to the slave 
+     * for communication link failures, which are retried.
+     * @see JpaSyncImplBuilder
+     */
     public JpaSyncImpl(
             PersistenceUnitContext master, 
             PersistenceUnitContext slave, 
             int pageSize, Predicate<Throwable> commsLinkFailureTest) {
-        this.master = Objects.requireNonNull(master);
-        this.slave = Objects.requireNonNull(slave);
-        this.remoteUpdater = Objects.requireNonNull(new SlaveUpdater(master, slave));
-        this.pageSize = pageSize;
-        this.commsLinkFailureTest = commsLinkFailureTest;
+        this(new JpaSyncImplBuilder()
+                .master(master)
+                .slave(slave)
+                .pageSize(pageSize)
+                .commsLinkFailureTest(commsLinkFailureTest)
+                .validate());
+    }
+    
+    JpaSyncImpl(JpaSyncImplBuilder builder) {
+        this.master = Objects.requireNonNull(builder.getMaster());
+        this.slave = Objects.requireNonNull(builder.getSlave());
+        this.masterSlaveContext = new MasterSlavePersistenceContextImpl(master, slave);
+        this.remoteUpdater = new DatabaseUpdaterImpl(slave, (e) -> true, (e) -> e);
+        this.pageSize = builder.getPageSize();
+        this.fetchSize = builder.getFetchSize();
+        this.commsLinkFailureTest = builder.getCommsLinkFailureTest();
+        this.pagesToPrefetch = builder.getPagesToPrefetch();
+        this.converterThreads = builder.getConverterThreads();
+        this.writerThreads = builder.getWriterThreads();
+        this.typeThreads = builder.getTypeThreads();
+        this.watermarks = builder.getWatermarks();
+        this.deletionPropagator = new DeletionPropagator(master, slave, pageSize, fetchSize);
     }
     
     @Override
@@ -82,28 +166,231 @@ public class JpaSyncImpl implements JpaSync {
         return this.sync(entityTypes, true);
     }
         
+    /**
+     * Types are synced in parallel, each type only after the types it 
+     * references by ManyToOne or OneToOne, if any of these are to be synced.
+     * If the sync of a type fails, the types which reference it are not 
+     * synced, and the failure is rethrown once the other types are synced.
+     */
     public synchronized Map<Class, Integer> sync(Set<Class> entityTypes, boolean setStoppedOnComplete) {    
+        return this.sync(entityTypes, null, setStoppedOnComplete);
+    }
+
+    /**
+     * Syncs the entity types afresh, checkpointing the progress of each type
+     * so that the sync can be resumed if it is interrupted.
+     * @param entityTypes The entity types to sync
+     * @param checkpoints The checkpoints, any earlier ones are cleared
+     * @return The number of entities synced, by entity type
+     * @see #resume(java.util.Set, com.bc.jpa.sync.impl.SyncCheckpoints)
+     */
+    public synchronized Map<Class, Integer> sync(Set<Class> entityTypes, SyncCheckpoints checkpoints) {
+        checkpoints.clear();
+        return this.resume(entityTypes, checkpoints);
+    }
+
+    /**
+     * Continues a sync of the entity types from their checkpoints, e.g after
+     * a restart, or after the maximum retrials on communications failure 
+     * stopped it. Types already synced are not synced again, and the others 
+     * are read from after the last entity committed. As in any sync, retrials
+     * on communications failure are counted afresh for each type.
+     * <p>
+     * Once every type is synced the checkpoints are cleared.
+     * </p>
+     * @param entityTypes The entity types to sync
+     * @param checkpoints The checkpoints to resume from
+     * @return The number of entities synced, by entity type, including those
+     * synced by the earlier runs
+     */
+    public synchronized Map<Class, Integer> resume(Set<Class> entityTypes, SyncCheckpoints checkpoints) {
+        
+        final Map<Class, Integer> output = this.sync(entityTypes, Objects.requireNonNull(checkpoints), true);
+        
+        for(Class entityType : entityTypes) {
+            final SyncCheckpoints.Checkpoint checkpoint = checkpoints.get(entityType);
+            if(checkpoint == null || !checkpoint.isComplete()) {
+                logger.log(Level.WARNING, "Sync incomplete, stopped at: {0}", entityType.getName());
+                return output;
+            }
+        }
+        
+        checkpoints.clear();
+        
+        return output;
+    }
+    
+    private Map<Class, Integer> sync(Set<Class> entityTypes, SyncCheckpoints checkpoints, boolean setStoppedOnComplete) {    
         try{
 
             running = true;
+            
+            if(entityTypes.isEmpty()) {
+                return Collections.EMPTY_MAP;
+            }
+            
+            final Map<Class, Set<Class>> parents = this.getParents(entityTypes);
+            
+            final int threads = Math.min(typeThreads, entityTypes.size());
+            
+            // With one thread, types are synced on this thread in dependency order
+            final ForkJoinPool pool = threads < 2 ? null : new ForkJoinPool(threads);
+            
+            final Executor executor = pool == null ? Runnable::run : pool;
+            
+            try{
+                
+                final Map<Class, CompletableFuture<Integer>> futures = new HashMap<>();
+                
+                for(Class entityType : parents.keySet()) {
+                    
+                    this.submit(entityType, parents, checkpoints, futures, executor);
+                }
+
+                final Map<Class, Integer> output = new HashMap();
+                
+                RuntimeException failure = null;
 
-            final Map<Class, Integer> output = new HashMap();
+                for(Class entityType : parents.keySet()) {
+                    try{
+                        
+                        output.put(entityType, futures.get(entityType).join());
+                        
+                    }catch(CompletionException e) {
+                        if(failure == null) {
+                            failure = e.getCause() instanceof RuntimeException ?
+                                    (RuntimeException)e.getCause() : e;
+                        }
+                    }
+                }
+                
+                if(failure != null) {
+                    throw failure;
+                }
 
-            for(Class entityType : entityTypes) {
- 
-                final int entityUpdateCount = this.sync(entityType, false);
+                return Collections.unmodifiableMap(output);
                 
-                output.put(entityType, entityUpdateCount);
+            }finally{
+                if(pool != null) {
+                    pool.shutdown();
+                }
             }
-
-            return output.isEmpty() ? Collections.EMPTY_MAP : Collections.unmodifiableMap(output);
-            
         }finally{
             if(setStoppedOnComplete) {
                 running = false;
             }
         }
     }
+    
+    private CompletableFuture<Integer> submit(Class entityType, Map<Class, Set<Class>> parents, 
+            SyncCheckpoints checkpoints, Map<Class, CompletableFuture<Integer>> futures, Executor executor) {
+        
+        CompletableFuture<Integer> future = futures.get(entityType);
+        
+        if(future == null) {
+            
+            final Set<Class> typeParents = parents.get(entityType);
+            
+            final CompletableFuture [] waitFor = new CompletableFuture[typeParents.size()];
+            
+            int i = 0;
+            for(Class parent : typeParents) {
+                waitFor[i++] = this.submit(parent, parents, checkpoints, futures, executor);
+            }
+            
+            future = CompletableFuture.allOf(waitFor)
+                    .thenApplyAsync((parentsDone) -> this.syncType(entityType, checkpoints), executor);
+            
+            futures.put(entityType, future);
+        }
+        
+        return future;
+    }
+    
+    private Map<Class, Set<Class>> getParents(Set<Class> entityTypes) {
+        
+        final EntityManager em = master.getEntityManager();
+        
+        try{
+            
+            final Map<Class, Set<Class>> parents = EntityDependencies.getParents(em.getMetamodel(), entityTypes);
+            
+            logger.log(Level.FINE, "Entity types to sync, with their parents: {0}", parents);
+            
+            return parents;
+            
+        }finally{
+            em.close();
+        }
+    }
+
+    /**
+     * Removes from the slave the entities no longer on the master, e.g those 
+     * deleted while the slave was unreachable. The ids of each type are read
+     * in order from both sides and merged, and those on the slave only are 
+     * removed in batches of the page size. Types are done children first, so
+     * that rows are removed before the rows they reference.
+     * @param entityTypes The master entity types
+     * @return The number of slave entities removed, by entity type. Types 
+     * whose ids are not a single comparable attribute are left out.
+     * @see #removeDeleted(java.lang.Class) 
+     */
+    public synchronized Map<Class, Integer> removeDeleted(Set<Class> entityTypes) {
+        try{
+            
+            running = true;
+            
+            final Map<Class, Integer> output = new HashMap<>(entityTypes.size() * 2);
+            
+            final List<Class> ordered = EntityDependencies.getChildrenFirst(this.getParents(entityTypes));
+            
+            for(Class entityType : ordered) {
+                try{
+                    output.put(entityType, this.removeDeletedOfType(entityType));
+                }catch(UnsupportedOperationException e) {
+                    logger.log(Level.WARNING, "Deletions not propagated for {0}. {1}", 
+                            new Object[]{entityType.getName(), e.getMessage()});
+                }
+            }
+            
+            return output.isEmpty() ? Collections.EMPTY_MAP : Collections.unmodifiableMap(output);
+            
+        }finally{
+            running = false;
+        }
+    }
+    
+    /**
+     * Removes from the slave the entities of the type no longer on the master.
+     * @param entityType The master entity type
+     * @return The number of slave entities removed
+     * @throws UnsupportedOperationException If the id of the type is not a
+     * single comparable attribute
+     */
+    public synchronized Integer removeDeleted(Class entityType) {
+        try{
+            
+            running = true;
+            
+            return this.removeDeletedOfType(entityType);
+            
+        }finally{
+            running = false;
+        }
+    }
+    
+    private int removeDeletedOfType(Class entityType) {
+        
+        final Class slaveType = masterSlaveContext.getOtherTypeFromContext(slave, entityType, null);
+        
+        if(slaveType == null) {
+            throw new UnsupportedOperationException("No slave type for: " + entityType);
+        }
+        
+        logger.log(Level.FINE, "Propagating deletions of: {0}", entityType.getName());
+        
+        return deletionPropagator.propagate(entityType, slaveType);
+    }
 
     @Override
     public synchronized Integer sync(Class entityType) {
@@ -111,102 +398,340 @@ public class JpaSyncImpl implements JpaSync {
     }
         
     public synchronized Integer sync(Class entityType, boolean setStoppedOnComplete) { 
+        try{
+            
+            running = true;
+            
+            return this.syncType(entityType, null);
+            
+        }finally{
+            if(setStoppedOnComplete) {
+                running = false;
+            }
+        }
+    }
+    
+    /**
+     * @param checkpoints The checkpoints to resume from and to update, or 
+     * <code>null</code> if the sync is not checkpointed
+     */
+    private int syncType(Class entityType, SyncCheckpoints checkpoints) {
+        
+        final SyncCheckpoints.Checkpoint checkpoint = checkpoints == null ? null : checkpoints.get(entityType);
+        
+        if(checkpoint != null && checkpoint.isComplete()) {
+            logger.log(Level.FINE, "Already synced: {0}", entityType.getName());
+            return checkpoint.getCount();
+        }
         
         logger.log(Level.FINE, "Syncing: {0}", entityType.getName());
         
         int entityUpdateCount = 0;
 
-        EntityManager masterEm = null;
-        
         try{
             
-            running = true;
+            final KeysetPager pager = this.getPager(entityType);
             
-            masterEm = master.getEntityManager();
-      
-            final CriteriaBuilder cb = masterEm.getCriteriaBuilder();
+            // Offset paging can not start after a key, so such types start afresh
+            final SyncCheckpoints.Checkpoint resumeFrom = pager == null || 
+                    checkpoint == null || checkpoint.getLastKey() == null ? null : checkpoint;
             
-            final CriteriaQuery cq = cb.createQuery(entityType);
-
-            final String idColumnName = master.getMetaData().getIdColumnName(entityType);
+            if(resumeFrom != null) {
+                logger.log(Level.INFO, "Resuming {0} from: {1}", new Object[]{entityType.getName(), resumeFrom});
+                pager.startAfter(resumeFrom.getLastKey());
+            }
             
-            cq.orderBy(cb.asc(cq.from(entityType).get(idColumnName)));
+            final int readBefore = resumeFrom == null ? 0 : resumeFrom.getReadCount();
+            final int writtenBefore = resumeFrom == null ? 0 : resumeFrom.getCount();
             
-            final TypedQuery tq = masterEm.createQuery(cq);
+            // The last key of each page read, by page number, until committed
+            final Map<Integer, Object[]> pageKeys = new ConcurrentHashMap<>();
             
-            final SearchResults sr = new QuerySearchResults(tq, pageSize, false);
+            final Function<EntityManager, List> pageReader;
+            if(pager == null) {
+                pageReader = this.getOffsetPageReader(entityType);
+            }else if(checkpoints == null && watermarks == null) {
+                pageReader = pager::read;
+            }else{
+                final int [] pageNumber = new int[1];
+                pageReader = (pageEm) -> {
+                    final List page = pager.read(pageEm);
+                    if(!page.isEmpty()) {
+                        pageKeys.put(pageNumber[0]++, pager.getLastKey());
+                    }
+                    return page;
+                };
+            }
+            
+            final Retrials retrials = new Retrials();
+            
+            // The ids of the entities which failed to be written, other than 
+            // for a communications failure
+            final Set<Object> failedIds = ConcurrentHashMap.newKeySet();
             
-            logger.log(Level.FINE, "Number of records to sync: {0}", sr.getSize());
+            final int retriedCount = watermarks == null || pager == null ? 0 :
+                    this.retryFailed(entityType, retrials, failedIds);
+            
+            final SyncPipeline pipeline = this.newPipeline(entityType, pageReader, retrials, failedIds);
+            
+            // The last key of the pages committed
+            final Object [][] committedKey = new Object[1][];
+            
+            if(checkpoints != null || watermarks != null) {
+                pipeline.setProgressListener((pageCount, readCount, writeCount) -> {
+                    final Object [] lastKey = pageKeys.remove(pageCount - 1);
+                    pageKeys.keySet().removeIf((pageNumber) -> pageNumber < pageCount);
+                    committedKey[0] = lastKey;
+                    if(checkpoints != null) {
+                        checkpoints.update(entityType, lastKey, readBefore + readCount, writtenBefore + writeCount);
+                    }
+                });
+            }
+            
+            try{
+                
+                entityUpdateCount = pipeline.run();
+                
+                if(checkpoints != null && !pipeline.isAborted()) {
+                    checkpoints.complete(entityType, 
+                            readBefore + pipeline.getReadCount(), writtenBefore + entityUpdateCount);
+                }
+            }finally{
+                if(checkpoints != null) {
+                    checkpoints.flush();
+                }
+            }
+            
+            if(watermarks != null && pager != null) {
+                this.advanceWatermark(entityType, committedKey[0], failedIds, writtenBefore == readBefore);
+            }
+            
+            entityUpdateCount += writtenBefore + retriedCount;
+            
+        }catch(InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted syncing: " + entityType.getName(), e);
+            Thread.currentThread().interrupt();
+        }
+        
+        final int count = entityUpdateCount;
+        logger.fine(() -> "Entity type: "+entityType.getName()+", number of records synced: "+count);
 
-            outer:
-            for(int pageNumber=0; pageNumber<sr.getPageCount(); pageNumber++) {
+        return entityUpdateCount;
+    }
+    
+    private SyncPipeline newPipeline(Class entityType, Function<EntityManager, List> pageReader, 
+            Retrials retrials, Set<Object> failedIds) {
+        
+        final PersistenceUnitUtil persistenceUnitUtil = this.getPersistenceUnitUtil();
+        
+        final SyncPipeline [] pipeline = new SyncPipeline[1];
 
-                final List pageResults = sr.getPage(pageNumber);
-//System.out.println("\nPage_"+pageNumber+" has " + pageResults.size() + " results");
-                int lastIndex = -1;
-                
-                for(int index=0; index<pageResults.size(); index++) {
-//System.out.println(entityType.getName()+". Page_"+pageNumber+"("+index+") at: "+this.getClass().getName()+" on "+LocalDateTime.now());
-                    final boolean retrying = index == lastIndex;
+        pipeline[0] = new SyncPipeline(
+                entityType.getSimpleName(),
+                () -> master.getEntityManager(),
+                pageReader,
+                (entity) -> {
+                    final Object converted = masterSlaveContext.apply(entity);
+                    return converted == null ? null : 
+                            new Object[]{converted, persistenceUnitUtil.getIdentifier(entity)};
+                },
+                (converted) -> this.write((Object[])converted, pipeline[0], retrials, failedIds),
+                pagesToPrefetch, converterThreads, writerThreads, pageSize);
+        
+        return pipeline[0];
+    }
+    
+    private PersistenceUnitUtil getPersistenceUnitUtil() {
+        final EntityManager em = master.getEntityManager();
+        try{
+            return em.getEntityManagerFactory().getPersistenceUnitUtil();
+        }finally{
+            em.close();
+        }
+    }
+    
+    /**
+     * Syncs again the entities of the type, behind the watermark, which 
+     * failed to be written by an earlier sync. Those deleted from the master 
+     * since are dropped.
+     * @param failedIds Receives the ids of those which fail again, or of all 
+     * if the retry is aborted
+     * @return The number of entities written
+     */
+    private int retryFailed(Class entityType, Retrials retrials, Set<Object> failedIds) throws InterruptedException {
+        
+        final Set<Object> ids = watermarks.getFailedIds(entityType);
+        
+        if(ids.isEmpty()) {
+            return 0;
+        }
+        
+        logger.log(Level.INFO, "Retrying {0} entities of {1} which failed to sync", 
+                new Object[]{ids.size(), entityType.getName()});
+        
+        final Iterator<Object> remaining = ids.iterator();
+        
+        final SyncPipeline pipeline = this.newPipeline(entityType, (pageEm) -> {
+            final List page = new ArrayList(pageSize);
+            while(page.size() < pageSize && remaining.hasNext()) {
+                final Object entity = pageEm.find(entityType, remaining.next());
+                if(entity != null) {
+                    page.add(entity);
+                }
+            }
+            return page;
+        }, retrials, failedIds);
+        
+        final int written = pipeline.run();
+        
+        if(pipeline.isAborted()) {
+            failedIds.addAll(ids);
+        }
+        
+        return written;
+    }
+    
+    /**
+     * Advances the watermark of the type to the last key committed, keeping 
+     * with it the ids of the entities which failed to be written, so that a 
+     * row which keeps failing on the slave does not hold the watermark back.
+     * @param committedKey The last key of the pages committed, or 
+     * <code>null</code> if none, in which case only the failed ids are kept
+     * @param resumedClean <code>false</code> if resumed from a checkpoint 
+     * short of some entities, whose ids are not known
+     */
+    private void advanceWatermark(Class entityType, Object [] committedKey, 
+            Set<Object> failedIds, boolean resumedClean) {
+        
+        if(!resumedClean) {
+            logger.log(Level.WARNING, "Not all read before resuming were synced, watermark of {0} not advanced", 
+                    entityType.getName());
+            return;
+        }
+        
+        final Object [] key = committedKey != null ? committedKey : watermarks.get(entityType);
+        
+        // Without a watermark the next sync reads every entity anyway
+        if(key != null) {
+            watermarks.set(entityType, key, failedIds);
+        }
+        
+        if(!failedIds.isEmpty()) {
+            logger.log(Level.WARNING, "{0} entities of {1} failed to sync, to be retried by the next sync", 
+                    new Object[]{failedIds.size(), entityType.getName()});
+        }
+    }
+    
+    /**
+     * Writes an entity converted to a slave entity. On a communications link 
+     * failure the write is retried after an interval, until the maximum 
+     * number of retrials of the entity type, after which the pipeline is 
+     * aborted.
+     * @param converted The slave entity and the id of the master entity
+     * @param failedIds Receives the id if the entity fails to be written 
+     * other than for a communications failure
+     * @return <code>true</code> if the entity was written
+     */
+    private boolean write(Object [] converted, SyncPipeline pipeline, Retrials retrials, Set<Object> failedIds) {
+        
+        final Object entity = converted[0];
+        
+        while(!pipeline.isAborted()) {
+            
+            try{
+
+                logger.finer(() -> "Syncing entity: " + new MapBuilderForEntity().maxDepth(1).maxCollectionSize(0).source(entity).build());
+                        
+                this.remoteUpdater.updateOrPersistIfNotFound(entity);
+
+                return true;
+
+            }catch(Exception e) { 
+
+                logger.log(Level.WARNING, "For entity: {0}. {1}", new Object[]{entity, e});
+
+                if(commsLinkFailureTest == null || !commsLinkFailureTest.test(e)) {
                     
-                    lastIndex = index;
-//System.out.println("--------------------");                    
-                    final Object entity = pageResults.get(index);
-//System.out.println(entityType.getName()+". Page_"+pageNumber+"("+index+") = "+entity+". at: "+this.getClass().getName()+" on "+LocalDateTime.now());
-                    if(retrying) {
-                        if(logger.isLoggable(Level.FINE)) {
-                            logger.log(Level.FINE, 
-                                    "Retrying. Page: {0}, index in page: {1}, entity: {2}",
-                                    new Object[]{pageNumber, index, entity});
-                        }
-                    }
+                    failedIds.add(converted[1]);
                     
-                    try{
-                        
-                        logger.finer(() -> "Syncing entity: " + new MapBuilderForEntity().maxDepth(1).maxCollectionSize(0).source(entity).build());
-                        
-                        this.remoteUpdater.updateOrPersistIfNotFound(entity);
-                   
-                        ++entityUpdateCount;
-                        
-                    }catch(Exception e) { 
-                        
-                        logger.log(Level.WARNING, "For entity: {0}. {1}", new Object[]{entity, e});
-                        
-                        if(commsLinkFailureTest != null && commsLinkFailureTest.test(e)) {
-                            
-                            if(++this.retrialsOnCommunicationsFailure >= this.maxRetrialsOnCommunicationsFailure) {
-                                
-                                break outer;
-                                
-                            }else{
-                                try{
-                                    this.wait(intervalBetweenCommunicationsFailureMillis);
-                                }catch(InterruptedException ie) {
-                                    logger.log(Level.WARNING, "Wait interrupted", ie);
-                                }finally{
-                                    
-                                    this.notifyAll();
-                                    
-                                    --index;
-                                }
-                            }
-                        }
+                    return false;
+                }
+                
+                try{
+                    if(!retrials.await()) {
+
+                        pipeline.abort();
+
+                    }else{
+
+                        logger.log(Level.FINE, "Retrying entity: {0}", entity);
                     }
+                }catch(InterruptedException ie) {
+                    logger.log(Level.WARNING, "Wait interrupted", ie);
                 }
             }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Pages are read by keyset, each after the last id of the previous page, 
+     * so each costs the master the same however far into the table it is. 
+     * In incremental mode only the entities after the watermark of the type
+     * are read.
+     * @return The pager, or <code>null</code> if the id of the type is not 
+     * comparable, e.g an embedded id, in which case offset paging is used.
+     */
+    private KeysetPager getPager(Class entityType) {
+        
+        final String attribute = watermarks == null ? null : watermarks.getModificationAttribute(entityType);
+        
+        final EntityManager em = master.getEntityManager();
+        
+        final KeysetPager pager;
+        try{
+            pager = KeysetPager.forType(em, entityType, pageSize, attribute);
         }finally{
-            if(setStoppedOnComplete) {
-                running = false;
-            }
-            if(masterEm != null && masterEm.isOpen()) {
-                masterEm.close();
+            em.close();
+        }
+        
+        if(pager != null) {
+            pager.setFetchSize(fetchSize);
+        }
+        
+        if(pager != null && watermarks != null) {
+            final Object [] watermark = watermarks.get(entityType);
+            if(watermark != null) {
+                pager.startAfter(watermark);
             }
         }
         
-        final int count = entityUpdateCount;
-        logger.fine(() -> "Entity type: "+entityType.getName()+", number of records synced: "+count);
+        return pager;
+    }
+    
+    private Function<EntityManager, List> getOffsetPageReader(Class entityType) {
+        
+        logger.log(Level.FINE, "Key not comparable, using offset paging for: {0}", entityType.getName());
+        
+        final String idColumnName = master.getMetaData().getIdColumnName(entityType);
+        
+        final int [] offset = new int[1];
+        
+        return (pageEm) -> {
+            
+            final CriteriaBuilder cb = pageEm.getCriteriaBuilder();
 
-        return entityUpdateCount;
+            final CriteriaQuery cq = cb.createQuery(entityType);
+
+            cq.orderBy(cb.asc(cq.from(entityType).get(idColumnName)));
+
+            final List page = ReadHints.apply(pageEm.createQuery(cq), fetchSize)
+                    .setFirstResult(offset[0]).setMaxResults(pageSize).getResultList();
+            
+            offset[0] += page.size();
+            
+            return page;
+        };
     }
 }
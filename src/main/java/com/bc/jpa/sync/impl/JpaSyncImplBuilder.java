@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.context.PersistenceUnitContext;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Usage:
+ * <pre>
+ * JpaSyncImpl jpaSync = new JpaSyncImplBuilder()
+ *         .master(master)
+ *         .slave(slave)
+ *         .pageSize(100)
+ *         .commsLinkFailureTest(new PersistenceCommunicationsLinkFailureTest())
+ *         .writerThreads(4)
+ *         .build();
+ * </pre>
+ * Entities are synced in a pipeline: pages are read from the master ahead
+ * of being converted to slave entities, which are written to the slave
+ * while later pages are being read and converted.
+ * <p>
+ * Entities are read from the master for streaming: they bypass the shared
+ * cache, which would otherwise grow with each table read, and the rows of
+ * each page are fetched in batches of the fetch size. Each page is read into
+ * its own persistence context, which is closed once the page is converted,
+ * so memory depends on the page size and the number of pages in the
+ * pipeline, not on the size of the tables.
+ * </p>
+ */
+public class JpaSyncImplBuilder {
+
+    private PersistenceUnitContext master;
+
+    private PersistenceUnitContext slave;
+
+    private int pageSize;
+
+    private Predicate<Throwable> commsLinkFailureTest;
+
+    private int pagesToPrefetch = 1;
+
+    private int converterThreads = 1;
+
+    private int writerThreads = 1;
+
+    private int typeThreads = 1;
+
+    private SyncWatermarks watermarks;
+
+    private int fetchSize;
+
+    private boolean buildAttempted;
+
+    public JpaSyncImpl build() {
+        return new JpaSyncImpl(this.validate());
+    }
+
+    JpaSyncImplBuilder validate() {
+        if(buildAttempted) {
+            throw new IllegalStateException("build() method may only be called once");
+        }
+        buildAttempted = true;
+        Objects.requireNonNull(master);
+        Objects.requireNonNull(slave);
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("Page size < 1");
+        }
+        if(pagesToPrefetch < 1) {
+            throw new IllegalArgumentException("Pages to prefetch < 1");
+        }
+        if(converterThreads < 1) {
+            throw new IllegalArgumentException("Converter threads < 1");
+        }
+        if(writerThreads < 1) {
+            throw new IllegalArgumentException("Writer threads < 1");
+        }
+        if(typeThreads < 1) {
+            throw new IllegalArgumentException("Type threads < 1");
+        }
+        if(fetchSize < 0) {
+            throw new IllegalArgumentException("Fetch size < 0");
+        }
+        if(fetchSize == 0) {
+            fetchSize = pageSize;
+        }
+        return this;
+    }
+
+    /**
+     * @param master The master persistence unit
+     * @return this builder
+     */
+    public JpaSyncImplBuilder master(PersistenceUnitContext master) {
+        this.master = master;
+        return this;
+    }
+
+    /**
+     * @param slave The slave persistence unit
+     * @return this builder
+     */
+    public JpaSyncImplBuilder slave(PersistenceUnitContext slave) {
+        this.slave = slave;
+        return this;
+    }
+
+    /**
+     * @param pageSize The number of entities read in each page. Also the
+     * number of converted entities held ahead of the writers.
+     * @return this builder
+     */
+    public JpaSyncImplBuilder pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param commsLinkFailureTest Tests exceptions thrown writing to the slave
+     * for communication link failures, which are retried.
+     * @return this builder
+     */
+    public JpaSyncImplBuilder commsLinkFailureTest(Predicate<Throwable> commsLinkFailureTest) {
+        this.commsLinkFailureTest = commsLinkFailureTest;
+        return this;
+    }
+
+    /**
+     * @param pagesToPrefetch The number of pages read ahead of conversion.
+     * Defaults to 1.
+     * @return this builder
+     */
+    public JpaSyncImplBuilder pagesToPrefetch(int pagesToPrefetch) {
+        this.pagesToPrefetch = pagesToPrefetch;
+        return this;
+    }
+
+    /**
+     * @param converterThreads The number of threads converting pages.
+     * Defaults to 1.
+     * @return this builder
+     */
+    public JpaSyncImplBuilder converterThreads(int converterThreads) {
+        this.converterThreads = converterThreads;
+        return this;
+    }
+
+    /**
+     * @param writerThreads The number of threads writing to the slave.
+     * Defaults to 1.
+     * @return this builder
+     */
+    public JpaSyncImplBuilder writerThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+        return this;
+    }
+
+    /**
+     * @param typeThreads The number of entity types synced in parallel, each
+     * with its own pipeline. Defaults to 1, which syncs the types one after
+     * the other on the calling thread.
+     * @return this builder
+     */
+    public JpaSyncImplBuilder typeThreads(int typeThreads) {
+        this.typeThreads = typeThreads;
+        return this;
+    }
+
+    /**
+     * Syncs incrementally, reading only the entities after the watermark of
+     * their type. After each sync of the type the watermark is advanced to 
+     * the last entity committed. Entities behind it which failed to be 
+     * written are recorded with it, and synced again by the next sync.
+     * @param watermarks The watermarks of the entity types, or <code>null</code>,
+     * the default, to read all the entities of each type
+     * @return this builder
+     */
+    public JpaSyncImplBuilder watermarks(SyncWatermarks watermarks) {
+        this.watermarks = watermarks;
+        return this;
+    }
+
+    /**
+     * @param fetchSize The number of rows fetched from the master in each
+     * round trip. Defaults to the page size.
+     * @return this builder
+     */
+    public JpaSyncImplBuilder fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    PersistenceUnitContext getMaster() {
+        return master;
+    }
+
+    PersistenceUnitContext getSlave() {
+        return slave;
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    Predicate<Throwable> getCommsLinkFailureTest() {
+        return commsLinkFailureTest;
+    }
+
+    int getPagesToPrefetch() {
+        return pagesToPrefetch;
+    }
+
+    int getConverterThreads() {
+        return converterThreads;
+    }
+
+    int getWriterThreads() {
+        return writerThreads;
+    }
+
+    int getTypeThreads() {
+        return typeThreads;
+    }
+
+    SyncWatermarks getWatermarks() {
+        return watermarks;
+    }
+
+    int getFetchSize() {
+        return fetchSize;
+    }
+}
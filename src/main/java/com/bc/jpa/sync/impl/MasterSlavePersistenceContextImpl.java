@@ -22,10 +22,10 @@ import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.logging.Logger;
 import com.bc.jpa.EntityMemberAccess;
@@ -68,8 +68,8 @@ public class MasterSlavePersistenceContextImpl implements  Serializable, MasterS
         this.slave = Objects.requireNonNull(slaveContext);
         this.preFormatter = Objects.requireNonNull(preFormatter);
         this.postFormatter = Objects.requireNonNull(postFormatter);
-        this.masterUpdaters = new LinkedHashMap<>();
-        this.slaveUpdaters = new LinkedHashMap<>();
+        this.masterUpdaters = new ConcurrentHashMap<>();
+        this.slaveUpdaters = new ConcurrentHashMap<>();
     }
     
     @Override
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.CacheStoreMode;
+import javax.persistence.Query;
+
+/**
+ * Query hints for reading every entity of a type once, as a sync does.
+ * <ul>
+ * <li>Entities are neither read from nor put into the shared cache, which
+ * would otherwise grow with each table read.</li>
+ * <li>The driver fetches rows in batches of the fetch size, rather than all
+ * at once or one round trip at a time.</li>
+ * <li>Hibernate keeps no snapshot of the entities for dirty checking.</li>
+ * </ul>
+ * Hints a provider does not understand are ignored by it.
+ */
+final class ReadHints {
+
+    private ReadHints() { }
+
+    /**
+     * @param <Q> The type of the query
+     * @param query The query to set the hints on
+     * @param fetchSize The number of rows the driver fetches in each batch
+     * @return The query
+     */
+    static <Q extends Query> Q apply(Q query, int fetchSize) {
+        query.setHint("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS);
+        query.setHint("javax.persistence.cache.storeMode", CacheStoreMode.BYPASS);
+        query.setHint("org.hibernate.fetchSize", fetchSize);
+        query.setHint("org.hibernate.readOnly", Boolean.TRUE);
+        // Not eclipselink.read-only, which returns the shared instances of
+        // entities, while converting to slave entities modifies them
+        query.setHint("eclipselink.jdbc.fetch-size", fetchSize);
+        return query;
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+
+/**
+ * Syncs the entities of one type in three stages connected by bounded queues,
+ * so that reading from the master, converting and writing to the slave
+ * overlap instead of adding up:
+ * <pre>
+ * reader (calling thread) --pages--&gt; converters --entities--&gt; writers
+ * </pre>
+ * Each page is read with its own EntityManager, which is handed on with the
+ * page and closed once the page is converted. Lazy references are thus only
+ * ever loaded by the one converter thread which has the page.
+ * <p>
+ * When a queue is full the stage before it waits, so no more than
+ * <code>pagesToPrefetch</code> pages and <code>writeQueueCapacity</code>
+ * converted entities are held at any time.
+ * </p>
+ * <p>
+ * Pages are converted and written out of order. A page is committed once
+ * every entity of it, and of every page read before it, has been written or
+ * skipped. A {@link ProgressListener} is told each time pages are committed.
+ * </p>
+ */
+final class SyncPipeline {
+
+    private transient static final Logger logger = Logger.getLogger(SyncPipeline.class.getName());
+
+    interface ProgressListener {
+        /**
+         * Called on a writer or converter thread, one call at a time.
+         * @param pageCount The number of pages committed, from the first
+         * @param readCount The number of entities of those pages
+         * @param writeCount The number of entities of those pages written
+         */
+        void committed(int pageCount, int readCount, int writeCount);
+    }
+
+    private static final class Page {
+        private final int number;
+        private final EntityManager entityManager;
+        private final List entities;
+        /**
+         * The number of entities of the page yet to be written or skipped
+         */
+        private final AtomicInteger pending;
+        private final AtomicInteger written = new AtomicInteger();
+        private Page(int number, EntityManager entityManager, List entities) {
+            this.number = number;
+            this.entityManager = entityManager;
+            this.entities = entities;
+            this.pending = new AtomicInteger(entities == null ? 0 : entities.size());
+        }
+    }
+
+    private static final class Converted {
+        private final Page page;
+        private final Object entity;
+        private Converted(Page page, Object entity) {
+            this.page = page;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Tells a converter or writer that there is nothing more to take.
+     */
+    private static final Converted END = new Converted(null, null);
+
+    private static final Page END_PAGE = new Page(-1, null, null);
+
+    private final String name;
+
+    private final Supplier<EntityManager> entityManagers;
+
+    private final Function<EntityManager, List> pageReader;
+
+    private final Function converter;
+
+    private final Predicate writer;
+
+    private final int converterThreads;
+
+    private final int writerThreads;
+
+    private final BlockingQueue<Page> pages;
+
+    private final BlockingQueue<Converted> converted;
+
+    private final AtomicInteger writeCount = new AtomicInteger();
+
+    private int readCount;
+
+    private int pageCount;
+
+    /**
+     * The pages done but not yet committed, by page number. Guarded by itself.
+     */
+    private final Map<Integer, Page> pagesDone = new HashMap<>();
+
+    private int committedPageCount;
+
+    private int committedReadCount;
+
+    private int committedWriteCount;
+
+    private ProgressListener progressListener;
+
+    private volatile boolean aborted;
+
+    /**
+     * @param name The name of the pipeline, used to name its threads
+     * @param entityManagers Supplies an EntityManager for each page to be read
+     * @param pageReader Reads the next page with the EntityManager passed
+     * to it. An empty page ends the reading.
+     * @param converter Converts each entity read for writing. Returns
+     * <code>null</code> if the entity is to be skipped.
+     * @param writer Writes each converted entity. Returns <code>true</code>
+     * if the entity was written.
+     * @param pagesToPrefetch The number of pages read ahead of the converters
+     * @param converterThreads The number of threads converting pages
+     * @param writerThreads The number of threads writing converted entities
+     * @param writeQueueCapacity The number of converted entities held ahead
+     * of the writers
+     */
+    SyncPipeline(String name,
+            Supplier<EntityManager> entityManagers,
+            Function<EntityManager, List> pageReader,
+            Function converter, Predicate writer,
+            int pagesToPrefetch, int converterThreads,
+            int writerThreads, int writeQueueCapacity) {
+        if(pagesToPrefetch < 1) {
+            throw new IllegalArgumentException("Pages to prefetch < 1");
+        }
+        if(converterThreads < 1) {
+            throw new IllegalArgumentException("Converter threads < 1");
+        }
+        if(writerThreads < 1) {
+            throw new IllegalArgumentException("Writer threads < 1");
+        }
+        if(writeQueueCapacity < 1) {
+            throw new IllegalArgumentException("Write queue capacity < 1");
+        }
+        this.name = Objects.requireNonNull(name);
+        this.entityManagers = Objects.requireNonNull(entityManagers);
+        this.pageReader = Objects.requireNonNull(pageReader);
+        this.converter = Objects.requireNonNull(converter);
+        this.writer = Objects.requireNonNull(writer);
+        this.converterThreads = converterThreads;
+        this.writerThreads = writerThreads;
+        this.pages = new ArrayBlockingQueue<>(pagesToPrefetch);
+        this.converted = new ArrayBlockingQueue<>(writeQueueCapacity);
+    }
+
+    /**
+     * Reads the pages on the calling thread, and returns once every entity
+     * read has been written or skipped, or the pipeline is aborted.
+     * @return The number of entities written
+     * @throws InterruptedException If interrupted while waiting on a stage
+     * @throws RuntimeException If thrown while reading. The other stages
+     * are stopped before it is rethrown.
+     */
+    int run() throws InterruptedException {
+
+        final CountDownLatch convertersDone = new CountDownLatch(converterThreads);
+        for(int i=0; i<converterThreads; i++) {
+            this.start("Converter-" + (i + 1), () -> this.convert(), convertersDone);
+        }
+
+        final CountDownLatch writersDone = new CountDownLatch(writerThreads);
+        for(int i=0; i<writerThreads; i++) {
+            this.start("Writer-" + (i + 1), () -> this.write(), writersDone);
+        }
+
+        try{
+            this.read();
+        }catch(RuntimeException | InterruptedException e) {
+            aborted = true;
+            throw e;
+        }finally{
+            // Converters and writers keep taking, without working, once
+            // aborted; so the queues always drain and these never block
+            for(int i=0; i<converterThreads; i++) {
+                pages.put(END_PAGE);
+            }
+            convertersDone.await();
+            for(int i=0; i<writerThreads; i++) {
+                converted.put(END);
+            }
+            writersDone.await();
+        }
+
+        return writeCount.get();
+    }
+
+    private void start(String stage, Runnable task, CountDownLatch done) {
+        final Thread thread = new Thread(() -> {
+            try{
+                task.run();
+            }finally{
+                done.countDown();
+            }
+        }, this.getClass().getName() + '_' + name + '_' + stage);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void read() throws InterruptedException {
+        while(!aborted) {
+            final EntityManager em = entityManagers.get();
+            final List entities;
+            try{
+                entities = pageReader.apply(em);
+            }catch(RuntimeException e) {
+                this.close(em);
+                throw e;
+            }
+            if(entities.isEmpty()) {
+                this.close(em);
+                break;
+            }
+            readCount += entities.size();
+            pages.put(new Page(pageCount++, em, entities));
+        }
+    }
+
+    private void convert() {
+        try{
+            Page page;
+            while((page = pages.take()) != END_PAGE) {
+                try{
+                    for(Object entity : page.entities) {
+                        if(aborted) {
+                            break;
+                        }
+                        final Object output;
+                        try{
+                            output = converter.apply(entity);
+                        }catch(RuntimeException e) {
+                            logger.log(Level.WARNING, "Failed to convert: " + entity, e);
+                            this.done(page, false);
+                            continue;
+                        }
+                        if(output != null) {
+                            converted.put(new Converted(page, output));
+                        }else{
+                            this.done(page, false);
+                        }
+                    }
+                }finally{
+                    this.close(page.entityManager);
+                }
+            }
+        }catch(InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted converting", e);
+            aborted = true;
+        }
+    }
+
+    private void write() {
+        try{
+            Converted next;
+            while((next = converted.take()) != END) {
+                if(aborted) {
+                    continue;
+                }
+                boolean written = false;
+                try{
+                    written = writer.test(next.entity);
+                    if(written) {
+                        writeCount.incrementAndGet();
+                    }
+                }catch(RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to write: " + next.entity, e);
+                }
+                // The writer gives up on an entity when the pipeline is
+                // aborted, so the entity must not be committed as skipped
+                if(written || !aborted) {
+                    this.done(next.page, written);
+                }
+            }
+        }catch(InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted writing", e);
+            aborted = true;
+        }
+    }
+
+    private void done(Page page, boolean written) {
+        if(written) {
+            page.written.incrementAndGet();
+        }
+        if(page.pending.decrementAndGet() > 0) {
+            return;
+        }
+        synchronized(pagesDone) {
+            pagesDone.put(page.number, page);
+            if(page.number != committedPageCount) {
+                return;
+            }
+            Page committed;
+            while((committed = pagesDone.remove(committedPageCount)) != null) {
+                committedReadCount += committed.entities.size();
+                committedWriteCount += committed.written.get();
+                ++committedPageCount;
+            }
+            if(progressListener != null) {
+                progressListener.committed(committedPageCount, committedReadCount, committedWriteCount);
+            }
+        }
+    }
+
+    private void close(EntityManager em) {
+        if(em != null && em.isOpen()) {
+            em.close();
+        }
+    }
+
+    void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Stops the pipeline. Entities already read are dropped.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * @return The number of entities read
+     */
+    int getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * @return The number of pages committed, from the first
+     */
+    int getCommittedPageCount() {
+        synchronized(pagesDone) {
+            return committedPageCount;
+        }
+    }
+
+    /**
+     * @return The number of entities of the committed pages
+     */
+    int getCommittedReadCount() {
+        synchronized(pagesDone) {
+            return committedReadCount;
+        }
+    }
+
+    /**
+     * @return The number of entities of the committed pages written
+     */
+    int getCommittedWriteCount() {
+        synchronized(pagesDone) {
+            return committedWriteCount;
+        }
+    }
+}
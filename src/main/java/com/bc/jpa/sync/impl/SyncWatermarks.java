@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The key of the last entity synced, for each entity type, kept in a local
+ * file between runs. An incremental sync reads only the entities after the
+ * watermark of their type.
+ * <p>
+ * The key is either the id, which picks up entities added since the last
+ * sync, or a modification attribute followed by the id, which also picks up
+ * entities changed since the last sync. A modification attribute, e.g a last
+ * modified timestamp or a version number, must not be null, and must
+ * increase each time the entity is changed.
+ * </p>
+ * <p>
+ * The ids of entities behind the watermark which failed to be written are 
+ * kept with it, so that a row which keeps failing does not hold the 
+ * watermark back. They are synced again by the next sync.
+ * </p>
+ * <pre>
+ * SyncWatermarks watermarks = new SyncWatermarks(
+ *         new File(dir, "sync.watermarks"), (type) -&gt; "timemodified");
+ * </pre>
+ * @see JpaSyncImplBuilder#watermarks(com.bc.jpa.sync.impl.SyncWatermarks)
+ */
+public class SyncWatermarks {
+
+    private transient static final Logger logger = Logger.getLogger(SyncWatermarks.class.getName());
+
+    private static final class Watermark implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String attribute;
+        private final Object [] key;
+        /**
+         * Null in watermarks saved before failed ids were recorded.
+         */
+        private final Object [] failedIds;
+        private Watermark(String attribute, Object [] key, Object [] failedIds) {
+            this.attribute = attribute;
+            this.key = key;
+            this.failedIds = failedIds;
+        }
+    }
+
+    private final File file;
+
+    private final Function<Class, String> modificationAttributes;
+
+    private Map<String, Watermark> watermarks;
+
+    /**
+     * Watermarks entity types by id.
+     * @param file The file to keep the watermarks in
+     */
+    public SyncWatermarks(File file) {
+        this(file, (entityType) -> null);
+    }
+
+    /**
+     * @param file The file to keep the watermarks in
+     * @param modificationAttributes Returns the name of the modification
+     * attribute of each entity type, or <code>null</code> to watermark the
+     * type by id
+     */
+    public SyncWatermarks(File file, Function<Class, String> modificationAttributes) {
+        this.file = Objects.requireNonNull(file);
+        this.modificationAttributes = Objects.requireNonNull(modificationAttributes);
+    }
+
+    /**
+     * @param entityType The entity type
+     * @return The name of the modification attribute of the entity type, or
+     * <code>null</code> if it is watermarked by id
+     */
+    public String getModificationAttribute(Class entityType) {
+        return modificationAttributes.apply(entityType);
+    }
+
+    /**
+     * @param entityType The entity type
+     * @return The key of the last entity of the type synced, the modification
+     * attribute first if any, or <code>null</code> if none. A watermark saved
+     * under another modification attribute is not returned.
+     */
+    public synchronized Object [] get(Class entityType) {
+        final Watermark watermark = this.getWatermark(entityType);
+        return watermark == null ? null : watermark.key.clone();
+    }
+
+    /**
+     * @param entityType The entity type
+     * @return The ids of the entities of the type, behind the watermark, 
+     * which failed to be written to the slave and are yet to be synced. 
+     * Empty if none, or if the watermark is not returned by 
+     * {@link #get(java.lang.Class)}.
+     */
+    public synchronized Set<Object> getFailedIds(Class entityType) {
+        final Watermark watermark = this.getWatermark(entityType);
+        if(watermark == null || watermark.failedIds == null) {
+            return Collections.EMPTY_SET;
+        }
+        return new LinkedHashSet<>(Arrays.asList(watermark.failedIds));
+    }
+
+    private Watermark getWatermark(Class entityType) {
+        final Watermark watermark = this.getWatermarks().get(entityType.getName());
+        if(watermark == null) {
+            return null;
+        }
+        if(!Objects.equals(watermark.attribute, this.getModificationAttribute(entityType))) {
+            logger.log(Level.INFO, "Ignoring watermark of {0} by: {1}",
+                    new Object[]{entityType.getName(), watermark.attribute});
+            return null;
+        }
+        return watermark;
+    }
+
+    /**
+     * Sets the watermark of the entity type, with no failed ids.
+     * @param entityType The entity type
+     * @param key The key of the last entity of the type synced, the
+     * modification attribute first if any
+     * @see #set(java.lang.Class, java.lang.Object[], java.util.Collection) 
+     */
+    public void set(Class entityType, Object [] key) {
+        this.set(entityType, key, Collections.EMPTY_SET);
+    }
+
+    /**
+     * Sets the watermark of the entity type and saves the watermarks. A
+     * failure to save is logged, leaving the earlier watermark in the file.
+     * @param entityType The entity type
+     * @param key The key of the last entity of the type synced, the
+     * modification attribute first if any
+     * @param failedIds The ids of the entities of the type, behind the key, 
+     * which failed to be written and are to be synced by the next sync. 
+     * These replace any recorded earlier.
+     */
+    public synchronized void set(Class entityType, Object [] key, Collection<?> failedIds) {
+        final Watermark watermark = new Watermark(this.getModificationAttribute(entityType), 
+                key.clone(), failedIds.isEmpty() ? null : failedIds.toArray());
+        this.getWatermarks().put(entityType.getName(), watermark);
+        logger.log(Level.FINE, "Watermark of {0}: {1}, failed ids: {2}",
+                new Object[]{entityType.getName(), Arrays.toString(key), failedIds.size()});
+        this.save();
+    }
+
+    /**
+     * Removes the watermark of the entity type, so that all its entities are
+     * read by the next sync.
+     * @param entityType The entity type
+     */
+    public synchronized void remove(Class entityType) {
+        if(this.getWatermarks().remove(entityType.getName()) != null) {
+            this.save();
+        }
+    }
+
+    private Map<String, Watermark> getWatermarks() {
+        if(watermarks == null) {
+            watermarks = this.load();
+        }
+        return watermarks;
+    }
+
+    private Map<String, Watermark> load() {
+        if(!file.exists()) {
+            return new HashMap<>();
+        }
+        try{
+            return (Map<String, Watermark>)LocalFiles.read(file);
+        }catch(IOException | ClassNotFoundException | ClassCastException e) {
+            logger.log(Level.WARNING, "Failed to read watermarks from " + file + ", entities will be synced in full", e);
+            return new HashMap<>();
+        }
+    }
+
+    private void save() {
+        try{
+            LocalFiles.write(file, watermarks);
+        }catch(IOException e) {
+            logger.log(Level.WARNING, "Failed to save watermarks to " + file, e);
+        }
+    }
+}
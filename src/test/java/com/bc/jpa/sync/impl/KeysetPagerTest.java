@@ -0,0 +1,395 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The queries built by {@link KeysetPager}, rendered as text by a criteria
+ * API which records them and answers each with the next of a list of pages.
+ */
+public class KeysetPagerTest {
+
+    public static class Single {
+        private Long id;
+        public Single(Long id) {
+            this.id = id;
+        }
+    }
+
+    public static class Composite {
+        private Integer a;
+        private String b;
+        private Date modified;
+        public Composite(Integer a, String b, Date modified) {
+            this.a = a;
+            this.b = b;
+            this.modified = modified;
+        }
+    }
+
+    public static class EmbeddedKey { }
+
+    public static class Embedded {
+        private EmbeddedKey id;
+    }
+
+    /**
+     * A query as executed, its criteria rendered as text
+     */
+    private static class Executed {
+        private String where = "";
+        private String orderBy = "";
+        private final Map<String, Object> parameters = new HashMap<>();
+        private int maxResults;
+    }
+
+    private final List<Executed> executed = new ArrayList<>();
+
+    private final Deque<List> pages = new ArrayDeque<>();
+
+    @Test
+    public void singleIdIsReadAfterLastId() {
+        final KeysetPager<Single> pager = KeysetPager.forType(this.em(Single.class, "id"), Single.class, 2);
+        pages.add(Arrays.asList(new Single(3L), new Single(7L)));
+        pages.add(Arrays.asList(new Single(9L)));
+
+        assertEquals(2, pager.read(this.em(Single.class, "id")).size());
+        assertTrue(pager.hasMore());
+        assertEquals(1, pager.read(this.em(Single.class, "id")).size());
+        // A short page is the last
+        assertFalse(pager.hasMore());
+        assertTrue(pager.read(this.em(Single.class, "id")).isEmpty());
+        assertEquals(2, executed.size());
+
+        assertEquals("", executed.get(0).where);
+        assertEquals("id asc", executed.get(0).orderBy);
+        assertEquals(2, executed.get(0).maxResults);
+
+        assertEquals("id > :k0", executed.get(1).where);
+        assertEquals(Collections.singletonMap("k0", 7L), executed.get(1).parameters);
+        assertArrayEquals(new Object[]{9L}, pager.getLastKey());
+    }
+
+    @Test
+    public void compositeIdIsExpandedIntoDisjunction() {
+        final KeysetPager<Composite> pager = KeysetPager.forType(this.em(Composite.class, "b", "a"), Composite.class, 2);
+        // Id attributes are compared in order of name
+        assertArrayEquals(new String[]{"a", "b"}, pager.getKeyNames());
+        pages.add(Arrays.asList(new Composite(1, "x", null), new Composite(1, "y", null)));
+        pages.add(Collections.emptyList());
+
+        pager.read(this.em(Composite.class, "b", "a"));
+        pager.read(this.em(Composite.class, "b", "a"));
+
+        assertEquals("a asc, b asc", executed.get(0).orderBy);
+        assertEquals("a > :k0 OR (a = :k0 AND b > :k1)", executed.get(1).where);
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("k0", 1);
+        expected.put("k1", "y");
+        assertEquals(expected, executed.get(1).parameters);
+        assertFalse(pager.hasMore());
+    }
+
+    @Test
+    public void orderAttributeIsComparedAheadOfId() {
+        final Date modified = new Date(1_500_000_000_000L);
+        final KeysetPager<Composite> pager = KeysetPager.forType(
+                this.em(Composite.class, "a", "b"), Composite.class, 1, "modified");
+        pages.add(Arrays.asList(new Composite(4, "z", modified)));
+        pages.add(Collections.emptyList());
+
+        pager.read(this.em(Composite.class, "a", "b"));
+        pager.read(this.em(Composite.class, "a", "b"));
+
+        assertEquals("modified asc, a asc, b asc", executed.get(0).orderBy);
+        assertEquals("modified > :k0 OR (modified = :k0 AND a > :k1) OR " +
+                "(modified = :k0 AND a = :k1 AND b > :k2)", executed.get(1).where);
+        assertEquals(modified, executed.get(1).parameters.get("k0"));
+        assertEquals(4, executed.get(1).parameters.get("k1"));
+        assertEquals("z", executed.get(1).parameters.get("k2"));
+    }
+
+    @Test
+    public void startAfterAndEndAtBoundTheRange() {
+        final KeysetPager<Composite> pager = KeysetPager.forType(this.em(Composite.class, "a", "b"), Composite.class, 10);
+        pager.startAfter(new Object[]{1, "m"});
+        pager.endAt(new Object[]{5, "n"});
+        pages.add(Collections.emptyList());
+
+        pager.read(this.em(Composite.class, "a", "b"));
+
+        assertEquals("(a > :k0 OR (a = :k0 AND b > :k1)) AND (a < :e0 OR (a = :e0 AND b <= :e1))",
+                executed.get(0).where);
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("k0", 1);
+        expected.put("k1", "m");
+        expected.put("e0", 5);
+        expected.put("e1", "n");
+        assertEquals(expected, executed.get(0).parameters);
+    }
+
+    @Test
+    public void keyOfWrongLengthIsRejected() {
+        final KeysetPager<Composite> pager = KeysetPager.forType(this.em(Composite.class, "a", "b"), Composite.class, 10);
+        try{
+            pager.startAfter(new Object[]{1});
+            fail("Expected IllegalArgumentException");
+        }catch(IllegalArgumentException expected) { }
+    }
+
+    @Test
+    public void compareKeysComparesInOrder() {
+        assertTrue(KeysetPager.compareKeys(new Object[]{1, "b"}, new Object[]{2, "a"}) < 0);
+        assertTrue(KeysetPager.compareKeys(new Object[]{2, "b"}, new Object[]{2, "a"}) > 0);
+        assertEquals(0, KeysetPager.compareKeys(new Object[]{2, "a"}, new Object[]{2, "a"}));
+    }
+
+    @Test
+    public void nonComparableIdIsNotPaged() {
+        assertNull(KeysetPager.forType(this.em(Embedded.class, "id"), Embedded.class, 10));
+    }
+
+    /**
+     * @param idNames The names of the id attributes. More than one is an id class.
+     */
+    private EntityManager em(Class entityType, String... idNames) {
+        return proxy(EntityManager.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getMetamodel":
+                    return proxy(Metamodel.class, (p, m, a) -> this.entityType(entityType, idNames));
+                case "getEntityManagerFactory":
+                    return proxy(EntityManagerFactory.class, (p, m, a) ->
+                            proxy(PersistenceUnitUtil.class, (p2, m2, a2) -> getValue(a2[0], idNames[0])));
+                case "getCriteriaBuilder":
+                    return this.criteriaBuilder();
+                case "createQuery":
+                    return this.typedQuery(((Rendered)Proxy.getInvocationHandler(args[0])).query);
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private EntityType entityType(Class entityType, String [] idNames) {
+        return proxy(EntityType.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "hasSingleIdAttribute":
+                    return idNames.length == 1;
+                case "getIdType":
+                    return proxy(Type.class, (p, m, a) -> field(entityType, idNames[0]).getType());
+                case "getId":
+                    return attribute(entityType, idNames[0]);
+                case "getAttribute":
+                    return attribute(entityType, (String)args[0]);
+                case "getIdClassAttributes":
+                    final Set<SingularAttribute> ids = new LinkedHashSet<>();
+                    for(String idName : idNames) {
+                        ids.add(attribute(entityType, idName));
+                    }
+                    return ids;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static SingularAttribute attribute(Class entityType, String name) {
+        final Field field = field(entityType, name);
+        return proxy(SingularAttribute.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getName": return name;
+                case "getJavaType": return field.getType();
+                case "getJavaMember": return field;
+                case "hashCode": return name.hashCode();
+                case "equals": return proxy == args[0];
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private CriteriaBuilder criteriaBuilder() {
+        return proxy(CriteriaBuilder.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "createQuery":
+                    return this.criteriaQuery();
+                case "asc":
+                    return node(Order.class, args[0] + " asc");
+                case "parameter":
+                    return node(ParameterExpression.class, ":" + args[1]);
+                case "equal":
+                    return node(Predicate.class, args[0] + " = " + args[1]);
+                case "greaterThan":
+                    return node(Predicate.class, args[0] + " > " + args[1]);
+                case "lessThan":
+                    return node(Predicate.class, args[0] + " < " + args[1]);
+                case "lessThanOrEqualTo":
+                    return node(Predicate.class, args[0] + " <= " + args[1]);
+                case "and":
+                    return node(Predicate.class, "(" + join((Object[])args[0], " AND ") + ")");
+                case "or":
+                    return node(Predicate.class, join((Object[])args[0], " OR "));
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private CriteriaQuery criteriaQuery() {
+        return proxy(CriteriaQuery.class, new Rendered("query") {
+            @Override
+            Object invoke(Object proxy, String methodName, Object [] args) {
+                switch(methodName) {
+                    case "from":
+                        return proxy(Root.class, new Rendered("e") {
+                            @Override
+                            Object invoke(Object root, String methodName, Object [] args) {
+                                return node(Path.class, (String)args[0]);
+                            }
+                        });
+                    case "orderBy":
+                        query.orderBy = join(((List)args[0]).toArray(), ", ");
+                        return proxy;
+                    case "where":
+                        final Object [] predicates = (Object[])args[0];
+                        query.where = predicates.length == 1 ? predicates[0].toString() :
+                                "(" + join(predicates, ") AND (") + ")";
+                        return proxy;
+                    default:
+                        return super.invoke(proxy, methodName, args);
+                }
+            }
+        });
+    }
+
+    private TypedQuery typedQuery(Executed query) {
+        return proxy(TypedQuery.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "setMaxResults":
+                    query.maxResults = (Integer)args[0];
+                    return proxy;
+                case "setParameter":
+                    query.parameters.put((String)args[0], args[1]);
+                    return proxy;
+                case "setHint":
+                    return proxy;
+                case "getResultList":
+                    executed.add(query);
+                    return pages.poll();
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * A criteria object which renders as the given text. That of a criteria
+     * query records the query.
+     */
+    private static class Rendered implements InvocationHandler {
+        final String text;
+        final Executed query = new Executed();
+        Rendered(String text) {
+            this.text = text;
+        }
+        @Override
+        public Object invoke(Object proxy, Method method, Object [] args) {
+            switch(method.getName()) {
+                case "toString": return text;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                default: return this.invoke(proxy, method.getName(), args);
+            }
+        }
+        Object invoke(Object proxy, String methodName, Object [] args) {
+            throw new UnsupportedOperationException(methodName);
+        }
+    }
+
+    private static <T> T node(Class<T> type, String text) {
+        return proxy(type, new Rendered(text));
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(KeysetPagerTest.class.getClassLoader(), new Class[]{type}, handler));
+    }
+
+    private static String join(Object [] parts, String separator) {
+        final StringBuilder builder = new StringBuilder();
+        for(Object part : parts) {
+            if(builder.length() > 0) {
+                builder.append(separator);
+            }
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+
+    private static Field field(Class type, String name) {
+        try{
+            return type.getDeclaredField(name);
+        }catch(NoSuchFieldException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static Object getValue(Object entity, String name) {
+        try{
+            final Field field = field(entity.getClass(), name);
+            field.setAccessible(true);
+            return field.get(entity);
+        }catch(IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
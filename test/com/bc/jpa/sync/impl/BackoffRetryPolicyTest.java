@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.RetryPolicy.State;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The circuit states and delays of {@link BackoffRetryPolicy}, on a clock
+ * moved by the test.
+ */
+public class BackoffRetryPolicyTest {
+
+    private long now = 1_000_000;
+
+    @Test
+    public void circuitOpensAfterThresholdFailures() {
+        final BackoffRetryPolicy policy = this.policy(0);
+
+        assertEquals(0, policy.acquirePermit());
+        policy.onFailure();
+        assertEquals(State.CLOSED, policy.getState());
+        // Each attempt waits for the delay, even while closed
+        assertEquals(100, policy.acquirePermit());
+        now += 100;
+        assertEquals(0, policy.acquirePermit());
+        policy.onFailure();
+        assertEquals(State.CLOSED, policy.getState());
+        now += 200;
+        policy.onFailure();
+
+        assertEquals(State.OPEN, policy.getState());
+        assertEquals(3, policy.getConsecutiveFailures());
+        assertEquals(400, policy.acquirePermit());
+        now += 399;
+        assertEquals(1, policy.acquirePermit());
+        assertEquals(State.OPEN, policy.getState());
+    }
+
+    @Test
+    public void singleProbeIsPermittedOnceDelayElapsed() {
+        final BackoffRetryPolicy policy = this.opened();
+        now += 400;
+
+        assertEquals(0, policy.acquirePermit());
+        assertEquals(State.HALF_OPEN, policy.getState());
+        // Others wait while the probe is in progress
+        assertEquals(400, policy.acquirePermit());
+        assertEquals(400, policy.acquirePermit());
+    }
+
+    @Test
+    public void successfulProbeClosesCircuit() {
+        final BackoffRetryPolicy policy = this.opened();
+        now += 400;
+        assertEquals(0, policy.acquirePermit());
+
+        policy.onSuccess();
+
+        assertEquals(State.CLOSED, policy.getState());
+        assertEquals(0, policy.getConsecutiveFailures());
+        assertEquals(0, policy.acquirePermit());
+        // The count starts afresh, so one failure does not open the circuit
+        policy.onFailure();
+        assertEquals(State.CLOSED, policy.getState());
+        assertEquals(100, policy.acquirePermit());
+    }
+
+    @Test
+    public void failedProbeReopensWithLongerDelay() {
+        final BackoffRetryPolicy policy = this.opened();
+        now += 400;
+        assertEquals(0, policy.acquirePermit());
+
+        policy.onFailure();
+
+        assertEquals(State.OPEN, policy.getState());
+        assertEquals(800, policy.acquirePermit());
+        now += 800;
+        assertEquals(0, policy.acquirePermit());
+        assertEquals(State.HALF_OPEN, policy.getState());
+    }
+
+    @Test
+    public void delayIsCappedAtMax() {
+        final BackoffRetryPolicy policy = this.policy(0);
+        for(int i=0; i<20; i++) {
+            policy.onFailure();
+        }
+        assertEquals(1000, policy.acquirePermit());
+        assertEquals(1000, policy.getDelay(100));
+    }
+
+    @Test
+    public void jitterShortensDelayByAtMostItsFraction() {
+        final BackoffRetryPolicy policy = this.policy(0.25);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for(int i=0; i<10_000; i++) {
+            final long delay = policy.getDelay(3);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("Below the jitter bound: " + min, min >= 300);
+        assertTrue("Above the base delay: " + max, max <= 400);
+        // The delays are spread out
+        assertTrue(max - min > 50);
+
+        for(int i=0; i<1_000; i++) {
+            final long delay = policy.getDelay(20);
+            assertTrue("Not within jitter of max: " + delay, delay >= 750 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void invalidSettingsAreRejected() {
+        this.assertRejected(-1, 1000, 2.0, 0, 3);
+        this.assertRejected(100, 99, 2.0, 0, 3);
+        this.assertRejected(100, 1000, 0.5, 0, 3);
+        this.assertRejected(100, 1000, 2.0, 1.5, 3);
+        this.assertRejected(100, 1000, 2.0, 0, 0);
+    }
+
+    private void assertRejected(long initialDelay, long maxDelay, double multiplier, double jitter, int threshold) {
+        try{
+            new BackoffRetryPolicy(initialDelay, maxDelay, multiplier, jitter, threshold);
+            fail("Expected IllegalArgumentException");
+        }catch(IllegalArgumentException expected) { }
+    }
+
+    /**
+     * @return A policy opened by 3 failures, the last of which was just now
+     */
+    private BackoffRetryPolicy opened() {
+        final BackoffRetryPolicy policy = this.policy(0);
+        for(int i=0; i<3; i++) {
+            policy.onFailure();
+        }
+        assertEquals(State.OPEN, policy.getState());
+        return policy;
+    }
+
+    private BackoffRetryPolicy policy(double jitter) {
+        return new BackoffRetryPolicy(100, 1000, 2.0, jitter, 3, () -> now);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.context.PersistenceUnitContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The merge of the sorted ids of master and slave by {@link DeletionPropagator},
+ * against entity managers which answer the id queries from in-memory tables.
+ */
+public class DeletionPropagatorTest {
+
+    private static final int PAGE = DeletionPropagator.ID_PAGE_SIZE;
+
+    public static class Row {
+        private Long id;
+    }
+
+    public static class NamedRow {
+        private String id;
+    }
+
+    /**
+     * The ids of a table, as the queries of the propagator see them
+     */
+    private static class Table {
+        private final Class entityType;
+        private final Class idType;
+        private final TreeSet<Object> ids = new TreeSet<>();
+        /**
+         * Ids found when looked up, but not when listed, e.g added while the
+         * ids were being listed
+         */
+        private final Set<Object> unlisted = new HashSet<>();
+        private boolean failBulkDelete;
+        private int pagesRead;
+        private int lookups;
+        private Table(Class entityType, Class idType) {
+            this.entityType = entityType;
+            this.idType = idType;
+        }
+        private Table add(long from, long to) {
+            for(long id = from; id <= to; id++) {
+                ids.add(id);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * The parts of a criteria query or delete which the table answers
+     */
+    private static class Statement {
+        private Object after;
+        private Collection in;
+        private int maxResults = Integer.MAX_VALUE;
+    }
+
+    private final Table master = new Table(Row.class, Long.class);
+
+    private final Table slave = new Table(Row.class, Long.class);
+
+    @Test
+    public void idsAreMergedAcrossPageBoundaries() {
+        final long last = 2L * PAGE + 5;
+        slave.add(1, last);
+        master.add(1, last);
+        // At the start and end, and either side of each slave page boundary
+        final List<Long> deleted = Arrays.asList(1L, (long)PAGE, PAGE + 1L, 2L * PAGE, last);
+        master.ids.removeAll(deleted);
+
+        assertEquals(deleted.size(), this.propagator(2).propagate(Row.class, Row.class));
+
+        assertEquals(master.ids, slave.ids);
+        // Two full pages, then a short one
+        assertEquals(3, slave.pagesRead);
+        // Two full pages, then an empty one
+        assertEquals(3, master.pagesRead);
+    }
+
+    @Test
+    public void slaveIdsBeyondTheLastMasterIdAreRemoved() {
+        master.add(1, PAGE);
+        slave.add(1, PAGE + 3L);
+
+        assertEquals(3, this.propagator(100).propagate(Row.class, Row.class));
+
+        assertEquals(master.ids, slave.ids);
+        assertEquals(2, master.pagesRead);
+    }
+
+    @Test
+    public void allSlaveIdsAreRemovedInBatchesWhenMasterIsEmpty() {
+        slave.add(1, 7);
+
+        assertEquals(7, this.propagator(3).propagate(Row.class, Row.class));
+
+        assertEquals(0, slave.ids.size());
+        assertEquals(3, master.lookups);
+    }
+
+    @Test
+    public void idsFoundOnMasterWhenRecheckedAreKept() {
+        master.add(1, 10);
+        slave.add(1, 10);
+        master.ids.removeAll(Arrays.asList(4L, 5L, 6L));
+        master.unlisted.add(5L);
+
+        assertEquals(2, this.propagator(10).propagate(Row.class, Row.class));
+
+        assertEquals(new TreeSet<>(Arrays.asList(1L, 2L, 3L, 5L, 7L, 8L, 9L, 10L)), slave.ids);
+    }
+
+    @Test
+    public void nothingIsRemovedWhenIdsMatch() {
+        master.add(1, 10);
+        slave.add(1, 10);
+
+        assertEquals(0, this.propagator(2).propagate(Row.class, Row.class));
+
+        assertEquals(0, master.lookups);
+    }
+
+    @Test
+    public void nonNumericIdsAreRemovedOneAtATimeIfBulkDeleteFails() {
+        final Table master = new Table(NamedRow.class, String.class);
+        final Table slave = new Table(NamedRow.class, String.class);
+        master.ids.addAll(Arrays.asList("b", "d"));
+        slave.ids.addAll(Arrays.asList("a", "b", "c", "d", "e"));
+        slave.failBulkDelete = true;
+
+        assertEquals(3, new DeletionPropagator(context(master), context(slave), 10, 10)
+                .propagate(NamedRow.class, NamedRow.class));
+
+        assertEquals(master.ids, slave.ids);
+    }
+
+    @Test
+    public void idsOfDifferentTypesAreNotCompared() {
+        final Table named = new Table(NamedRow.class, String.class);
+        try{
+            new DeletionPropagator(context(master), context(named), 10, 10).propagate(Row.class, NamedRow.class);
+            fail("Expected UnsupportedOperationException");
+        }catch(UnsupportedOperationException expected) { }
+    }
+
+    private DeletionPropagator propagator(int batchSize) {
+        return new DeletionPropagator(context(master), context(slave), batchSize, 10);
+    }
+
+    private static PersistenceUnitContext context(Table table) {
+        return proxy(PersistenceUnitContext.class, (proxy, method, args) -> {
+            if("getEntityManager".equals(method.getName())) {
+                return em(table);
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static EntityManager em(Table table) {
+        final boolean [] active = new boolean[1];
+        final EntityTransaction transaction = proxy(EntityTransaction.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "begin": active[0] = true; return null;
+                case "commit":
+                case "rollback": active[0] = false; return null;
+                case "isActive": return active[0];
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return proxy(EntityManager.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getMetamodel":
+                    return proxy(Metamodel.class, (p, m, a) -> entityType(table));
+                case "getCriteriaBuilder":
+                    return criteriaBuilder();
+                case "createQuery":
+                    final Statement statement = (Statement)((Handler)Proxy.getInvocationHandler(args[0])).state;
+                    return args[0] instanceof CriteriaDelete ? delete(table, statement) : typedQuery(table, statement);
+                case "getTransaction":
+                    return transaction;
+                case "find":
+                    return table.ids.contains(args[1]) ? args[1] : null;
+                case "remove":
+                    table.ids.remove(args[0]);
+                    return null;
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static EntityType entityType(Table table) {
+        final SingularAttribute id = proxy(SingularAttribute.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getName": return "id";
+                case "getJavaType": return table.idType;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return proxy(EntityType.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "hasSingleIdAttribute": return true;
+                case "getIdType": return proxy(Type.class, (p, m, a) -> table.idType);
+                case "getId": return id;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static CriteriaBuilder criteriaBuilder() {
+        return proxy(CriteriaBuilder.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "createQuery": return criteria(CriteriaQuery.class, new Statement());
+                case "createCriteriaDelete": return criteria(CriteriaDelete.class, new Statement());
+                case "greaterThan": return proxy(Predicate.class, new Handler(null));
+                case "parameter": return proxy(ParameterExpression.class, new Handler(null));
+                case "asc": return proxy(Order.class, new Handler(null));
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * A criteria query or delete, whose id path records the ids it is
+     * restricted to
+     */
+    private static <T> T criteria(Class<T> type, Statement statement) {
+        final Path id = proxy(Path.class, new Handler(statement) {
+            @Override
+            Object invoke(Object proxy, String methodName, Object [] args) {
+                if("in".equals(methodName)) {
+                    statement.in = (Collection)args[0];
+                    return proxy(Predicate.class, new Handler(null));
+                }
+                return super.invoke(proxy, methodName, args);
+            }
+        });
+        final Root root = proxy(Root.class, new Handler(statement) {
+            @Override
+            Object invoke(Object proxy, String methodName, Object [] args) {
+                return "get".equals(methodName) ? id : super.invoke(proxy, methodName, args);
+            }
+        });
+        return proxy(type, new Handler(statement) {
+            @Override
+            Object invoke(Object proxy, String methodName, Object [] args) {
+                switch(methodName) {
+                    case "from": return root;
+                    case "select":
+                    case "where":
+                    case "orderBy": return proxy;
+                    default: return super.invoke(proxy, methodName, args);
+                }
+            }
+        });
+    }
+
+    private static TypedQuery typedQuery(Table table, Statement statement) {
+        return proxy(TypedQuery.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "setMaxResults":
+                    statement.maxResults = (Integer)args[0];
+                    return proxy;
+                case "setParameter":
+                    statement.after = args[1];
+                    return proxy;
+                case "setHint":
+                    return proxy;
+                case "getResultList":
+                    final List result = new ArrayList();
+                    if(statement.in != null) {
+                        ++table.lookups;
+                        for(Object id : statement.in) {
+                            if(table.ids.contains(id) || table.unlisted.contains(id)) {
+                                result.add(id);
+                            }
+                        }
+                    }else{
+                        ++table.pagesRead;
+                        final Collection<Object> from = statement.after == null ?
+                                table.ids : table.ids.tailSet(statement.after, false);
+                        for(Object id : from) {
+                            if(result.size() == statement.maxResults) {
+                                break;
+                            }
+                            result.add(id);
+                        }
+                    }
+                    return result;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static Query delete(Table table, Statement statement) {
+        return proxy(Query.class, (proxy, method, args) -> {
+            if("executeUpdate".equals(method.getName())) {
+                if(table.failBulkDelete) {
+                    throw new IllegalStateException("Bulk delete failed");
+                }
+                int removed = 0;
+                for(Object id : statement.in) {
+                    if(table.ids.remove(id)) {
+                        ++removed;
+                    }
+                }
+                return removed;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    /**
+     * Answers the methods of Object for a criteria object, which shares the
+     * given state with the query it belongs to
+     */
+    private static class Handler implements InvocationHandler {
+        final Object state;
+        Handler(Object state) {
+            this.state = state;
+        }
+        @Override
+        public Object invoke(Object proxy, Method method, Object [] args) {
+            switch(method.getName()) {
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                case "toString": return "criteria";
+                default: return this.invoke(proxy, method.getName(), args);
+            }
+        }
+        Object invoke(Object proxy, String methodName, Object [] args) {
+            throw new UnsupportedOperationException(methodName);
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(DeletionPropagatorTest.class.getClassLoader(), new Class[]{type}, handler));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToOne;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The parents found by {@link EntityDependencies} from a metamodel whose
+ * attributes are the annotated fields of the entity types.
+ */
+public class EntityDependenciesTest {
+
+    public static class Category {
+        @ManyToOne private Category parent;
+        private String name;
+    }
+
+    public static class Person {
+        @OneToOne private Passport passport;
+    }
+
+    public static class Passport {
+        @OneToOne private Person holder;
+    }
+
+    public static class Account {
+        @OneToOne(mappedBy = "account") private Profile profile;
+    }
+
+    public static class Profile {
+        @OneToOne private Account account;
+    }
+
+    public static class Top { }
+
+    public static class Left {
+        @ManyToOne private Top top;
+    }
+
+    public static class Right {
+        @ManyToOne private Top top;
+    }
+
+    public static class Bottom {
+        @ManyToOne private Left left;
+        @ManyToOne private Right right;
+    }
+
+    @Test
+    public void selfReferenceIsIgnored() {
+        final Map<Class, Set<Class>> parents = this.getParents(Category.class);
+
+        assertEquals(Collections.emptySet(), parents.get(Category.class));
+        assertEquals(Arrays.asList(Category.class), EntityDependencies.getChildrenFirst(parents));
+    }
+
+    @Test
+    public void mutualOneToOneKeepsOneDirection() {
+        final Map<Class, Set<Class>> parents = this.getParents(Person.class, Passport.class);
+
+        // The cycle is broken at the first type, the other keeps its parent
+        assertEquals(Collections.emptySet(), parents.get(Person.class));
+        assertEquals(set(Person.class), parents.get(Passport.class));
+        assertEquals(Arrays.asList(Passport.class, Person.class), EntityDependencies.getChildrenFirst(parents));
+    }
+
+    @Test
+    public void mappedBySideIsNotAParent() {
+        final Map<Class, Set<Class>> parents = this.getParents(Account.class, Profile.class);
+
+        assertEquals(Collections.emptySet(), parents.get(Account.class));
+        assertEquals(set(Account.class), parents.get(Profile.class));
+        assertEquals(Arrays.asList(Profile.class, Account.class), EntityDependencies.getChildrenFirst(parents));
+    }
+
+    @Test
+    public void diamondIsOrderedChildrenFirst() {
+        final Map<Class, Set<Class>> parents = this.getParents(Top.class, Bottom.class, Left.class, Right.class);
+
+        assertEquals(Collections.emptySet(), parents.get(Top.class));
+        assertEquals(set(Top.class), parents.get(Left.class));
+        assertEquals(set(Top.class), parents.get(Right.class));
+        assertEquals(set(Left.class, Right.class), parents.get(Bottom.class));
+
+        final List<Class> order = EntityDependencies.getChildrenFirst(parents);
+        assertEquals(4, order.size());
+        assertEquals(Bottom.class, order.get(0));
+        assertEquals(Top.class, order.get(3));
+        assertEquals(set(Left.class, Right.class), new HashSet<>(order.subList(1, 3)));
+    }
+
+    @Test
+    public void parentsOutsideTheSetAreLeftOut() {
+        final Map<Class, Set<Class>> parents = this.getParents(Bottom.class, Left.class);
+
+        assertEquals(set(Left.class), parents.get(Bottom.class));
+        assertEquals(Collections.emptySet(), parents.get(Left.class));
+    }
+
+    @Test
+    public void parentsAreUnmodifiable() {
+        try{
+            this.getParents(Left.class, Top.class).get(Left.class).clear();
+            fail("Expected UnsupportedOperationException");
+        }catch(UnsupportedOperationException expected) { }
+    }
+
+    private Map<Class, Set<Class>> getParents(Class... entityTypes) {
+        final Metamodel metamodel = proxy(Metamodel.class, (proxy, method, args) -> {
+            if("entity".equals(method.getName())) {
+                return entityType((Class)args[0]);
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        return EntityDependencies.getParents(metamodel, set(entityTypes));
+    }
+
+    private static EntityType entityType(Class entityType) {
+        return proxy(EntityType.class, (proxy, method, args) -> {
+            if("getAttributes".equals(method.getName())) {
+                final Set<Attribute> attributes = new LinkedHashSet<>();
+                for(Field field : entityType.getDeclaredFields()) {
+                    if(!field.isSynthetic()) {
+                        attributes.add(attribute(field));
+                    }
+                }
+                return attributes;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static Attribute attribute(Field field) {
+        final PersistentAttributeType attributeType =
+                field.isAnnotationPresent(ManyToOne.class) ? PersistentAttributeType.MANY_TO_ONE :
+                field.isAnnotationPresent(OneToOne.class) ? PersistentAttributeType.ONE_TO_ONE :
+                PersistentAttributeType.BASIC;
+        return proxy(Attribute.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getName": return field.getName();
+                case "getJavaType": return field.getType();
+                case "getJavaMember": return field;
+                case "getPersistentAttributeType": return attributeType;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static Set<Class> set(Class... types) {
+        return new LinkedHashSet<>(Arrays.asList(types));
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(EntityDependenciesTest.class.getClassLoader(), new Class[]{type}, handler));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FairQueueTest {
+
+    @Test
+    public void singleLaneIsTakenInOrderOfSequence() {
+        final FairQueue queue = new FairQueue(new int[]{1}, null);
+        for(long sequence : new long[]{5, 1, 4, 2, 3}) {
+            queue.put(0, sequence % 2 == 0 ? String.class : Integer.class, update(sequence));
+        }
+        assertEquals(5, queue.size());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), pollAll(queue));
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void lanesTakeTurnsByWeight() {
+        final FairQueue queue = new FairQueue(new int[]{2, 1}, null);
+        for(long sequence=0; sequence<8; sequence++) {
+            queue.put(0, String.class, update(sequence));
+        }
+        for(long sequence=100; sequence<104; sequence++) {
+            queue.put(1, String.class, update(sequence));
+        }
+        assertEquals(8, queue.size(0));
+        assertEquals(4, queue.size(1));
+
+        final List<Long> polled = pollAll(queue);
+
+        // While both lanes have updates, two of the first for each of the second
+        final List<Long> first = polled.subList(0, 9);
+        assertEquals(6, count(first, 0, 100));
+        assertEquals(3, count(first, 100, 200));
+        assertInOrderWithinRange(polled, 0, 100);
+        assertInOrderWithinRange(polled, 100, 200);
+        assertEquals(12, polled.size());
+    }
+
+    @Test
+    public void typesTakeTurnsByWeightWithinLane() {
+        final FairQueue queue = new FairQueue(new int[]{1},
+                (type) -> type == String.class ? 3 : 1);
+        // A burst of one type ahead of the other
+        for(long sequence=0; sequence<9; sequence++) {
+            queue.put(0, String.class, update(sequence));
+        }
+        for(long sequence=100; sequence<103; sequence++) {
+            queue.put(0, Integer.class, update(sequence));
+        }
+
+        final List<Long> polled = pollAll(queue);
+
+        // The later type is not held up until the burst is drained
+        final List<Long> first = polled.subList(0, 8);
+        assertEquals(6, count(first, 0, 100));
+        assertEquals(2, count(first, 100, 200));
+        assertInOrderWithinRange(polled, 0, 100);
+        assertInOrderWithinRange(polled, 100, 200);
+        assertEquals(12, polled.size());
+    }
+
+    @Test
+    public void removedUpdateIsNotTaken() {
+        final FairQueue queue = new FairQueue(new int[]{1, 1}, (type) -> 1);
+        final PendingUpdate removed = update(2);
+        queue.put(0, String.class, update(1));
+        queue.put(0, String.class, removed);
+        queue.put(1, Integer.class, update(3));
+
+        assertTrue(queue.remove(0, String.class, removed));
+        assertFalse("Already removed", queue.remove(0, String.class, removed));
+        assertFalse("Not in lane", queue.remove(1, String.class, update(1)));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.size(0));
+
+        final List<Long> polled = pollAll(queue);
+        assertEquals(2, polled.size());
+        assertFalse(polled.contains(2L));
+    }
+
+    @Test
+    public void sameSequenceIsHeldOnce() {
+        final FairQueue queue = new FairQueue(new int[]{1}, null);
+        queue.put(0, String.class, update(7));
+        queue.put(0, String.class, update(7));
+        assertEquals(1, queue.size());
+        assertEquals(Arrays.asList(7L), pollAll(queue));
+    }
+
+    @Test
+    public void emptiedLaneRejoinsItsTurn() {
+        final FairQueue queue = new FairQueue(new int[]{1, 1}, null);
+        queue.put(0, String.class, update(1));
+        queue.put(1, String.class, update(2));
+        assertEquals(2, pollAll(queue).size());
+
+        queue.put(1, String.class, update(3));
+        queue.put(0, String.class, update(4));
+        queue.put(1, String.class, update(5));
+        final List<Long> polled = pollAll(queue);
+        assertEquals(3, polled.size());
+        // The update of lane 0 is taken between the two of lane 1
+        assertEquals(Arrays.asList(3L, 4L, 5L), polled);
+    }
+
+    private static PendingUpdate update(long sequence) {
+        return new PendingUpdateImpl(sequence, 0L, UpdateType.MERGE, "entity" + sequence);
+    }
+
+    private static List<Long> pollAll(FairQueue queue) {
+        final List<Long> output = new ArrayList<>(queue.size());
+        PendingUpdate pendingUpdate;
+        while((pendingUpdate = queue.poll()) != null) {
+            output.add(pendingUpdate.getSequence());
+        }
+        assertEquals(0, queue.size());
+        return output;
+    }
+
+    private static int count(List<Long> sequences, long from, long to) {
+        int count = 0;
+        for(Long sequence : sequences) {
+            if(sequence >= from && sequence < to) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static void assertInOrderWithinRange(List<Long> sequences, long from, long to) {
+        long last = Long.MIN_VALUE;
+        for(Long sequence : sequences) {
+            if(sequence >= from && sequence < to) {
+                assertTrue("Out of order: " + sequences, sequence > last);
+                last = sequence;
+            }
+        }
+    }
+}
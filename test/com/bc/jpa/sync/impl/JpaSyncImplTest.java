@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.context.PersistenceUnitContext;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Resuming a sync from its checkpoints, against a master whose every type
+ * has no rows after those already synced.
+ */
+public class JpaSyncImplTest {
+
+    public static class Synced {
+        private Long id;
+    }
+
+    public static class Interrupted {
+        private Long id;
+    }
+
+    private File dir;
+
+    private File file;
+
+    /**
+     * The parameters of each page read from the master
+     */
+    private final List<Map<String, Object>> reads = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile boolean failReads;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory(this.getClass().getSimpleName()).toFile();
+        file = new File(dir, "sync.checkpoints");
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void resumeAddsCountsOfEarlierRuns() {
+        final SyncCheckpoints earlier = new SyncCheckpoints(file, 0);
+        earlier.complete(Synced.class, 8, 7);
+        // Stopped after the last entity was committed, one of 6 read was skipped
+        earlier.update(Interrupted.class, new Object[]{6L}, 6, 5);
+
+        final Set<Class> entityTypes = new LinkedHashSet<>(Arrays.asList(Synced.class, Interrupted.class));
+        final Map<Class, Integer> counts = this.jpaSync().resume(entityTypes, new SyncCheckpoints(file, 0));
+
+        assertEquals(Integer.valueOf(7), counts.get(Synced.class));
+        assertEquals(Integer.valueOf(5), counts.get(Interrupted.class));
+        // Only the interrupted type is read, from after its last key
+        assertEquals(1, reads.size());
+        assertEquals(Collections.singletonMap("k0", 6L), reads.get(0));
+        // Every type is synced, so the checkpoints are cleared
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void failedResumeKeepsCheckpoints() {
+        final SyncCheckpoints earlier = new SyncCheckpoints(file, 0);
+        earlier.complete(Synced.class, 8, 7);
+        earlier.update(Interrupted.class, new Object[]{6L}, 6, 5);
+        failReads = true;
+
+        final Set<Class> entityTypes = new LinkedHashSet<>(Arrays.asList(Synced.class, Interrupted.class));
+        try{
+            this.jpaSync().resume(entityTypes, new SyncCheckpoints(file, 0));
+            fail("Expected IllegalStateException");
+        }catch(IllegalStateException expected) { }
+
+        final SyncCheckpoints.Checkpoint checkpoint = new SyncCheckpoints(file, 0).get(Interrupted.class);
+        assertFalse(checkpoint.isComplete());
+        assertEquals(5, checkpoint.getCount());
+        assertTrue(new SyncCheckpoints(file, 0).get(Synced.class).isComplete());
+    }
+
+    @Test
+    public void syncStartsAfresh() {
+        final SyncCheckpoints earlier = new SyncCheckpoints(file, 0);
+        earlier.complete(Synced.class, 8, 7);
+
+        final Map<Class, Integer> counts = this.jpaSync().sync(
+                Collections.singleton(Synced.class), new SyncCheckpoints(file, 0));
+
+        assertEquals(Integer.valueOf(0), counts.get(Synced.class));
+        assertEquals(1, reads.size());
+        assertTrue(reads.get(0).isEmpty());
+    }
+
+    private JpaSyncImpl jpaSync() {
+        return new JpaSyncImplBuilder()
+                .master(this.context())
+                .slave(this.context())
+                .pageSize(10)
+                .build();
+    }
+
+    private PersistenceUnitContext context() {
+        return proxy(PersistenceUnitContext.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getEntityManager":
+                    return this.em();
+                case "getEntityUpdater":
+                case "getEntityReference":
+                    return proxy(method.getReturnType(), (p, m, a) -> {
+                        throw new UnsupportedOperationException(m.getName());
+                    });
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private EntityManager em() {
+        return proxy(EntityManager.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getMetamodel":
+                    return proxy(Metamodel.class, (p, m, a) -> entityType((Class)a[0]));
+                case "getEntityManagerFactory":
+                    return proxy(EntityManagerFactory.class, (p, m, a) ->
+                            proxy(PersistenceUnitUtil.class, (p2, m2, a2) -> {
+                                throw new UnsupportedOperationException(m2.getName());
+                            }));
+                case "getCriteriaBuilder":
+                    return criteriaBuilder();
+                case "createQuery":
+                    return this.typedQuery();
+                case "isOpen":
+                    return true;
+                case "clear":
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static EntityType entityType(Class entityType) {
+        final SingularAttribute id = proxy(SingularAttribute.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getName": return "id";
+                case "getJavaType": return Long.class;
+                case "getJavaMember": return entityType.getDeclaredField("id");
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return proxy(EntityType.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "hasSingleIdAttribute": return true;
+                case "getIdType": return proxy(Type.class, (p, m, a) -> Long.class);
+                case "getId": return id;
+                case "getAttributes": return Collections.emptySet();
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Criteria objects which do nothing, as only the parameters of the
+     * queries are checked
+     */
+    private static CriteriaBuilder criteriaBuilder() {
+        return proxy(CriteriaBuilder.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "createQuery": return criteria(CriteriaQuery.class);
+                case "parameter": return criteria(ParameterExpression.class);
+                case "asc": return criteria(Order.class);
+                case "equal":
+                case "greaterThan":
+                case "and":
+                case "or": return criteria(Predicate.class);
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static <T> T criteria(Class<T> type) {
+        return proxy(type, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "from": return criteria(Root.class);
+                case "get": return criteria(Path.class);
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                case "toString": return type.getSimpleName();
+                default: return method.getReturnType().isInstance(proxy) ? proxy : null;
+            }
+        });
+    }
+
+    private TypedQuery typedQuery() {
+        final Map<String, Object> parameters = new HashMap<>();
+        return proxy(TypedQuery.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "setParameter":
+                    parameters.put((String)args[0], args[1]);
+                    return proxy;
+                case "setMaxResults":
+                case "setFirstResult":
+                case "setHint":
+                    return proxy;
+                case "getResultList":
+                    if(failReads) {
+                        throw new IllegalStateException("Read failed");
+                    }
+                    reads.add(parameters);
+                    return Collections.emptyList();
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(JpaSyncImplTest.class.getClassLoader(), new Class[]{type}, handler));
+    }
+
+    private static void delete(File file) {
+        final File [] files = file.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
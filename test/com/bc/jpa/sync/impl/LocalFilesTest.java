@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bc.jpa.sync.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LocalFilesTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory(this.getClass().getSimpleName()).toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void writtenValueIsRead() throws Exception {
+        final File file = new File(dir, "state");
+        LocalFiles.write(file, new Integer[]{1, 2, 3});
+
+        assertArrayEquals(new Integer[]{1, 2, 3}, (Integer[])LocalFiles.read(file));
+        // The temporary file replaced the file
+        assertEquals(Arrays.asList("state"), Arrays.asList(dir.list()));
+    }
+
+    @Test
+    public void writeReplacesExistingFile() throws Exception {
+        final File file = new File(dir, "state");
+        LocalFiles.write(file, "first");
+        LocalFiles.write(file, "second");
+
+        assertEquals("second", LocalFiles.read(file));
+        assertEquals(Arrays.asList("state"), Arrays.asList(dir.list()));
+    }
+
+    @Test
+    public void failedWriteLeavesFileIntact() throws Exception {
+        final File file = new File(dir, "state");
+        LocalFiles.write(file, "first");
+        try{
+            LocalFiles.write(file, new Object());
+            fail("Expected NotSerializableException");
+        }catch(NotSerializableException expected) { }
+
+        assertEquals("first", LocalFiles.read(file));
+        // The temporary file of the failed write is deleted
+        assertEquals(Arrays.asList("state"), Arrays.asList(dir.list()));
+    }
+
+    private static void delete(File file) {
+        final File [] files = file.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
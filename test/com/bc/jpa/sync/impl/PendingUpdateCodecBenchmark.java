@@ -0,0 +1,132 @@
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compares {@link PendingUpdateCodec} with the Java serialization of live 
+ * entities it replaces, for encode/decode throughput and encoded size.
+ * <pre>
+ * java -cp ... com.bc.jpa.sync.impl.PendingUpdateCodecBenchmark [iterations]
+ * </pre>
+ */
+public class PendingUpdateCodecBenchmark {
+    
+    /**
+     * Keeps decoded results from being optimized away
+     */
+    private static volatile long sink;
+    
+    public static class Order implements Serializable {
+        private Integer id = 1001;
+        private String reference = "ORD-2026-000001001";
+        private String customerEmail = "customer@example.com";
+        private BigDecimal amount = new BigDecimal("1499.99");
+        private Date timeCreated = new Date();
+        private Date timeModified = new Date();
+        private Short status = 2;
+        private Boolean paid = Boolean.TRUE;
+        private Customer customer = new Customer();
+        private List<OrderItem> items = new ArrayList<>();
+        public Order() {
+            for(int i=0; i<10; i++) {
+                final OrderItem item = new OrderItem();
+                item.id = i;
+                item.order = this;
+                items.add(item);
+            }
+        }
+    }
+    
+    public static class Customer implements Serializable {
+        private Integer id = 77;
+        private String name = "A Customer";
+        private String address = "1 Some Street, Some City";
+        private Date dateOfBirth = new Date(0);
+    }
+    
+    public static class OrderItem implements Serializable {
+        private Integer id;
+        private String description = "An item description";
+        private BigDecimal price = new BigDecimal("149.99");
+        private Order order;
+    }
+    
+    public static void main(String... args) throws Exception {
+        
+        final int iterations = args.length == 0 ? 200_000 : Integer.parseInt(args[0]);
+        
+        final Order order = new Order();
+        
+        final EntitySnapshot snapshot = new EntitySnapshot(Order.class, order.id, 
+                new String[]{"id", "reference", "customerEmail", "amount", "timeCreated", 
+                    "timeModified", "status", "paid", "customer"},
+                new Object[]{order.id, order.reference, order.customerEmail, order.amount, 
+                    order.timeCreated, order.timeModified, order.status, order.paid, 
+                    new EntityKey(Customer.class, order.customer.id)});
+        
+        final PendingUpdateCodec codec = new PendingUpdateCodec();
+        
+        run("Java serialization, live entity", iterations, 
+                () -> serialize(UpdateType.MERGE, order), codec);
+        
+        run("Java serialization, snapshot", iterations, 
+                () -> serialize(UpdateType.MERGE, snapshot), codec);
+        
+        run("Codec, snapshot", iterations, 
+                () -> codec.encode(UpdateType.MERGE, System.currentTimeMillis(), snapshot), codec);
+    }
+    
+    private interface Encoder {
+        byte [] encode() throws IOException;
+    }
+    
+    private static void run(String name, int iterations, Encoder encoder, PendingUpdateCodec codec) throws Exception {
+        
+        // Warm up
+        for(int i=0; i<iterations / 10; i++) {
+            codec.decode(i, ByteBuffer.wrap(encoder.encode()));
+        }
+        
+        long bytes = 0;
+        final long t0 = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            bytes += encoder.encode().length;
+        }
+        final long encodeNanos = System.nanoTime() - t0;
+        
+        final byte [] encoded = encoder.encode();
+        final long t1 = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            final PendingUpdate pendingUpdate = codec.decode(i, ByteBuffer.wrap(encoded));
+            sink = pendingUpdate.getTimeCreated();
+        }
+        final long decodeNanos = System.nanoTime() - t1;
+        
+        System.out.printf("%-35s size: %5d bytes, encode: %,10.0f ops/s, decode: %,10.0f ops/s%n", 
+                name, bytes / iterations, 
+                iterations * 1e9 / encodeNanos, iterations * 1e9 / decodeNanos);
+    }
+    
+    /**
+     * The encoding used before {@link PendingUpdateCodec}
+     */
+    private static byte [] serialize(UpdateType updateType, Object entity) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try(ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(updateType);
+            oos.writeLong(System.currentTimeMillis());
+            oos.writeObject(entity);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PendingUpdateCodecTest {
+
+    public static class Item implements Serializable {
+        private Integer id;
+        private String name;
+        public Item() { }
+        public Item(Integer id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static class Point {
+        private final int x, y;
+        private Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static class PointEncoder implements PayloadEncoder<Point> {
+        @Override
+        public int getTypeId() {
+            return 100;
+        }
+        @Override
+        public Class<Point> getType() {
+            return Point.class;
+        }
+        @Override
+        public void encode(Point entity, DataOutput out, PendingUpdateCodec codec) throws IOException {
+            out.writeInt(entity.x);
+            out.writeInt(entity.y);
+        }
+        @Override
+        public Point decode(DataInput in, PendingUpdateCodec codec) throws IOException {
+            return new Point(in.readInt(), in.readInt());
+        }
+    }
+
+    private final PendingUpdateCodec codec = new PendingUpdateCodec();
+
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        final Timestamp timestamp = new Timestamp(1_500_000_000_123L);
+        timestamp.setNanos(123_456_789);
+        final Object [] values = {
+            7, "A name", null, 9L, 1.5d, 2.5f, Boolean.TRUE, (short)3, (byte)4, 'c',
+            new Date(1_500_000_000_000L), new java.sql.Date(1_500_000_000_000L), timestamp,
+            new java.sql.Time(1_500_000_000_000L), new BigDecimal("1499.99"),
+            new BigInteger("123456789012345678901234567890"), new byte[]{1, 2, 3},
+            new EntityKey(Item.class, 11),
+            new EntitySnapshot.CollectionValue(ArrayList.class,
+                    new Object[]{new EntityKey(Item.class, 12), new EntityKey(Item.class, 13)}),
+            new Item(14, "serialized")
+        };
+        final String [] columnNames = new String[values.length];
+        for(int i=0; i<columnNames.length; i++) {
+            columnNames[i] = "column" + i;
+        }
+        final EntitySnapshot snapshot = new EntitySnapshot(Item.class, 7, columnNames, values);
+
+        final PendingUpdate decoded = this.roundTrip(42, UpdateType.MERGE, 1234L, snapshot);
+
+        assertEquals(42, decoded.getSequence());
+        assertEquals(UpdateType.MERGE, decoded.getUpdateType());
+        assertEquals(1234L, decoded.getTimeCreated());
+        final EntitySnapshot output = (EntitySnapshot)decoded.getEntity();
+        assertEquals(Item.class, output.getEntityType());
+        assertEquals(7, output.getEntityId());
+        assertEquals(values.length, output.getColumnCount());
+        for(int i=0; i<values.length; i++) {
+            assertEquals(columnNames[i], output.getColumnName(i));
+            final Object expected = values[i];
+            final Object actual = output.getValue(i);
+            if(expected instanceof byte[]) {
+                assertArrayEquals((byte[])expected, (byte[])actual);
+            }else if(expected instanceof EntitySnapshot.CollectionValue) {
+                final EntitySnapshot.CollectionValue collection = (EntitySnapshot.CollectionValue)actual;
+                assertEquals(ArrayList.class, collection.getCollectionType());
+                assertArrayEquals(((EntitySnapshot.CollectionValue)expected).getElements(), collection.getElements());
+            }else if(expected instanceof Item) {
+                assertEquals(((Item)expected).name, ((Item)actual).name);
+            }else{
+                assertEquals("Column " + i, expected, actual);
+                if(expected != null) {
+                    assertEquals(expected.getClass(), actual.getClass());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stringRoundTrip() throws Exception {
+        final StringBuilder longString = new StringBuilder(70_000);
+        while(longString.length() < 70_000) {
+            longString.append("\u00e9\u4e2d");
+        }
+        assertEquals("entity", this.roundTrip(1, UpdateType.PERSIST, 1L, "entity").getEntity());
+        // Beyond the 64K limit of DataOutput#writeUTF
+        assertEquals(longString.toString(), this.roundTrip(2, UpdateType.REMOVE, 2L, longString.toString()).getEntity());
+    }
+
+    @Test
+    public void serializedRoundTrip() throws Exception {
+        final PendingUpdate decoded = this.roundTrip(3, UpdateType.PERSIST, 3L, new Item(5, "item"));
+        final Item item = (Item)decoded.getEntity();
+        assertEquals(Integer.valueOf(5), item.id);
+        assertEquals("item", item.name);
+    }
+
+    @Test
+    public void registeredEncoderRoundTrip() throws Exception {
+        codec.register(new PointEncoder());
+        final byte [] encoded = codec.encode(UpdateType.MERGE, 4L, new Point(1, 2));
+        // version, update type, time created, type id, x, y
+        assertEquals(1 + 1 + 8 + 2 + 4 + 4, encoded.length);
+        final Point point = (Point)codec.decode(4, ByteBuffer.wrap(encoded)).getEntity();
+        assertEquals(1, point.x);
+        assertEquals(2, point.y);
+    }
+
+    @Test
+    public void registerRejectsTypeIdOfAnotherType() {
+        try{
+            codec.register(new PointEncoder() {
+                @Override
+                public int getTypeId() {
+                    return PendingUpdateCodec.SNAPSHOT_TYPE_ID;
+                }
+            });
+            fail("Expected IllegalArgumentException");
+        }catch(IllegalArgumentException expected) { }
+    }
+
+    @Test
+    public void decodesLegacyRecord() throws Exception {
+        // As written before the codec: Java serialization throughout
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(UpdateType.REMOVE);
+            oos.writeLong(5678L);
+            oos.writeObject(new Item(6, "legacy"));
+        }
+        final byte [] legacy = bytes.toByteArray();
+        assertEquals((byte)0xAC, legacy[0]);
+
+        final PendingUpdate decoded = codec.decode(9, ByteBuffer.wrap(legacy));
+
+        assertEquals(9, decoded.getSequence());
+        assertEquals(UpdateType.REMOVE, decoded.getUpdateType());
+        assertEquals(5678L, decoded.getTimeCreated());
+        assertEquals("legacy", ((Item)decoded.getEntity()).name);
+    }
+
+    @Test
+    public void decodesAtBufferPosition() throws Exception {
+        final byte [] encoded = codec.encode(UpdateType.PERSIST, 7L, "entity");
+        final ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 8);
+        buffer.position(8);
+        buffer.put(encoded);
+        buffer.position(8);
+        assertEquals("entity", codec.decode(7, buffer).getEntity());
+    }
+
+    @Test
+    public void rejectsUnknownVersion() throws Exception {
+        final byte [] encoded = codec.encode(UpdateType.PERSIST, 8L, "entity");
+        encoded[0] = PendingUpdateCodec.VERSION + 1;
+        try{
+            codec.decode(8, ByteBuffer.wrap(encoded));
+            fail("Expected StreamCorruptedException");
+        }catch(StreamCorruptedException expected) {
+            assertTrue(expected.getMessage().contains("version"));
+        }
+    }
+
+    private PendingUpdate roundTrip(long sequence, UpdateType updateType, long timeCreated, Object entity)
+            throws IOException, ClassNotFoundException {
+        return codec.decode(sequence, ByteBuffer.wrap(codec.encode(updateType, timeCreated, entity)));
+    }
+}
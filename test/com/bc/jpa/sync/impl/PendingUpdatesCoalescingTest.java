@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import com.bc.jpa.sync.Updater;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Coalescing of the updates of an entity as they are added to the window of
+ * {@link PendingUpdatesManagerImpl}. Entities are strings of the form
+ * <code>id:version</code>. Updates are journaled before the manager is
+ * started, so that they are all loaded into the window before any of them is
+ * applied.
+ */
+public class PendingUpdatesCoalescingTest {
+
+    private final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+
+    private final Updater updater = new Updater() {
+        @Override
+        public Object update(Object entity, Object entityId) {
+            return this.merge(entity);
+        }
+        @Override
+        public Object merge(Object entity) {
+            applied.add("merge " + entity);
+            return entity;
+        }
+        @Override
+        public void persist(Object entity) {
+            applied.add("persist " + entity);
+        }
+        @Override
+        public void remove(Object entity) {
+            applied.add("remove " + entity);
+        }
+    };
+
+    private File dir;
+
+    private PendingUpdatesJournal journal;
+
+    private PendingUpdatesManagerImpl manager;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory(this.getClass().getSimpleName()).toFile();
+        journal = new PendingUpdatesJournal(dir, 64 * 1024, 0);
+    }
+
+    @After
+    public void tearDown() {
+        if(manager != null) {
+            manager.requestStop();
+        }
+        journal.close();
+        delete(dir);
+    }
+
+    @Test
+    public void mergeReplacesEarlierMerges() throws InterruptedException {
+        journal.append(UpdateType.MERGE, "a:1");
+        journal.append(UpdateType.MERGE, "a:2");
+        journal.append(UpdateType.MERGE, "a:3");
+        this.start();
+        this.drain();
+        assertEquals(Arrays.asList("merge a:3"), applied);
+        // Those coalesced are acknowledged along with the one applied
+        assertEquals(0, manager.getPendingUpdatesSize());
+    }
+
+    @Test
+    public void laterUpdateKeepsItsPosition() throws InterruptedException {
+        journal.append(UpdateType.MERGE, "a:1");
+        journal.append(UpdateType.MERGE, "b:1");
+        journal.append(UpdateType.MERGE, "a:2");
+        this.start();
+        this.drain();
+        assertEquals(Arrays.asList("merge b:1", "merge a:2"), applied);
+    }
+
+    @Test
+    public void removeReplacesEarlierMerges() throws InterruptedException {
+        journal.append(UpdateType.MERGE, "a:1");
+        journal.append(UpdateType.MERGE, "a:2");
+        journal.append(UpdateType.REMOVE, "a:3");
+        this.start();
+        this.drain();
+        assertEquals(Arrays.asList("remove a:3"), applied);
+    }
+
+    @Test
+    public void removeCancelsOutPersist() throws InterruptedException {
+        journal.append(UpdateType.PERSIST, "b:1");
+        journal.append(UpdateType.PERSIST, "a:1");
+        journal.append(UpdateType.MERGE, "a:2");
+        journal.append(UpdateType.REMOVE, "a:3");
+        this.start();
+        this.drain();
+        assertEquals(Arrays.asList("persist b:1"), applied);
+        assertEquals(0, manager.getPendingUpdatesSize());
+    }
+
+    @Test
+    public void persistIsNotReplacedByMerge() throws InterruptedException {
+        journal.append(UpdateType.PERSIST, "a:1");
+        journal.append(UpdateType.MERGE, "a:2");
+        this.start();
+        this.drain();
+        assertEquals(Arrays.asList("persist a:1", "merge a:2"), applied);
+    }
+
+    @Test
+    public void updatesAfterMarkAreNotCoalescedWithUpdatesBeforeIt() throws InterruptedException {
+        this.start();
+        manager.pause();
+        manager.addMerge("a:1");
+        manager.mark(manager.getPendingUpdatesSize());
+        manager.addMerge("a:2");
+        manager.addMerge("a:3");
+        manager.rollbackToMarkedPosition();
+        this.drain();
+        assertEquals(Arrays.asList("merge a:1"), applied);
+    }
+
+    private void start() {
+        manager = (PendingUpdatesManagerImpl)new PendingUpdatesManagerBuilder()
+                .journal(journal)
+                .updater(updater)
+                .partitions(1)
+                .entityIdProvider((entity) -> entity.toString().split(":")[0])
+                .build();
+    }
+
+    private void drain() throws InterruptedException {
+        if(manager.isPaused()) {
+            manager.resume();
+        }
+        assertTrue("Timed out draining", manager.awaitDrained(10, TimeUnit.SECONDS));
+    }
+
+    private static void delete(File file) {
+        final File [] files = file.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PendingUpdatesJournalTest {
+
+    /**
+     * Small enough for a handful of records to span several segments
+     */
+    private static final int SEGMENT_SIZE = 256;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory(this.getClass().getSimpleName()).toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File [] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void readAndRecoverAcrossSegmentRoll() throws IOException {
+        PendingUpdatesJournal journal = this.open();
+        for(int i=0; i<20; i++) {
+            assertEquals(i, journal.append(UpdateType.PERSIST, "entity" + i).getSequence());
+        }
+        assertTrue("Expected several segments", this.getSegments().length > 2);
+        assertSequences(journal.read(0, 100), 0, 20);
+        // Continues from where the last read stopped
+        assertSequences(journal.read(0, 5), 0, 5);
+        assertSequences(journal.read(5, 100), 5, 20);
+        journal.close();
+
+        journal = this.open();
+        try{
+            assertEquals(20, journal.getNextSequence());
+            final List<PendingUpdate> recovered = journal.read(0, 100);
+            assertSequences(recovered, 0, 20);
+            for(PendingUpdate pendingUpdate : recovered) {
+                assertEquals(UpdateType.PERSIST, pendingUpdate.getUpdateType());
+                assertEquals("entity" + pendingUpdate.getSequence(), pendingUpdate.getEntity());
+            }
+            // Seeks into a segment other than the first
+            assertSequences(journal.read(13, 100), 13, 20);
+        }finally{
+            journal.close();
+        }
+    }
+
+    @Test
+    public void acknowledgeDeletesConsumedSegments() throws IOException {
+        PendingUpdatesJournal journal = this.open();
+        for(int i=0; i<20; i++) {
+            journal.append(UpdateType.MERGE, "entity" + i);
+        }
+        final int segments = this.getSegments().length;
+        journal.acknowledge(14);
+        assertEquals(5, journal.size());
+        assertTrue("Expected consumed segments to be deleted", this.getSegments().length < segments);
+        journal.close();
+
+        journal = this.open();
+        try{
+            assertEquals(15, journal.getConsumerOffset());
+            assertSequences(journal.read(0, 100), 15, 20);
+        }finally{
+            journal.close();
+        }
+    }
+
+    @Test
+    public void recoverClearsCorruptTail() throws IOException {
+        PendingUpdatesJournal journal = this.open();
+        for(int i=0; i<5; i++) {
+            journal.append(UpdateType.PERSIST, "entity" + i);
+        }
+        journal.close();
+
+        // A record interrupted while being written: length and sequence, but
+        // neither the payload nor the checksum
+        final File [] segments = this.getSegments();
+        try(RandomAccessFile file = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+            int position = 0;
+            int length;
+            while((length = file.readInt()) > 0) {
+                position += 12 + length + 4;
+                file.seek(position);
+            }
+            file.seek(position);
+            file.writeInt(20);
+            file.writeLong(5);
+            file.write(new byte[]{1, 2, 3});
+        }
+
+        journal = this.open();
+        try{
+            assertEquals(5, journal.getNextSequence());
+            assertSequences(journal.read(0, 100), 0, 5);
+            assertEquals(5, journal.append(UpdateType.MERGE, "entity5").getSequence());
+            final List<PendingUpdate> read = journal.read(0, 100);
+            assertSequences(read, 0, 6);
+            assertEquals("entity5", read.get(5).getEntity());
+        }finally{
+            journal.close();
+        }
+    }
+
+    @Test
+    public void readStepsOverUnwrittenSequence() throws IOException {
+        PendingUpdatesJournal journal = this.open();
+        for(int i=0; i<10; i++) {
+            // Not serializable, so not written
+            final Object entity = i == 4 ? new Object() : "entity" + i;
+            assertEquals(i, journal.append(UpdateType.PERSIST, entity).getSequence());
+        }
+        journal.close();
+
+        journal = this.open();
+        try{
+            assertEquals(10, journal.getNextSequence());
+            final List<Long> sequences = new ArrayList<>();
+            for(PendingUpdate pendingUpdate : journal.read(0, 100)) {
+                sequences.add(pendingUpdate.getSequence());
+            }
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 5L, 6L, 7L, 8L, 9L), sequences);
+            assertEquals(5, journal.read(4, 100).get(0).getSequence());
+            assertEquals(10, journal.append(UpdateType.PERSIST, "entity10").getSequence());
+        }finally{
+            journal.close();
+        }
+    }
+
+    @Test
+    public void truncateDiscardsFromSequence() throws IOException {
+        final PendingUpdatesJournal journal = this.open();
+        try{
+            for(int i=0; i<20; i++) {
+                journal.append(UpdateType.PERSIST, "entity" + i);
+            }
+            journal.truncate(8);
+            assertEquals(8, journal.getNextSequence());
+            assertSequences(journal.read(0, 100), 0, 8);
+            assertEquals(8, journal.append(UpdateType.REMOVE, "entity8").getSequence());
+            final List<PendingUpdate> read = journal.read(0, 100);
+            assertSequences(read, 0, 9);
+            assertEquals(UpdateType.REMOVE, read.get(8).getUpdateType());
+        }finally{
+            journal.close();
+        }
+    }
+
+    @Test
+    public void readReportsUnreadableRecordsAndHowFarItScanned() throws IOException {
+        final PendingUpdatesJournal journal = this.open();
+        try{
+            journal.append(UpdateType.REMOVE, new Unreadable());
+            journal.append(UpdateType.REMOVE, new Unreadable());
+            journal.append(UpdateType.PERSIST, "entity2");
+
+            final List<PendingUpdate> output = new ArrayList<>();
+            final List<PendingUpdate> unreadable = new ArrayList<>();
+            // Nothing decodes, yet the records are scanned past
+            assertEquals(2, journal.read(0, 2, output, (pendingUpdate, e) -> unreadable.add(pendingUpdate)));
+            assertTrue(output.isEmpty());
+            assertEquals(2, unreadable.size());
+            assertEquals(1, unreadable.get(1).getSequence());
+            assertEquals(UpdateType.REMOVE, unreadable.get(1).getUpdateType());
+            assertTrue(unreadable.get(1).getEntity() instanceof byte[]);
+
+            assertEquals(3, journal.read(2, 100, output, null));
+            assertSequences(output, 2, 3);
+            assertEquals(3, journal.read(3, 100, output, null));
+        }finally{
+            journal.close();
+        }
+    }
+
+    private static class Unreadable implements Serializable {
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new InvalidObjectException("Unreadable");
+        }
+    }
+
+    private PendingUpdatesJournal open() throws IOException {
+        return new PendingUpdatesJournal(dir, SEGMENT_SIZE, 0);
+    }
+
+    private File [] getSegments() {
+        final File [] segments = dir.listFiles((d, name) -> name.endsWith(".log"));
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static void assertSequences(List<PendingUpdate> pendingUpdates, long from, long to) {
+        assertEquals(to - from, pendingUpdates.size());
+        for(int i=0; i<pendingUpdates.size(); i++) {
+            assertEquals(from + i, pendingUpdates.get(i).getSequence());
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bc.jpa.sync.impl;
+
+import com.bc.jpa.sync.FailedUpdate;
+import com.bc.jpa.sync.PendingUpdate;
+import com.bc.jpa.sync.PendingUpdate.UpdateType;
+import com.bc.jpa.sync.Savepoint;
+import com.bc.jpa.sync.Updater;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PendingUpdatesManagerImplTest {
+
+    private final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+
+    private final Updater updater = new Updater() {
+        @Override
+        public Object update(Object entity, Object entityId) {
+            return this.merge(entity);
+        }
+        @Override
+        public Object merge(Object entity) {
+            applied.add("merge " + entity);
+            return entity;
+        }
+        @Override
+        public void persist(Object entity) {
+            applied.add("persist " + entity);
+        }
+        @Override
+        public void remove(Object entity) {
+            applied.add("remove " + entity);
+        }
+    };
+
+    private File dir;
+
+    private PendingUpdatesJournal journal;
+
+    private PendingUpdatesManagerImpl manager;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory(this.getClass().getSimpleName()).toFile();
+        journal = new PendingUpdatesJournal(dir, 64 * 1024, 0);
+    }
+
+    @After
+    public void tearDown() {
+        if(manager != null) {
+            manager.requestStop();
+        }
+        journal.close();
+        delete(dir);
+    }
+
+    @Test
+    public void unreadableRecordsAreSetAsideAndLaterOnesLoaded() throws InterruptedException {
+        journal.append(UpdateType.MERGE, new Unreadable());
+        journal.append(UpdateType.REMOVE, new Unreadable());
+        journal.append(UpdateType.MERGE, "a:1");
+        journal.append(UpdateType.MERGE, "b:1");
+        // A window no larger than the unreadable records
+        manager = (PendingUpdatesManagerImpl)this.builder().windowSize(2).build();
+
+        assertTrue("Timed out draining", manager.awaitDrained(10, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("merge a:1", "merge b:1"), applied);
+        assertEquals(2, manager.getFailedUpdatesSize());
+        final List<FailedUpdate> failed = manager.getFailedUpdates(0, 10);
+        assertEquals(UpdateType.REMOVE, failed.get(1).getUpdateType());
+        assertTrue(failed.get(1).getEntity() instanceof byte[]);
+    }
+
+    @Test
+    public void updatesHeldInSliceCountAgainstCapacity() {
+        manager = (PendingUpdatesManagerImpl)this.builder()
+                .capacity(2).overflowPolicy(OverflowPolicy.REJECT).build();
+        manager.pause();
+        try(Savepoint savepoint = manager.savepoint()) {
+            assertTrue(manager.addMerge("a:1"));
+            assertTrue(manager.addMerge("b:1"));
+            assertFalse("Beyond capacity while held in the slice", manager.addMerge("c:1"));
+            manager.rollback(savepoint);
+            // The capacity of those rolled back is released
+            assertTrue(manager.addMerge("c:1"));
+            assertTrue(manager.addMerge("d:1"));
+            manager.release(savepoint);
+        }
+        assertEquals(2, manager.getPendingUpdatesSize());
+        assertFalse(manager.addMerge("e:1"));
+    }
+
+    @Test
+    public void stopWhileSavepointHeldCancelsItsUpdates() {
+        manager = (PendingUpdatesManagerImpl)this.builder().build();
+        final Savepoint savepoint = manager.savepoint();
+        final CompletionStage<PendingUpdate> stage = manager.addAsync(UpdateType.MERGE, "a:1");
+        manager.requestStop();
+        try{
+            manager.release(savepoint);
+            fail("Expected IllegalStateException");
+        }catch(IllegalStateException expected) { }
+        assertTrue(stage.toCompletableFuture().isCancelled());
+    }
+
+    @Test
+    public void concurrentProducersNeverExceedCapacity() throws InterruptedException {
+        manager = (PendingUpdatesManagerImpl)this.builder()
+                .capacity(100).overflowPolicy(OverflowPolicy.REJECT).build();
+        manager.pause();
+        final Set<String> accepted = Collections.synchronizedSet(new HashSet<>());
+        final AtomicInteger maxPending = new AtomicInteger();
+
+        this.runProducers(8, 50, (entity) -> {
+            if(manager.addMerge(entity)) {
+                accepted.add("merge " + entity);
+            }
+            maxPending.accumulateAndGet(manager.getPendingUpdatesSize(), Math::max);
+        });
+
+        assertEquals(100, accepted.size());
+        assertEquals(100, manager.getPendingUpdatesSize());
+        assertTrue("Exceeded capacity: " + maxPending, maxPending.get() <= 100);
+
+        manager.resume();
+        assertTrue("Timed out draining", manager.awaitDrained(10, TimeUnit.SECONDS));
+        assertEquals(accepted, new HashSet<>(applied));
+        assertEquals(100, applied.size());
+    }
+
+    @Test
+    public void updatesNotRolledBackAreAppliedDespiteConcurrentRollbacks() throws InterruptedException {
+        manager = (PendingUpdatesManagerImpl)this.builder()
+                .capacity(500).overflowPolicy(OverflowPolicy.REJECT).build();
+        manager.pause();
+        final List<Object[]> added = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger maxPending = new AtomicInteger();
+        final CountDownLatch producing = new CountDownLatch(1);
+
+        final Thread rollbacks = new Thread(() -> {
+            try{
+                producing.await();
+                for(int i=0; i<20; i++) {
+                    manager.mark(manager.getPendingUpdatesSize());
+                    Thread.sleep(1);
+                    manager.rollbackToMarkedPosition();
+                }
+            }catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        rollbacks.start();
+
+        this.runProducers(4, 300, (entity) -> {
+            producing.countDown();
+            added.add(new Object[]{entity, manager.addAsync(UpdateType.MERGE, entity).toCompletableFuture()});
+            maxPending.accumulateAndGet(manager.getPendingUpdatesSize(), Math::max);
+        });
+        rollbacks.join(10_000);
+        assertFalse("Rollbacks did not finish", rollbacks.isAlive());
+        assertTrue("Exceeded capacity: " + maxPending, maxPending.get() <= 500);
+
+        manager.resume();
+        assertTrue("Timed out draining", manager.awaitDrained(10, TimeUnit.SECONDS));
+
+        final Set<String> expected = new HashSet<>();
+        int rolledBack = 0;
+        for(Object [] update : added) {
+            // Completed by the worker after the updates are acknowledged
+            try{
+                ((CompletableFuture<PendingUpdate>)update[1]).get(10, TimeUnit.SECONDS);
+                expected.add("merge " + update[0]);
+            }catch(CancellationException e) {
+                ++rolledBack;
+            }catch(ExecutionException e) {
+                assertTrue("Not rejected: " + e.getCause(), e.getCause() instanceof RejectedExecutionException);
+            }catch(TimeoutException e) {
+                fail("Neither applied nor rolled back: " + update[0]);
+            }
+        }
+        assertTrue("Nothing rolled back", rolledBack > 0);
+        // Each update is applied once, unless rolled back or rejected
+        assertEquals(expected, new HashSet<>(applied));
+        assertEquals(expected.size(), applied.size());
+    }
+
+    /**
+     * Calls the action with distinct entities from each producer thread,
+     * the threads started together.
+     */
+    private void runProducers(int producers, int perProducer, Consumer<String> action) 
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread [] threads = new Thread[producers];
+        for(int i=0; i<producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread(() -> {
+                try{
+                    start.await();
+                }catch(InterruptedException e) {
+                    return;
+                }
+                for(int j=0; j<perProducer; j++) {
+                    action.accept("p" + producer + "-" + j + ":1");
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join(10_000);
+            assertFalse("Producer did not finish", thread.isAlive());
+        }
+    }
+
+    private PendingUpdatesManagerBuilder builder() {
+        return new PendingUpdatesManagerBuilder()
+                .journal(journal)
+                .updater(updater)
+                .partitions(1)
+                .entityIdProvider((entity) -> entity.toString().split(":")[0]);
+    }
+
+    private static class Unreadable implements Serializable {
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new InvalidObjectException("Unreadable");
+        }
+    }
+
+    private static void delete(File file) {
+        final File [] files = file.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 NUROX Ltd.
+ *
+ * Licensed under the NUROX Ltd Software License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.looseboxes.com/legal/licenses/software.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bc.jpa.sync.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyncCheckpointsTest {
+
+    public static class First { }
+
+    public static class Second { }
+
+    private File dir;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory(this.getClass().getSimpleName()).toFile();
+        file = new File(dir, "sync.checkpoints");
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void savedCheckpointsAreLoaded() {
+        final SyncCheckpoints checkpoints = new SyncCheckpoints(file, 0);
+        checkpoints.update(First.class, new Object[]{5L, "x"}, 6, 4);
+        checkpoints.complete(Second.class, 10, 9);
+
+        final SyncCheckpoints loaded = new SyncCheckpoints(file, 0);
+
+        final SyncCheckpoints.Checkpoint first = loaded.get(First.class);
+        assertArrayEquals(new Object[]{5L, "x"}, first.getLastKey());
+        assertEquals(6, first.getReadCount());
+        assertEquals(4, first.getCount());
+        assertFalse(first.isComplete());
+
+        final SyncCheckpoints.Checkpoint second = loaded.get(Second.class);
+        assertNull(second.getLastKey());
+        assertEquals(10, second.getReadCount());
+        assertEquals(9, second.getCount());
+        assertTrue(second.isComplete());
+    }
+
+    @Test
+    public void updatesWithinIntervalAreSavedOnFlush() {
+        final SyncCheckpoints checkpoints = new SyncCheckpoints(file, 60_000);
+        // The first update is saved
+        checkpoints.update(First.class, new Object[]{1L}, 1, 1);
+        checkpoints.update(First.class, new Object[]{2L}, 2, 2);
+
+        assertEquals(1, new SyncCheckpoints(file, 0).get(First.class).getCount());
+
+        checkpoints.flush();
+
+        assertEquals(2, new SyncCheckpoints(file, 0).get(First.class).getCount());
+    }
+
+    @Test
+    public void completeIsSavedAtOnce() {
+        final SyncCheckpoints checkpoints = new SyncCheckpoints(file, 60_000);
+        checkpoints.update(First.class, new Object[]{1L}, 1, 1);
+        checkpoints.complete(First.class, 3, 3);
+
+        assertTrue(new SyncCheckpoints(file, 0).get(First.class).isComplete());
+    }
+
+    @Test
+    public void clearDeletesFile() {
+        final SyncCheckpoints checkpoints = new SyncCheckpoints(file, 0);
+        checkpoints.complete(First.class, 1, 1);
+        assertTrue(file.exists());
+
+        checkpoints.clear();
+
+        assertFalse(file.exists());
+        assertNull(checkpoints.get(First.class));
+        assertNull(new SyncCheckpoints(file, 0).get(First.class));
+    }
+
+    @Test
+    public void lastKeyIsCopied() {
+        final Object [] lastKey = {1L};
+        final SyncCheckpoints checkpoints = new SyncCheckpoints(file, 0);
+        checkpoints.update(First.class, lastKey, 1, 1);
+        lastKey[0] = 2L;
+        checkpoints.get(First.class).getLastKey()[0] = 3L;
+
+        assertArrayEquals(new Object[]{1L}, checkpoints.get(First.class).getLastKey());
+    }
+
+    @Test
+    public void unreadableFileIsSyncedFromStart() throws IOException {
+        try(OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        assertNull(new SyncCheckpoints(file, 0).get(First.class));
+    }
+
+    private static void delete(File file) {
+        final File [] files = file.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}